@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester
+ *
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe map that holds at most a fixed number of entries, evicting
+ * the least recently used entry when full, and counts hits, misses and
+ * evictions.
+ * 
+ * @param <K>
+ *            the key type
+ * @param <V>
+ *            the value type
+ */
+public class BoundedCache<K, V> {
+
+	private final int maxSize;
+
+	private final Map<K, V> map;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of entries to hold
+	 */
+	public BoundedCache(final int maxSize) {
+		this.maxSize = maxSize;
+		this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				if (size() > BoundedCache.this.maxSize) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param key
+	 * @return the cached value, or <code>null</code> if there is none
+	 */
+	public V get(K key) {
+		V value;
+		synchronized (map) {
+			value = map.get(key);
+		}
+		if (value == null) {
+			missCount.incrementAndGet();
+		} else {
+			hitCount.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * Caches a value unless another thread has already cached one for the
+	 * same key.
+	 * 
+	 * @param key
+	 * @param value
+	 * @return the value now cached for the key
+	 */
+	public V putIfAbsent(K key, V value) {
+		synchronized (map) {
+			V existing = map.get(key);
+			if (existing != null) {
+				return existing;
+			}
+			map.put(key, value);
+			return value;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the value removed, or <code>null</code> if there was none
+	 */
+	public V remove(K key) {
+		synchronized (map) {
+			return map.remove(key);
+		}
+	}
+
+	public void clear() {
+		synchronized (map) {
+			map.clear();
+		}
+	}
+
+	/**
+	 * @return the number of entries currently cached
+	 */
+	public int size() {
+		synchronized (map) {
+			return map.size();
+		}
+	}
+
+	/**
+	 * @return the maximum number of entries held
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the number of lookups that found a value
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return the number of lookups that found no value
+	 */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/**
+	 * @return the number of entries evicted to make room for others
+	 */
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * @return the fraction of lookups that found a value, or 0 if there
+	 *         have been none
+	 */
+	public double getHitRate() {
+		long hits = hitCount.get();
+		long total = hits + missCount.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "size=" + size() + "/" + maxSize + ", hits=" + getHitCount()
+				+ ", misses=" + getMissCount() + ", evictions="
+				+ getEvictionCount();
+	}
+}
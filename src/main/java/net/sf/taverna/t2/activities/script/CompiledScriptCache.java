@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester
+ *
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Compiled scripts shared by all script activities, keyed by a fingerprint
+ * of the engine name, engine version and script text.
+ * <p>
+ * Only engines that can run a compiled script from several threads at once
+ * (those whose THREADING parameter is not <code>null</code>) are cached,
+ * since a compiled script stays tied to the engine that compiled it. The
+ * number of scripts held is set by the system property
+ * {@value #MAX_SIZE_PROPERTY}.
+ * <p>
+ * Engines implementing {@link PersistableCompilable} also have their
+ * compiled scripts kept in the {@link ScriptCacheStore}, so that they need
+ * not be compiled again after a restart.
+ */
+public class CompiledScriptCache {
+
+	public static final String MAX_SIZE_PROPERTY = "net.sf.taverna.t2.activities.script.compiledScriptCache.maxSize";
+
+	private static final int DEFAULT_MAX_SIZE = 256;
+
+	private static Logger logger = Logger.getLogger(CompiledScriptCache.class);
+
+	private static CompiledScriptCache instance = new CompiledScriptCache(
+			Integer.getInteger(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE));
+
+	private final BoundedCache<String, CompiledScript> cache;
+
+	protected CompiledScriptCache(int maxSize) {
+		cache = new BoundedCache<String, CompiledScript>(maxSize);
+	}
+
+	/**
+	 * @return the cache shared by all script activities
+	 */
+	public static CompiledScriptCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns <code>true</code> if scripts for the engine can be compiled and
+	 * shared through this cache.
+	 * 
+	 * @param engine
+	 * @param descriptor
+	 *            the registry description of the engine, or <code>null</code>
+	 *            if it is not known
+	 * @return <code>true</code> if the engine's compiled scripts can be cached
+	 */
+	public static boolean isCacheable(ScriptEngine engine, ScriptEngineDescriptor descriptor) {
+		return engine instanceof Compilable && descriptor != null
+				&& descriptor.getThreading() != null;
+	}
+
+	/**
+	 * Returns the compiled form of a script. On a cache miss the script is
+	 * read from the {@link ScriptCacheStore} if the engine can persist
+	 * compiled scripts, or else compiled with the given engine.
+	 * 
+	 * @param fingerprint
+	 *            the fingerprint from {@link #fingerprint(String, String, String)}
+	 * @param engine
+	 *            a compilable engine
+	 * @param script
+	 *            the script text
+	 * @return the compiled script
+	 * @throws ScriptException
+	 *             if the script does not compile
+	 */
+	public CompiledScript getCompiledScript(String fingerprint, ScriptEngine engine, String script)
+			throws ScriptException {
+		CompiledScript compiledScript = cache.get(fingerprint);
+		if (compiledScript == null) {
+			if (engine instanceof PersistableCompilable) {
+				compiledScript = getPersistedScript(fingerprint, (PersistableCompilable) engine, script);
+			} else {
+				compiledScript = ((Compilable) engine).compile(script);
+			}
+			compiledScript = cache.putIfAbsent(fingerprint, compiledScript);
+		}
+		return compiledScript;
+	}
+
+	private CompiledScript getPersistedScript(String fingerprint, PersistableCompilable engine, String script)
+			throws ScriptException {
+		ScriptCacheStore store = ScriptCacheStore.getInstance();
+		if (store == null) {
+			return engine.compile(script);
+		}
+		// compiled scripts are only valid for the engine jars they were made with
+		String key = fingerprint(fingerprint, ScriptEngineRegistry.getInstance().getFingerprint(), "");
+		byte[] data = store.read(key);
+		if (data != null) {
+			try {
+				return engine.readCompiledScript(data);
+			} catch (IOException e) {
+				logger.warn("Could not restore compiled script " + key, e);
+			} catch (ScriptException e) {
+				logger.warn("Could not restore compiled script " + key, e);
+			}
+		}
+		CompiledScript compiledScript = engine.compile(script);
+		try {
+			data = engine.writeCompiledScript(compiledScript);
+			if (data != null) {
+				store.write(key, data);
+			}
+		} catch (IOException e) {
+			logger.warn("Could not persist compiled script " + key, e);
+		}
+		return compiledScript;
+	}
+
+	/**
+	 * Computes a content hash of a script for a particular engine.
+	 * 
+	 * @param engineName
+	 * @param engineVersion
+	 * @param script
+	 * @return the hex encoded SHA-256 digest
+	 */
+	public static String fingerprint(String engineName, String engineVersion, String script) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			update(digest, engineName);
+			update(digest, engineVersion);
+			update(digest, script);
+			return toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not supported", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported", e);
+		}
+	}
+
+	private static void update(MessageDigest digest, String value)
+			throws UnsupportedEncodingException {
+		// NUL separated, so that ("ab", "c") and ("a", "bc") differ
+		digest.update(String.valueOf(value).getBytes("UTF-8"));
+		digest.update((byte) 0);
+	}
+
+	static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public int getMaxSize() {
+		return cache.getMaxSize();
+	}
+
+	public long getHitCount() {
+		return cache.getHitCount();
+	}
+
+	public long getMissCount() {
+		return cache.getMissCount();
+	}
+
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "CompiledScriptCache[" + cache + "]";
+	}
+}
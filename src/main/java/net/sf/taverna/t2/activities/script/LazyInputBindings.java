@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.Bindings;
+
+import net.sf.taverna.t2.reference.ReferenceContext;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.T2Reference;
+
+/**
+ * {@link Bindings} whose input values are rendered from their
+ * {@link T2Reference} only when the script first reads them.
+ * <p>
+ * Inputs added with
+ * {@link #putReference(String, T2Reference, Class, ScriptEscapingType)} are
+ * rendered and escaped on the first {@link #get(Object)} and the result is
+ * stored in the underlying bindings, so later reads see the same value. Inputs
+ * the script never reads are never fetched from the reference service.
+ * Operations that expose every value, such as {@link #entrySet()}, render all
+ * remaining inputs first. Overwriting or removing an input that has not been
+ * rendered yet returns <code>null</code> rather than rendering it.
+ * <p>
+ * Rendering failures are thrown as
+ * {@link net.sf.taverna.t2.reference.ReferenceServiceException}s from the
+ * read that caused them. Instances are meant for a single invocation and are
+ * not thread-safe.
+ */
+public class LazyInputBindings implements Bindings {
+
+	private final Bindings bindings;
+
+	private final ReferenceService referenceService;
+
+	private final ReferenceContext referenceContext;
+
+	private final Map<String, LazyInput> pending = new HashMap<String, LazyInput>();
+
+	private int renderedCount;
+
+	/**
+	 * @param bindings
+	 *            the bindings rendered inputs and all other values are stored
+	 *            in
+	 * @param referenceService
+	 *            the service the inputs are rendered by
+	 * @param referenceContext
+	 *            the context of the invocation
+	 */
+	public LazyInputBindings(Bindings bindings, ReferenceService referenceService,
+			ReferenceContext referenceContext) {
+		this.bindings = bindings;
+		this.referenceService = referenceService;
+		this.referenceContext = referenceContext;
+	}
+
+	/**
+	 * Binds an input that is rendered when it is first read.
+	 * 
+	 * @param name
+	 *            the variable name
+	 * @param reference
+	 *            the reference to the input value
+	 * @param elementClass
+	 *            the class the value is rendered as
+	 * @param escaping
+	 *            the escaping applied to the rendered value, or
+	 *            <code>null</code> for none
+	 */
+	public void putReference(String name, T2Reference reference, Class<?> elementClass,
+			ScriptEscapingType escaping) {
+		bindings.remove(name);
+		pending.put(name, new LazyInput(reference, elementClass, escaping));
+	}
+
+	/**
+	 * @return the number of inputs that have been rendered so far
+	 */
+	public int getRenderedCount() {
+		return renderedCount;
+	}
+
+	/**
+	 * @return the number of inputs that have not been read
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	private Object render(String name) {
+		LazyInput input = pending.remove(name);
+		Object value = referenceService.renderIdentifier(input.reference,
+				input.elementClass, referenceContext);
+		if (input.escaping != null) {
+			value = input.escaping.parse(value);
+		}
+		bindings.put(name, value);
+		renderedCount++;
+		return value;
+	}
+
+	private void renderAll() {
+		while (!pending.isEmpty()) {
+			render(pending.keySet().iterator().next());
+		}
+	}
+
+	public Object get(Object key) {
+		if (pending.containsKey(key)) {
+			return render((String) key);
+		}
+		return bindings.get(key);
+	}
+
+	public boolean containsKey(Object key) {
+		return pending.containsKey(key) || bindings.containsKey(key);
+	}
+
+	public Object put(String name, Object value) {
+		if (pending.remove(name) != null) {
+			bindings.put(name, value);
+			return null;
+		}
+		return bindings.put(name, value);
+	}
+
+	public void putAll(Map<? extends String, ? extends Object> toMerge) {
+		for (Map.Entry<? extends String, ? extends Object> entry : toMerge.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public Object remove(Object key) {
+		if (pending.remove(key) != null) {
+			return null;
+		}
+		return bindings.remove(key);
+	}
+
+	public void clear() {
+		pending.clear();
+		bindings.clear();
+	}
+
+	public int size() {
+		return pending.size() + bindings.size();
+	}
+
+	public boolean isEmpty() {
+		return pending.isEmpty() && bindings.isEmpty();
+	}
+
+	public boolean containsValue(Object value) {
+		renderAll();
+		return bindings.containsValue(value);
+	}
+
+	public Set<String> keySet() {
+		renderAll();
+		return bindings.keySet();
+	}
+
+	public Collection<Object> values() {
+		renderAll();
+		return bindings.values();
+	}
+
+	public Set<Map.Entry<String, Object>> entrySet() {
+		renderAll();
+		return bindings.entrySet();
+	}
+
+	private static final class LazyInput {
+
+		private final T2Reference reference;
+
+		private final Class<?> elementClass;
+
+		private final ScriptEscapingType escaping;
+
+		private LazyInput(T2Reference reference, Class<?> elementClass,
+				ScriptEscapingType escaping) {
+			this.reference = reference;
+			this.elementClass = elementClass;
+			this.escaping = escaping;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchErrorType;
+
+/**
+ * A callback that passes on only the first result, completion or failure of
+ * an invocation.
+ * <p>
+ * Once the {@link ScriptDeadline} of a script has failed the invocation, the
+ * script may still finish, or fail in reaction to being interrupted, and
+ * whatever it returns then is dropped.
+ */
+final class OnceOnlyCallback implements AsynchronousActivityCallback {
+
+	private final AsynchronousActivityCallback callback;
+
+	private final AtomicBoolean done = new AtomicBoolean();
+
+	OnceOnlyCallback(AsynchronousActivityCallback callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * @return <code>true</code> if a result or failure has been returned
+	 */
+	boolean isDone() {
+		return done.get();
+	}
+
+	public InvocationContext getContext() {
+		return callback.getContext();
+	}
+
+	public void requestRun(Runnable runnable) {
+		callback.requestRun(runnable);
+	}
+
+	public String getParentProcessIdentifier() {
+		return callback.getParentProcessIdentifier();
+	}
+
+	public void receiveResult(Map<String, T2Reference> data, int[] index) {
+		if (done.compareAndSet(false, true)) {
+			callback.receiveResult(data, index);
+		}
+	}
+
+	public void receiveCompletion(int[] completionIndex) {
+		if (done.compareAndSet(false, true)) {
+			callback.receiveCompletion(completionIndex);
+		}
+	}
+
+	public void fail(String message, Throwable t, DispatchErrorType errorType) {
+		if (done.compareAndSet(false, true)) {
+			callback.fail(message, t, errorType);
+		}
+	}
+
+	public void fail(String message, Throwable t) {
+		if (done.compareAndSet(false, true)) {
+			callback.fail(message, t);
+		}
+	}
+
+	public void fail(String message) {
+		if (done.compareAndSet(false, true)) {
+			callback.fail(message);
+		}
+	}
+}
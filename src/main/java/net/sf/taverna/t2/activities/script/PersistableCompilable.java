@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.io.IOException;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptException;
+
+/**
+ * A {@link Compilable} script engine whose compiled scripts can be written
+ * out and read back, so that they survive a restart in the
+ * {@link ScriptCacheStore}.
+ */
+public interface PersistableCompilable extends Compilable {
+
+	/**
+	 * Serialises a script compiled by this engine.
+	 * 
+	 * @param compiledScript
+	 *            a script returned by one of the compile methods
+	 * @return the serialised form, or <code>null</code> if this particular
+	 *         script cannot be serialised
+	 * @throws IOException
+	 */
+	byte[] writeCompiledScript(CompiledScript compiledScript) throws IOException;
+
+	/**
+	 * Restores a script serialised by {@link #writeCompiledScript(CompiledScript)}.
+	 * 
+	 * @param data
+	 *            the serialised form
+	 * @return the compiled script, bound to this engine
+	 * @throws IOException
+	 * @throws ScriptException
+	 */
+	CompiledScript readCompiledScript(byte[] data) throws IOException, ScriptException;
+
+}
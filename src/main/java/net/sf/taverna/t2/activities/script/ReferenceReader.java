@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+
+import net.sf.taverna.t2.reference.DereferenceException;
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.ReferenceContext;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.ReferenceSet;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.T2ReferenceType;
+
+/**
+ * A {@link Reader} that streams a value straight from one of the external
+ * references of its {@link ReferenceSet}, such as a file or byte array,
+ * rather than rendering the whole value as a <code>String</code>.
+ * <p>
+ * The cheapest external reference to resolve is chosen, and its stream is only
+ * opened when the reader is first read. At most {@link #getBufferSize()}
+ * characters are buffered; the size can be changed with the system property
+ * {@value #BUFFER_SIZE_PROPERTY}.
+ */
+public class ReferenceReader extends Reader {
+
+	public static final String BUFFER_SIZE_PROPERTY = "net.sf.taverna.t2.activities.script.stdin.bufferSize";
+
+	private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private static final String DEFAULT_CHARSET = "UTF-8";
+
+	private final ExternalReferenceSPI externalReference;
+
+	private final ReferenceContext referenceContext;
+
+	private final int bufferSize;
+
+	private Reader reader;
+
+	private boolean closed;
+
+	protected ReferenceReader(ExternalReferenceSPI externalReference,
+			ReferenceContext referenceContext, int bufferSize) {
+		this.externalReference = externalReference;
+		this.referenceContext = referenceContext;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * Creates a reader for the value of a reference.
+	 * 
+	 * @param referenceService
+	 *            the service the reference is resolved by
+	 * @param reference
+	 *            the reference to read
+	 * @param referenceContext
+	 *            the context of the invocation
+	 * @return the reader, or <code>null</code> if the reference is not a
+	 *         reference set with at least one external reference
+	 */
+	public static ReferenceReader newReader(ReferenceService referenceService,
+			T2Reference reference, ReferenceContext referenceContext) {
+		if (reference.getReferenceType() != T2ReferenceType.ReferenceSet) {
+			return null;
+		}
+		ReferenceSet referenceSet = referenceService.getReferenceSetService()
+				.getReferenceSet(reference);
+		if (referenceSet == null) {
+			return null;
+		}
+		ExternalReferenceSPI cheapest = null;
+		for (ExternalReferenceSPI externalReference : referenceSet.getExternalReferences()) {
+			if (cheapest == null
+					|| externalReference.getResolutionCost() < cheapest.getResolutionCost()) {
+				cheapest = externalReference;
+			}
+		}
+		if (cheapest == null) {
+			return null;
+		}
+		return new ReferenceReader(cheapest, referenceContext, Integer.getInteger(
+				BUFFER_SIZE_PROPERTY, DEFAULT_BUFFER_SIZE));
+	}
+
+	/**
+	 * @return the number of characters buffered from the underlying stream
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	private Reader getReader() throws IOException {
+		if (closed) {
+			throw new IOException("Reader closed");
+		}
+		if (reader == null) {
+			InputStream stream;
+			String charset;
+			try {
+				charset = externalReference.getCharset();
+				stream = externalReference.openStream(referenceContext);
+			} catch (DereferenceException e) {
+				IOException ioException = new IOException("Unable to read " + externalReference);
+				ioException.initCause(e);
+				throw ioException;
+			}
+			if (charset == null) {
+				charset = DEFAULT_CHARSET;
+			}
+			try {
+				reader = new BufferedReader(new InputStreamReader(stream, charset), bufferSize);
+			} catch (UnsupportedEncodingException e) {
+				reader = new BufferedReader(new InputStreamReader(stream, DEFAULT_CHARSET), bufferSize);
+			}
+		}
+		return reader;
+	}
+
+	@Override
+	public int read(char[] buffer, int offset, int length) throws IOException {
+		return getReader().read(buffer, offset, length);
+	}
+
+	@Override
+	public boolean ready() throws IOException {
+		return getReader().ready();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if (reader != null) {
+			reader.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ReferenceReader[" + externalReference + "]";
+	}
+}
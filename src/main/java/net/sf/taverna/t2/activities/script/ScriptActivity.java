@@ -20,34 +20,38 @@
  ******************************************************************************/
 package net.sf.taverna.t2.activities.script;
 
+import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
 
 import javax.script.Bindings;
+import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 
 import net.sf.taverna.t2.activities.dependencyactivity.AbstractAsynchronousDependencyActivity;
-import net.sf.taverna.t2.reference.ErrorDocumentService;
 import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.ReferenceContext;
 import net.sf.taverna.t2.reference.ReferenceService;
 import net.sf.taverna.t2.reference.ReferenceServiceException;
 import net.sf.taverna.t2.reference.T2Reference;
-import net.sf.taverna.t2.workflowmodel.OutputPort;
 import net.sf.taverna.t2.workflowmodel.processor.activity.ActivityConfigurationException;
 import net.sf.taverna.t2.workflowmodel.processor.activity.ActivityInputPort;
 import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
 import net.sf.taverna.t2.workflowmodel.processor.activity.config.ActivityOutputPortDefinitionBean;
 
 import org.apache.log4j.Logger;
+import org.apache.velocity.script.VelocityScriptEngine;
+import org.apache.velocity.script.util.DiscardingWriter;
 
 /**
  * <p>
@@ -69,8 +73,43 @@ public class ScriptActivity extends
 
     private static final String STDIN = "STDIN";
 
+	/**
+	 * Name of the variable holding the number of items in a batch.
+	 */
+	public static final String BATCH_SIZE = "BATCH_SIZE";
+
+	/**
+	 * Name of the variable holding the separator a batch script writes
+	 * between the STDOUT records of its items.
+	 */
+	public static final String BATCH_SEPARATOR = "BATCH_SEPARATOR";
+
+	private static final String DEFAULT_BATCH_SEPARATOR = "\u001E";
+
+	private static final String VELOCITY_LANGUAGE = "velocity";
+
 	private static Logger logger = Logger.getLogger(ScriptActivity.class);
 
+	private volatile String scriptFingerprint;
+
+	private volatile ScriptBatchCollector batchCollector;
+
+	private volatile ScriptExecutionPlan executionPlan;
+
+	private volatile ScriptTemplateFile templateFile;
+
+	/**
+	 * <code>true</code> if the configured engine runs Velocity templates,
+	 * which can <code>#parse</code> or <code>#include</code> other files
+	 */
+	private volatile boolean velocity;
+
+	/**
+	 * <code>true</code> if the configured script is a Velocity template
+	 * loading other files
+	 */
+	private volatile boolean scriptLoadsOtherFiles;
+
 	public ScriptActivity() {
 	}
 
@@ -78,12 +117,38 @@ public class ScriptActivity extends
 	public void configure(ScriptActivityConfigurationBean configurationBean)
 			throws ActivityConfigurationException {
 		this.configurationBean = configurationBean;
+		this.scriptFingerprint = null;
+		this.templateFile = configurationBean.getTemplateFile() == null ? null
+				: new ScriptTemplateFile(configurationBean.getTemplateFile(),
+						configurationBean.getTemplateCheckInterval());
+		ScriptEngineDescriptor descriptor = ScriptEngineRegistry.getInstance().getByEngineName(
+				configurationBean.getEngineName());
+		this.velocity = descriptor != null
+				&& VELOCITY_LANGUAGE.equalsIgnoreCase(descriptor.getLanguageName());
+		this.scriptLoadsOtherFiles = velocity && configurationBean.isDeterministic()
+				&& ScriptOutputCache.loadsOtherFiles(configurationBean.getScript());
+		ScriptBatchCollector previousCollector = batchCollector;
+		if (configurationBean.getBatchSize() > 1) {
+			batchCollector = new ScriptBatchCollector(this, configurationBean
+					.getBatchSize(), configurationBean.getBatchTimeout());
+		} else {
+			batchCollector = null;
+		}
+		if (previousCollector != null) {
+			previousCollector.flush();
+		}
 		checkGranularDepths();
 		configurePorts(configurationBean);
 			List<Class<? extends ExternalReferenceSPI>> handledReferenceSchemes = new ArrayList<Class<? extends ExternalReferenceSPI>>();
 			addInput(STDIN, 0, true, handledReferenceSchemes, String.class);
-			addOutput(STDOUT, 0);
-			addOutput(STDERR, 0);
+			if (!configurationBean.isDiscardStdOut()) {
+				addOutput(STDOUT, 0);
+			}
+			if (!configurationBean.isDiscardStdErr()) {
+				addOutput(STDERR, 0);
+			}
+		executionPlan = ScriptExecutionPlan.create(getInputPorts(), getOutputPorts(),
+				configurationBean, STDIN, STDOUT, STDERR);
 	}
 
 	/**
@@ -112,88 +177,700 @@ public class ScriptActivity extends
 	public ScriptActivityConfigurationBean getConfiguration() {
 		return configurationBean;
 	}
+
+	/**
+	 * Returns the key under which the compiled form of this activity's script
+	 * is cached in the {@link CompiledScriptCache}.
+	 * 
+	 * @param descriptor
+	 *            the registry description of the configured engine
+	 * @return the script fingerprint
+	 */
+	protected String getScriptFingerprint(ScriptEngineDescriptor descriptor) {
+		String fingerprint = scriptFingerprint;
+		if (fingerprint == null) {
+			fingerprint = CompiledScriptCache.fingerprint(descriptor.getEngineName(),
+					descriptor.getEngineVersion(), configurationBean.getScript());
+			scriptFingerprint = fingerprint;
+		}
+		return fingerprint;
+	}
 	
 	public ActivityInputPort getInputPort(String name) {
-		for (ActivityInputPort port : getInputPorts()) {
-			if (port.getName().equals(name)) {
-				return port;
+		ScriptExecutionPlan.InputBinding input = executionPlan.getInput(name);
+		return input == null ? null : input.getPort();
+	}
+
+	/**
+	 * Returns how the ports of this activity are bound to script variables,
+	 * as worked out when the activity was last configured.
+	 * 
+	 * @return the execution plan, or <code>null</code> if the activity has not
+	 *         been configured
+	 */
+	public ScriptExecutionPlan getExecutionPlan() {
+		return executionPlan;
+	}
+
+	/**
+	 * Returns the outputs of the plan that are captured and registered. The
+	 * STDOUT and STDERR ports are left out once the activity belongs to a
+	 * processor that does not map them.
+	 */
+	protected List<ScriptExecutionPlan.OutputBinding> getCapturedOutputs(ScriptExecutionPlan plan) {
+		return getCapturedOutputs(plan.getOutputs(), getOutputPortMapping());
+	}
+
+	/**
+	 * @return the outputs that are either script variables or mapped to a
+	 *         processor port; all of them if the mapping is empty
+	 */
+	static List<ScriptExecutionPlan.OutputBinding> getCapturedOutputs(
+			List<ScriptExecutionPlan.OutputBinding> outputs, Map<String, String> outputPortMapping) {
+		if (outputPortMapping == null || outputPortMapping.isEmpty()) {
+			return outputs;
+		}
+		List<ScriptExecutionPlan.OutputBinding> capturedOutputs = null;
+		for (int i = 0; i < outputs.size(); i++) {
+			ScriptExecutionPlan.OutputBinding output = outputs.get(i);
+			boolean captured = output.getSource() == ScriptExecutionPlan.OutputSource.VARIABLE
+					|| outputPortMapping.containsKey(output.getName());
+			if (!captured && capturedOutputs == null) {
+				capturedOutputs = new ArrayList<ScriptExecutionPlan.OutputBinding>(outputs.subList(0, i));
+			} else if (captured && capturedOutputs != null) {
+				capturedOutputs.add(output);
+			}
+		}
+		return capturedOutputs == null ? outputs : capturedOutputs;
+	}
+
+	private static boolean captures(List<ScriptExecutionPlan.OutputBinding> outputs,
+			ScriptExecutionPlan.OutputSource source) {
+		for (ScriptExecutionPlan.OutputBinding output : outputs) {
+			if (output.getSource() == source) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the provider of engines for the configured engine name and
+	 *         sharing
+	 */
+	protected ScriptEngineProvider getEngineProvider() {
+		String engineName = configurationBean.getEngineName();
+		ScriptEngineSharing sharing = configurationBean.getEngineSharing();
+		if (sharing == null) {
+			sharing = ScriptEngineUtils.getEngineSharing(engineName);
+		}
+		if (sharing == ScriptEngineSharing.THREAD_AFFINE
+				&& configurationBean.getExecutionMode() == ScriptExecutionMode.VIRTUAL) {
+			// a virtual thread runs a single invocation, so its engine would never be reused
+			sharing = ScriptEngineSharing.POOLED;
+		}
+		return ScriptEngineUtils.getScriptEngineProvider(engineName, sharing);
+	}
+
+	/**
+	 * Acquires an engine from the provider, failing the callbacks if none
+	 * can be had.
+	 * 
+	 * @return the engine, or <code>null</code> if the callbacks have been
+	 *         failed
+	 */
+	private ScriptEngine acquireEngine(ScriptEngineProvider engineProvider,
+			List<AsynchronousActivityCallback> callbacks) {
+		ScriptEngine se;
+		try {
+			se = engineProvider.acquireEngine();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (AsynchronousActivityCallback callback : callbacks) {
+				callback.fail("Interrupted while waiting for a script engine", e);
+			}
+			return null;
+		}
+		if (se == null) {
+			for (AsynchronousActivityCallback callback : callbacks) {
+				callback.fail("Unable to find script engine");
+			}
+		}
+		return se;
+	}
+
+	/**
+	 * Returns the key under which the outputs of an invocation are kept in
+	 * the {@link ScriptOutputCache}.
+	 * 
+	 * @return the key, or <code>null</code> if the script is not
+	 *         deterministic or the invocation cannot be cached
+	 */
+	protected String getOutputCacheKey(Map<String, T2Reference> data) {
+		if (!configurationBean.isDeterministic()) {
+			return null;
+		}
+		ScriptEngineDescriptor descriptor = ScriptEngineRegistry.getInstance().getByEngineName(
+				configurationBean.getEngineName());
+		if (descriptor == null) {
+			return null;
+		}
+		ScriptTemplateFile template = templateFile;
+		try {
+			if (velocity && (template == null ? scriptLoadsOtherFiles : template.loadsOtherFiles())) {
+				// changes to the files it loads would not change the key
+				return null;
+			}
+		} catch (IOException e) {
+			// reported when the template is run
+			return null;
+		}
+		ScriptExecutionPlan plan = executionPlan;
+		return ScriptOutputCache.key(getScriptFingerprint(descriptor), configurationBean
+				.getTemplateFile(), plan, getCapturedOutputs(plan), data);
+	}
+
+	private Map<String, T2Reference> getCachedOutputs(String outputCacheKey,
+			ReferenceService referenceService, ReferenceContext context) {
+		try {
+			return ScriptOutputCache.getInstance().get(outputCacheKey, referenceService, context);
+		} catch (ReferenceServiceException e) {
+			logger.warn("Ignoring unusable cached outputs of " + this, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Runs an invocation on the threads chosen by the configured
+	 * {@link ScriptExecutionMode}.
+	 */
+	void dispatch(Runnable invocation, AsynchronousActivityCallback callback) {
+		ScriptExecutionMode executionMode = configurationBean.getExecutionMode();
+		if (executionMode == ScriptExecutionMode.DEDICATED) {
+			ScriptActivityExecutor.getInstance().execute(invocation, callback);
+		} else if (executionMode == ScriptExecutionMode.VIRTUAL) {
+			ScriptActivityExecutor.getInstance().executeVirtual(invocation, callback);
+		} else {
+			callback.requestRun(invocation);
+		}
+	}
+
+	/**
+	 * Returns the engine to its provider, or invalidates it if the script was
+	 * stopped at its deadline and may have left it in an unknown state.
+	 */
+	private void releaseEngine(ScriptEngineProvider engineProvider, ScriptEngine se,
+			ScriptDeadline deadline) {
+		if (deadline != null && deadline.finish()) {
+			logger.warn("Discarding engine of " + this + " after a script timed out");
+			engineProvider.invalidateEngine(se);
+		} else {
+			engineProvider.releaseEngine(se);
+		}
+	}
+
+	/**
+	 * Runs the configured script, or template file, in the given context.
+	 */
+	protected void evaluate(ScriptEngine se, ScriptContext context)
+			throws ScriptException, IOException {
+		ScriptTemplateFile template = templateFile;
+		ScriptEngineDescriptor descriptor = ScriptEngineRegistry.getInstance().getByEngineName(configurationBean.getEngineName());
+		if (template == null) {
+			if (CompiledScriptCache.isCacheable(se, descriptor)) {
+				CompiledScript compiledScript = CompiledScriptCache.getInstance().getCompiledScript(
+						getScriptFingerprint(descriptor), se, configurationBean.getScript());
+				compiledScript.eval(context);
+			} else {
+				se.eval(configurationBean.getScript(), context);
+			}
+		} else if (se instanceof VelocityScriptEngine) {
+			// the Velocity engine caches the parsed template itself
+			((VelocityScriptEngine) se).evalFile(template.getFileName(),
+					template.getCheckInterval(), context);
+		} else {
+			String script = template.getScript();
+			if (CompiledScriptCache.isCacheable(se, descriptor)) {
+				CompiledScript compiledScript = CompiledScriptCache.getInstance().getCompiledScript(
+						CompiledScriptCache.fingerprint(descriptor.getEngineName(),
+								descriptor.getEngineVersion(), script), se, script);
+				compiledScript.eval(context);
+			} else {
+				se.eval(script, context);
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the script once for a batch of iteration items.
+	 * <p>
+	 * Each input variable is bound to a list holding the value of every item
+	 * in the batch, in order, with <code>null</code> for items without a
+	 * value. STDIN is bound the same way rather than read. The script must set
+	 * each output variable to a list or array with one value per item and
+	 * write {@value #BATCH_SEPARATOR} after, or between, the STDOUT records of
+	 * the items. If the script fails, or its outputs do not match the batch,
+	 * every item in the batch fails.
+	 */
+	void runBatch(List<ScriptBatchCollector.BatchItem> batch) {
+		batch = returnCachedOutputs(batch);
+		if (batch.isEmpty()) {
+			return;
+		}
+		List<AsynchronousActivityCallback> callbacks = new ArrayList<AsynchronousActivityCallback>();
+		for (ScriptBatchCollector.BatchItem item : batch) {
+			callbacks.add(item.callback);
+		}
+		ScriptEngineProvider engineProvider = getEngineProvider();
+		ScriptEngine se = acquireEngine(engineProvider, callbacks);
+		if (se == null) {
+			return;
+		}
+		ScriptDeadline deadline = ScriptDeadline.start(configurationBean.getExecutionTimeout(),
+				callbacks, engineProvider, se);
+		try {
+			runBatch(se, batch, deadline);
+		} finally {
+			releaseEngine(engineProvider, se, deadline);
+		}
+	}
+
+	/**
+	 * Returns the outputs of the items a deterministic script has already
+	 * run on from the {@link ScriptOutputCache}, and sets the cache key of
+	 * the others. The STDERR of a batch is shared by all its items, so
+	 * outputs are only cached in batch mode if STDERR is not captured.
+	 * 
+	 * @return the items still to be run
+	 */
+	private List<ScriptBatchCollector.BatchItem> returnCachedOutputs(
+			List<ScriptBatchCollector.BatchItem> batch) {
+		if (!configurationBean.isDeterministic()
+				|| captures(getCapturedOutputs(getExecutionPlan()),
+						ScriptExecutionPlan.OutputSource.STDERR)) {
+			return batch;
+		}
+		List<ScriptBatchCollector.BatchItem> uncached = new ArrayList<ScriptBatchCollector.BatchItem>(
+				batch.size());
+		for (ScriptBatchCollector.BatchItem item : batch) {
+			item.outputCacheKey = getOutputCacheKey(item.data);
+			if (item.outputCacheKey != null) {
+				Map<String, T2Reference> cachedOutputs = getCachedOutputs(item.outputCacheKey,
+						item.callback.getContext().getReferenceService(), item.callback.getContext());
+				if (cachedOutputs != null) {
+					item.callback.receiveResult(cachedOutputs, new int[0]);
+					continue;
+				}
+			}
+			uncached.add(item);
+		}
+		return uncached;
+	}
+
+	private void runBatch(ScriptEngine se, List<ScriptBatchCollector.BatchItem> batch,
+			ScriptDeadline deadline) {
+		ScriptExecutionPlan plan = getExecutionPlan();
+		// render the inputs, leaving out items that fail
+		List<ScriptBatchCollector.BatchItem> items = new ArrayList<ScriptBatchCollector.BatchItem>();
+		List<Map<String, Object>> itemInputs = new ArrayList<Map<String, Object>>();
+		Set<String> inputNames = new HashSet<String>();
+		for (ScriptBatchCollector.BatchItem item : batch) {
+			Map<String, Object> inputs = renderBatchInputs(plan, item);
+			if (inputs != null) {
+				items.add(item);
+				itemInputs.add(inputs);
+				inputNames.addAll(inputs.keySet());
+			}
+		}
+		if (items.isEmpty()) {
+			return;
+		}
+		int size = items.size();
+
+		ScriptContext context = new ScriptInvocationContext(se);
+		Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+		for (String inputName : inputNames) {
+			List<Object> values = new ArrayList<Object>(size);
+			for (Map<String, Object> inputs : itemInputs) {
+				values.add(inputs.get(inputName));
+			}
+			bindings.put(inputName, values);
+		}
+		bindings.put(BATCH_SIZE, size);
+		bindings.put(BATCH_SEPARATOR, DEFAULT_BATCH_SEPARATOR);
+		List<ScriptExecutionPlan.OutputBinding> outputs = getCapturedOutputs(plan);
+		// large outputs are kept in files rather than in memory, as for single items
+		SpillingWriter stdOutWriter = captures(outputs, ScriptExecutionPlan.OutputSource.STDOUT)
+				? new SpillingWriter() : null;
+		// stack traces reported by the engine are only formatted if STDERR is read
+		SpillingWriter stdErrWriter = captures(outputs, ScriptExecutionPlan.OutputSource.STDERR)
+				? new SpillingWriter() : null;
+		context.setReader(new StringReader(""));
+		context.setErrorWriter(stdErrWriter == null ? new DiscardingWriter() : stdErrWriter);
+		context.setWriter(stdOutWriter == null ? new DiscardingWriter() : stdOutWriter);
+		List<List<?>> outputValues = new ArrayList<List<?>>(outputs.size());
+		boolean outputsRegistered = false;
+		try {
+			try {
+				evaluate(se, context);
+			} catch (IOException e) {
+				logger.error(e);
+				failBatch(items, "Error reading template file "
+						+ configurationBean.getTemplateFile(), e);
+				return;
+			}
+
+			// split the outputs between the items
+			for (ScriptExecutionPlan.OutputBinding output : outputs) {
+				List<?> values;
+				switch (output.getSource()) {
+				case STDOUT:
+					values = splitBatchOutput(stdOutWriter, size);
+					break;
+				case STDERR:
+					// stored once, with its reference returned to every item
+					values = Collections.nCopies(size, new ScriptOutputRegistrar.SharedOutput(
+							stdErrWriter.getValue(), size));
+					break;
+				default:
+					values = toBatchValues(bindings.get(output.getName()), size);
+				}
+				if (values == null) {
+					failBatch(items, "Output " + output.getName() + " does not hold one value for each of the "
+							+ size + " items in the batch", null);
+					return;
+				}
+				outputValues.add(values);
+			}
+			List<ScriptOutputRegistrar.PendingResult> results = new ArrayList<ScriptOutputRegistrar.PendingResult>(size);
+			for (int i = 0; i < size; i++) {
+				Object[] values = new Object[outputs.size()];
+				for (int j = 0; j < values.length; j++) {
+					values[j] = outputValues.get(j).get(i);
+				}
+				results.add(newPendingResult(items.get(i).callback, outputs, values,
+						items.get(i).outputCacheKey));
+			}
+			// the whole batch is registered in one step, off this thread
+			ScriptOutputRegistrar.getInstance().register(results);
+			outputsRegistered = true;
+		} catch (ScriptException e) {
+			if (deadline != null && deadline.isExpired()) {
+				// the watchdog has already failed the batch
+				return;
+			}
+			logger.error(e);
+			failBatch(items, "Line " + e.getLineNumber() + ": " + e.getMessage(), e);
+		} catch (IOException e) {
+			logger.error(e);
+			failBatch(items, "Error writing the output of " + this, e);
+		} finally {
+			// the STDOUT of the whole batch has been copied to the records of its items
+			if (stdOutWriter != null) {
+				stdOutWriter.discard();
+			}
+			if (!outputsRegistered) {
+				if (stdErrWriter != null) {
+					stdErrWriter.discard();
+				}
+				deleteSpilledOutputs(outputValues);
+			}
+		}
+	}
+
+	/**
+	 * @return the outputs of an invocation, put in the
+	 *         {@link ScriptOutputCache} once registered if a cache key is
+	 *         given
+	 */
+	private ScriptOutputRegistrar.PendingResult newPendingResult(
+			AsynchronousActivityCallback callback,
+			List<ScriptExecutionPlan.OutputBinding> outputs, Object[] values,
+			final String outputCacheKey) {
+		return new ScriptOutputRegistrar.PendingResult(callback, outputs, values, toString()) {
+			@Override
+			protected void registered(Map<String, T2Reference> outputData) {
+				if (outputCacheKey != null) {
+					ScriptOutputCache.getInstance().put(outputCacheKey, outputData);
+				}
+			}
+		};
+	}
+
+	private static void deleteSpilledOutputs(List<List<?>> outputValues) {
+		for (List<?> values : outputValues) {
+			for (Object value : values) {
+				if (value instanceof SpillingWriter.SpilledOutput) {
+					((SpillingWriter.SpilledOutput) value).delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the rendered inputs of the item by variable name, or
+	 *         <code>null</code> if the item has been failed
+	 */
+	private Map<String, Object> renderBatchInputs(ScriptExecutionPlan plan,
+			ScriptBatchCollector.BatchItem item) {
+		AsynchronousActivityCallback callback = item.callback;
+		ReferenceService referenceService = callback.getContext().getReferenceService();
+		Map<String, Object> inputs = new HashMap<String, Object>();
+		try {
+			for (Map.Entry<String, T2Reference> entry : item.data.entrySet()) {
+				ScriptExecutionPlan.InputBinding input = plan.getInput(entry.getKey());
+				if (input == null) {
+					callback.fail("Unexpected data for port " + entry.getKey());
+					return null;
+				}
+				Object value = referenceService.renderIdentifier(entry.getValue(),
+						input.getTranslatedElementClass(), callback.getContext());
+				if (input.getEscaping() != null) {
+					value = input.getEscaping().parse(value);
+				}
+				inputs.put(input.getVariableName(), value);
+			}
+		} catch (ReferenceServiceException e) {
+			logger.error(e);
+			callback.fail("Error accessing input/output data for " + this);
+			return null;
+		}
+		return inputs;
+	}
+
+	/**
+	 * Splits the STDOUT of a batch into one record per item, each kept in
+	 * memory or spilled to its own file like the STDOUT of a single item.
+	 * 
+	 * @return the records, or <code>null</code> if there is not one per item
+	 */
+	private static List<Object> splitBatchOutput(SpillingWriter stdOutWriter, int size)
+			throws IOException {
+		Object output = stdOutWriter.getValue();
+		Reader reader = output instanceof SpillingWriter.SpilledOutput ? ((SpillingWriter.SpilledOutput) output)
+				.newReader() : new StringReader((String) output);
+		try {
+			return splitBatchOutput(reader, size);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Splits the STDOUT of a batch into one record per item. A batch that
+	 * writes nothing gives every item an empty record.
+	 * 
+	 * @return the records, each a <code>String</code> or a spilled file, or
+	 *         <code>null</code> if there is not one per item
+	 */
+	static List<Object> splitBatchOutput(Reader output, int size) throws IOException {
+		char separator = DEFAULT_BATCH_SEPARATOR.charAt(0);
+		List<SpillingWriter> records = new ArrayList<SpillingWriter>();
+		List<Object> values = null;
+		try {
+			SpillingWriter record = new SpillingWriter();
+			records.add(record);
+			char[] chars = new char[8192];
+			int read;
+			while ((read = output.read(chars)) >= 0) {
+				int start = 0;
+				for (int i = 0; i < read; i++) {
+					if (chars[i] == separator) {
+						if (records.size() > size) {
+							// only a trailing separator may follow the last record
+							return null;
+						}
+						record.write(chars, start, i - start);
+						record = new SpillingWriter();
+						records.add(record);
+						start = i + 1;
+					}
+				}
+				record.write(chars, start, read - start);
+			}
+			if (records.size() == 1 && record.isEmpty()) {
+				values = new ArrayList<Object>(Collections.nCopies(size, ""));
+				return values;
+			}
+			if (records.size() == size + 1 && record.isEmpty()) {
+				records.remove(size).discard();
+			}
+			if (records.size() != size) {
+				return null;
+			}
+			List<Object> recordValues = new ArrayList<Object>(size);
+			for (SpillingWriter recordWriter : records) {
+				recordValues.add(recordWriter.getValue());
+			}
+			values = recordValues;
+			return values;
+		} finally {
+			if (values == null) {
+				for (SpillingWriter record : records) {
+					record.discard();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the value of a batch output variable as a list, or
+	 *         <code>null</code> if it does not hold one value per item
+	 */
+	private static List<?> toBatchValues(Object value, int size) {
+		List<?> values;
+		if (value == null) {
+			return Collections.nCopies(size, null);
+		} else if (value instanceof List<?>) {
+			values = (List<?>) value;
+		} else if (value instanceof Object[]) {
+			values = Arrays.asList((Object[]) value);
+		} else {
+			return null;
+		}
+		return values.size() == size ? values : null;
+	}
+
+	private void failBatch(List<ScriptBatchCollector.BatchItem> items, String message, Throwable cause) {
+		for (ScriptBatchCollector.BatchItem item : items) {
+			if (cause == null) {
+				item.callback.fail(message);
+			} else {
+				item.callback.fail(message, cause);
 			}
 		}
-		return null;
 	}
 
 	@Override
 	public void executeAsynch(final Map<String, T2Reference> data,
-			final AsynchronousActivityCallback callback) {
-		callback.requestRun(new Runnable() {
+			AsynchronousActivityCallback activityCallback) {
+		// only the first result is returned, so a script that finishes after
+		// timing out cannot return a second one
+		final AsynchronousActivityCallback callback = new OnceOnlyCallback(activityCallback);
+		ScriptBatchCollector collector = batchCollector;
+		if (collector != null) {
+			collector.add(data, callback);
+			return;
+		}
+		dispatch(new Runnable() {
+
+			private String outputCacheKey;
 
 			public void run() {
-				
-				ScriptEngine se = ScriptEngineUtils.getScriptEngine(configurationBean.getEngineName());
+				outputCacheKey = getOutputCacheKey(data);
+				if (outputCacheKey != null) {
+					// a deterministic script has run on these inputs before
+					Map<String, T2Reference> cachedOutputs = getCachedOutputs(outputCacheKey,
+							callback.getContext().getReferenceService(), callback.getContext());
+					if (cachedOutputs != null) {
+						callback.receiveResult(cachedOutputs, new int[0]);
+						return;
+					}
+				}
+				ScriptEngineProvider engineProvider = getEngineProvider();
+				ScriptEngine se = acquireEngine(engineProvider, Collections.singletonList(callback));
 				if (se == null) {
-					callback.fail("Unable to find script engine");
 					return;
 				}
+				ScriptDeadline deadline = ScriptDeadline.start(configurationBean.getExecutionTimeout(),
+						Collections.singletonList(callback), engineProvider, se);
+				try {
+					run(se, deadline);
+				} finally {
+					releaseEngine(engineProvider, se, deadline);
+				}
+			}
+
+			private void run(ScriptEngine se, ScriptDeadline deadline) {
 					
+					ScriptExecutionPlan plan = getExecutionPlan();
 					ReferenceService referenceService = callback.getContext().getReferenceService();
 	
-					Map<String, T2Reference> outputData = new HashMap<String, T2Reference>();
-					
-					ScriptContext context = se.getContext();
-					Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+					// each invocation has its own bindings, so nothing is carried over
+					// from earlier items and other threads can use the same engine
+					ScriptContext context = new ScriptInvocationContext(se);
+					// inputs are only rendered if the script reads them
+					LazyInputBindings bindings = new LazyInputBindings(context
+							.getBindings(ScriptContext.ENGINE_SCOPE), referenceService,
+							callback.getContext());
+					context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
 	
 					Reader stdInReader = new StringReader("");
-					StringWriter stdOutWriter = new StringWriter();
-					StringWriter stdErrWriter = new StringWriter();
+					// nothing is kept of STDOUT or STDERR if they are not connected, and
+					// large outputs are kept in files rather than in memory
+					List<ScriptExecutionPlan.OutputBinding> outputs = getCapturedOutputs(plan);
+					SpillingWriter stdOutWriter = captures(outputs, ScriptExecutionPlan.OutputSource.STDOUT)
+							? new SpillingWriter() : null;
+					// stack traces reported by the engine are only formatted if STDERR is read
+					SpillingWriter stdErrWriter = captures(outputs, ScriptExecutionPlan.OutputSource.STDERR)
+							? new SpillingWriter() : null;
+					boolean outputsRegistered = false;
 					try {
 						// set inputs
-						for (String inputName : data.keySet()) {
+						for (Map.Entry<String, T2Reference> entry : data.entrySet()) {
 
-							ActivityInputPort inputPort = getInputPort(inputName);
-							if (inputPort == null) {
-								callback.fail("Unexpected data for port " + inputName);
+							ScriptExecutionPlan.InputBinding input = plan.getInput(entry.getKey());
+							if (input == null) {
+								callback.fail("Unexpected data for port " + entry.getKey());
 								return;
 							}
-							Object input = referenceService.renderIdentifier(data
-									.get(inputName), inputPort
-									.getTranslatedElementClass(), callback
-									.getContext());
-							inputName = sanatisePortName(inputName);
-							if (inputName.equals(STDIN)) {
-								stdInReader = new StringReader((String) input);
+							if (input.isStdIn()) {
+								// stream from the stored value where possible rather than
+								// holding all of it in memory
+								stdInReader = ReferenceReader.newReader(referenceService,
+										entry.getValue(), callback.getContext());
+								if (stdInReader == null) {
+									Object value = referenceService.renderIdentifier(entry
+											.getValue(), input.getTranslatedElementClass(),
+											callback.getContext());
+									stdInReader = new StringReader((String) value);
+								}
 							} else {
-								ScriptEscapingType escaping = getConfiguration().getInputEscaping(inputName);
-								bindings.put(inputName, escaping.parse(input));
+								bindings.putReference(input.getVariableName(), entry.getValue(),
+										input.getTranslatedElementClass(), input.getEscaping());
 							}
 						}
 						context.setReader(stdInReader);
-						context.setErrorWriter(stdErrWriter);
-						context.setWriter(stdOutWriter);
+						context.setErrorWriter(stdErrWriter == null ? new DiscardingWriter() : stdErrWriter);
+						context.setWriter(stdOutWriter == null ? new DiscardingWriter() : stdOutWriter);
 						// run
-						se.eval(configurationBean.getScript(), context);
+						evaluate(se, context);
 						// get outputs
-						for (OutputPort outputPort : getOutputPorts()) {
-							String name = outputPort.getName();
-							Object value;
-							if (name.equals(STDOUT)) {
-								value = stdOutWriter.toString();
-							} else if (name.equals(STDERR)) {
-								value = stdErrWriter.toString();
-							} else {
-								value = bindings.get(name);
-							}
-							if (value == null) {
-								ErrorDocumentService errorDocService = referenceService.getErrorDocumentService();
-								value = errorDocService.registerError("No value produced for output variable " + name, 
-										outputPort.getDepth(), callback.getContext());
+						Object[] values = new Object[outputs.size()];
+						try {
+							for (int i = 0; i < values.length; i++) {
+								ScriptExecutionPlan.OutputBinding output = outputs.get(i);
+								switch (output.getSource()) {
+								case STDOUT:
+									values[i] = stdOutWriter.getValue();
+									break;
+								case STDERR:
+									values[i] = stdErrWriter.getValue();
+									break;
+								default:
+									values[i] = bindings.get(output.getName());
+								}
 							}
-							outputData.put(name, referenceService.register(value,
-									outputPort.getDepth(), true, callback
-											.getContext()));
+						} catch (IOException e) {
+							logger.error(e);
+							callback.fail("Error writing the output of " + ScriptActivity.this, e);
+							return;
 						}
-						callback.receiveResult(outputData, new int[0]);
+						// outputs are registered off this thread so that it can run the next script
+						ScriptOutputRegistrar.getInstance().register(Collections.singletonList(
+								newPendingResult(callback, outputs, values, outputCacheKey)));
+						outputsRegistered = true;
 					} catch (ScriptException e) {
+						if (deadline != null && deadline.isExpired()) {
+							// the watchdog has already failed the invocation
+							return;
+						}
 						logger.error(e);
+						if (e.getCause() instanceof ReferenceServiceException) {
+							// an input read by the script could not be rendered
+							callback.fail("Error accessing input/output data for " + ScriptActivity.this, e.getCause());
+							return;
+						}
 						try {
 							int lineNumber = e.getLineNumber();
 						
@@ -203,33 +880,36 @@ public class ScriptActivity extends
 							callback.fail(e2.getMessage());
 						}
 					} catch (ReferenceServiceException e) {
+						if (deadline != null && deadline.isExpired()) {
+							// the interrupt stopped reading an input, and the
+							// watchdog has already failed the invocation
+							return;
+						}
 						logger.error(e);
 						callback.fail(
-								"Error accessing input/output data for " + this);
-					}
-			}
-			
-			/**
-			 * Removes any invalid characters from the port name.
-			 * For example, xml-text would become xmltext.
-			 * 
-			 * 
-			 * @param name
-			 * @return
-			 */
-			private String sanatisePortName(String name) {
-				String result=name;
-				if (Pattern.matches("\\w++", name) == false) {
-					result="";
-					for (char c : name.toCharArray()) {
-						if (Character.isLetterOrDigit(c) || c=='_') {
-							result+=c;
+								"Error accessing input/output data for " + ScriptActivity.this);
+					} catch (IOException e) {
+						logger.error(e);
+						callback.fail("Error reading template file "
+								+ configurationBean.getTemplateFile(), e);
+					} finally {
+						try {
+							stdInReader.close();
+						} catch (IOException e) {
+							logger.warn("Unable to close STDIN of " + ScriptActivity.this, e);
+						}
+						if (!outputsRegistered) {
+							if (stdOutWriter != null) {
+								stdOutWriter.discard();
+							}
+							if (stdErrWriter != null) {
+								stdErrWriter.discard();
+							}
 						}
 					}
-				}
-				return result;
 			}
-		});
+			
+		}, callback);
 
 	}
 
@@ -39,12 +39,36 @@ public class ScriptActivityConfigurationBean extends DependencyActivityConfigura
 	
 	private static final String DEFAULT_ENGINE_NAME = "velocity";
 	
+	private static final long DEFAULT_TEMPLATE_CHECK_INTERVAL = 1000;
+
+	private static final long DEFAULT_BATCH_TIMEOUT = 100;
+	
 	private String engineName;
 
 	private String script;
 	
 	private Map<String, ScriptEscapingType> inputEscaping;
 	
+	private ScriptEngineSharing engineSharing;
+	
+	private String templateFile;
+	
+	private long templateCheckInterval = DEFAULT_TEMPLATE_CHECK_INTERVAL;
+
+	private int batchSize;
+
+	private long batchTimeout = DEFAULT_BATCH_TIMEOUT;
+
+	private boolean discardStdOut;
+
+	private boolean discardStdErr;
+
+	private long executionTimeout;
+
+	private ScriptExecutionMode executionMode;
+
+	private boolean deterministic;
+	
 	public ScriptActivityConfigurationBean() {
 		super();
 		this.script = "";
@@ -119,5 +143,197 @@ public class ScriptActivityConfigurationBean extends DependencyActivityConfigura
 	public void setInputEscaping(Map<String, ScriptEscapingType> inputEscaping) {
 		this.inputEscaping = inputEscaping;
 	}
+
+	/**
+	 * @return how the script engine is shared between concurrent
+	 *         invocations, or <code>null</code> to decide from the engine's
+	 *         THREADING parameter
+	 */
+	public ScriptEngineSharing getEngineSharing() {
+		return engineSharing;
+	}
+
+	/**
+	 * @param engineSharing
+	 *            how the script engine is shared between concurrent
+	 *            invocations, or <code>null</code> to decide from the
+	 *            engine's THREADING parameter
+	 */
+	public void setEngineSharing(ScriptEngineSharing engineSharing) {
+		this.engineSharing = engineSharing;
+	}
+
+	/**
+	 * @return the file the script is read from instead of
+	 *         {@link #getScript()}, or <code>null</code> to run the script
+	 *         held in this bean
+	 */
+	public String getTemplateFile() {
+		return templateFile;
+	}
+
+	/**
+	 * @param templateFile
+	 *            the file the script is read from instead of
+	 *            {@link #getScript()}, or <code>null</code> to run the
+	 *            script held in this bean
+	 */
+	public void setTemplateFile(String templateFile) {
+		this.templateFile = templateFile;
+	}
+
+	/**
+	 * @return the minimum time in milliseconds between checks of the
+	 *         template file for modification
+	 */
+	public long getTemplateCheckInterval() {
+		return templateCheckInterval;
+	}
+
+	/**
+	 * @param templateCheckInterval
+	 *            the minimum time in milliseconds between checks of the
+	 *            template file for modification
+	 */
+	public void setTemplateCheckInterval(long templateCheckInterval) {
+		this.templateCheckInterval = templateCheckInterval;
+	}
+
+	/**
+	 * Returns the maximum number of iteration items evaluated together in one
+	 * script call. Values below 2 disable batching.
+	 * 
+	 * @return the batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the maximum number of iteration items evaluated together in one
+	 * script call. In batch mode each input variable is bound to a list with
+	 * one value per item and each output variable must be set to a list with
+	 * one value per item.
+	 * <p>
+	 * Items are only batched while an earlier batch of the activity is
+	 * running, so batches only grow if the processor's parallelize layer lets
+	 * more than one job run at once; its maxJobs should be at least the batch
+	 * size for batches to fill.
+	 * 
+	 * @param batchSize
+	 *            the batch size, or 0 to evaluate each item on its own
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return the maximum time in milliseconds an item waits for its batch
+	 *         to fill
+	 */
+	public long getBatchTimeout() {
+		return batchTimeout;
+	}
+
+	/**
+	 * @param batchTimeout
+	 *            the maximum time in milliseconds an item waits for its batch
+	 *            to fill before a smaller batch is evaluated
+	 */
+	public void setBatchTimeout(long batchTimeout) {
+		this.batchTimeout = batchTimeout;
+	}
+
+	/**
+	 * @return <code>true</code> if the script's standard output is thrown
+	 *         away and no STDOUT port is created
+	 */
+	public boolean isDiscardStdOut() {
+		return discardStdOut;
+	}
+
+	/**
+	 * @param discardStdOut
+	 *            <code>true</code> to throw away the script's standard output
+	 *            rather than returning it on the STDOUT port
+	 */
+	public void setDiscardStdOut(boolean discardStdOut) {
+		this.discardStdOut = discardStdOut;
+	}
+
+	/**
+	 * @return <code>true</code> if the script's error output is thrown away
+	 *         and no STDERR port is created
+	 */
+	public boolean isDiscardStdErr() {
+		return discardStdErr;
+	}
+
+	/**
+	 * @param discardStdErr
+	 *            <code>true</code> to throw away the script's error output
+	 *            rather than returning it on the STDERR port
+	 */
+	public void setDiscardStdErr(boolean discardStdErr) {
+		this.discardStdErr = discardStdErr;
+	}
+
+	/**
+	 * @return the time in milliseconds an invocation may run the script for,
+	 *         or 0 for no limit
+	 */
+	public long getExecutionTimeout() {
+		return executionTimeout;
+	}
+
+	/**
+	 * @param executionTimeout
+	 *            the time in milliseconds an invocation may run the script
+	 *            for before it is interrupted and fails, or 0 for no limit
+	 */
+	public void setExecutionTimeout(long executionTimeout) {
+		this.executionTimeout = executionTimeout;
+	}
+
+	/**
+	 * @return which threads run the invocations, or <code>null</code> for
+	 *         {@link ScriptExecutionMode#SHARED}
+	 */
+	public ScriptExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+
+	/**
+	 * @param executionMode
+	 *            which threads run the invocations
+	 */
+	public void setExecutionMode(ScriptExecutionMode executionMode) {
+		this.executionMode = executionMode;
+	}
+
+	/**
+	 * @return <code>true</code> if the script always produces the same
+	 *         outputs for the same inputs, so that its outputs can be reused
+	 */
+	public boolean isDeterministic() {
+		return deterministic;
+	}
+
+	/**
+	 * @param deterministic
+	 *            <code>true</code> if the script always produces the same
+	 *            outputs for the same inputs and has no side effects, so that
+	 *            invocations with inputs seen before can return the earlier
+	 *            outputs without running the script. Only self-contained
+	 *            scripts should be marked deterministic, as changes to files
+	 *            they read are not noticed; Velocity templates that
+	 *            <code>#parse</code> or <code>#include</code> other files are
+	 *            never cached. In batch mode outputs are only cached if
+	 *            STDERR is discarded, as a batch's STDERR is shared by all
+	 *            its items
+	 */
+	public void setDeterministic(boolean deterministic) {
+		this.deterministic = deterministic;
+	}
 	
 }
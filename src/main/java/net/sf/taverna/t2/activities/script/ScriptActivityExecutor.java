@@ -0,0 +1,293 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded executor that runs script invocations apart from the other
+ * activities of a workflow, so that CPU-heavy scripts cannot starve them.
+ * <p>
+ * At most {@link #getMaxThreads()} invocations run at once and at most
+ * {@link #getQueueCapacity()} wait to run. When the queue is full, an
+ * invocation is either run by the thread submitting it, holding up the
+ * workflow until the executor catches up, or fails straight away if the
+ * system property {@value #REJECTION_PROPERTY} is <code>fail</code>.
+ * <p>
+ * Invocations can also be run on virtual threads with
+ * {@link #executeVirtual(Runnable, AsynchronousActivityCallback)}, which
+ * are not limited by the thread count or queue.
+ * <p>
+ * The thread count and queue capacity can be changed with the system
+ * properties {@value #THREADS_PROPERTY} and {@value #QUEUE_SIZE_PROPERTY}.
+ */
+public class ScriptActivityExecutor {
+
+	public static final String THREADS_PROPERTY = "net.sf.taverna.t2.activities.script.executor.threads";
+
+	public static final String QUEUE_SIZE_PROPERTY = "net.sf.taverna.t2.activities.script.executor.queueSize";
+
+	public static final String REJECTION_PROPERTY = "net.sf.taverna.t2.activities.script.executor.rejection";
+
+	private static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	private static Logger logger = Logger.getLogger(ScriptActivityExecutor.class);
+
+	private static ScriptActivityExecutor instance;
+
+	private static ExecutorService virtualThreadExecutor;
+
+	private static boolean virtualThreadsChecked;
+
+	private final ThreadPoolExecutor executor;
+
+	private final int queueCapacity;
+
+	private final boolean failWhenFull;
+
+	private final AtomicLong submittedCount = new AtomicLong();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private final AtomicLong callerRunsCount = new AtomicLong();
+
+	private final AtomicLong startedCount = new AtomicLong();
+
+	private final AtomicLong totalWaitTime = new AtomicLong();
+
+	private final AtomicLong maxWaitTime = new AtomicLong();
+
+	protected ScriptActivityExecutor(int threads, int queueCapacity, boolean failWhenFull) {
+		this.queueCapacity = queueCapacity;
+		this.failWhenFull = failWhenFull;
+		final AtomicInteger threadCount = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "Script activity " + threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						rejected((Invocation) r);
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return the executor shared by all script activities, sized from the
+	 *         system properties
+	 */
+	public static synchronized ScriptActivityExecutor getInstance() {
+		if (instance == null) {
+			instance = new ScriptActivityExecutor(Integer.getInteger(THREADS_PROPERTY,
+					DEFAULT_THREADS), Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE),
+					"fail".equalsIgnoreCase(System.getProperty(REJECTION_PROPERTY)));
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns an executor that starts a new virtual thread for each task. The
+	 * executor is looked up reflectively, so that this class still runs on
+	 * Java versions without virtual threads.
+	 * 
+	 * @return the executor, or <code>null</code> if the runtime has no
+	 *         virtual threads
+	 */
+	public static synchronized ExecutorService getVirtualThreadExecutor() {
+		if (!virtualThreadsChecked) {
+			virtualThreadsChecked = true;
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				virtualThreadExecutor = (ExecutorService) factory.invoke(null);
+			} catch (Exception e) {
+				logger.info("Virtual threads are not available, using platform threads for script activities");
+			}
+		}
+		return virtualThreadExecutor;
+	}
+
+	/**
+	 * Runs an invocation on a new virtual thread, or on this executor if the
+	 * runtime has no virtual threads.
+	 * 
+	 * @param invocation
+	 *            the invocation
+	 * @param callback
+	 *            the callback failed if the invocation is rejected
+	 */
+	public void executeVirtual(Runnable invocation, AsynchronousActivityCallback callback) {
+		ExecutorService virtualThreads = getVirtualThreadExecutor();
+		if (virtualThreads == null) {
+			execute(invocation, callback);
+			return;
+		}
+		submittedCount.incrementAndGet();
+		try {
+			virtualThreads.execute(new Invocation(invocation, callback));
+		} catch (RejectedExecutionException e) {
+			rejectedCount.incrementAndGet();
+			callback.fail("Script activity could not be started", e);
+		}
+	}
+
+	/**
+	 * Runs an invocation when a thread is free.
+	 * 
+	 * @param invocation
+	 *            the invocation
+	 * @param callback
+	 *            the callback failed if the invocation is rejected
+	 */
+	public void execute(Runnable invocation, AsynchronousActivityCallback callback) {
+		submittedCount.incrementAndGet();
+		executor.execute(new Invocation(invocation, callback));
+	}
+
+	private void rejected(Invocation invocation) {
+		if (failWhenFull || executor.isShutdown()) {
+			rejectedCount.incrementAndGet();
+			invocation.callback.fail("Script activity queue is full",
+					new RejectedExecutionException());
+		} else {
+			// backpressure: hold up the submitting thread until the work is done
+			callerRunsCount.incrementAndGet();
+			invocation.run();
+		}
+	}
+
+	/**
+	 * @return the maximum number of invocations run at once
+	 */
+	public int getMaxThreads() {
+		return executor.getMaximumPoolSize();
+	}
+
+	/**
+	 * @return the maximum number of invocations waiting to run
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @return the number of invocations waiting to run
+	 */
+	public int getQueueLength() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return the number of invocations running
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * @return the total number of invocations submitted
+	 */
+	public long getSubmittedCount() {
+		return submittedCount.get();
+	}
+
+	/**
+	 * @return the number of invocations failed because the queue was full
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return the number of invocations run by the submitting thread because
+	 *         the queue was full
+	 */
+	public long getCallerRunsCount() {
+		return callerRunsCount.get();
+	}
+
+	/**
+	 * @return the mean time in milliseconds invocations waited to start
+	 */
+	public double getAverageWaitTime() {
+		long started = startedCount.get();
+		return started == 0 ? 0 : totalWaitTime.get() / (double) started;
+	}
+
+	/**
+	 * @return the longest time in milliseconds an invocation waited to start
+	 */
+	public long getMaxWaitTime() {
+		return maxWaitTime.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ScriptActivityExecutor[threads=" + getMaxThreads() + ", active="
+				+ getActiveCount() + ", queued=" + getQueueLength() + "/" + queueCapacity
+				+ ", rejected=" + getRejectedCount() + "]";
+	}
+
+	private final class Invocation implements Runnable {
+
+		private final Runnable invocation;
+
+		private final AsynchronousActivityCallback callback;
+
+		private final long submitted = System.currentTimeMillis();
+
+		private Invocation(Runnable invocation, AsynchronousActivityCallback callback) {
+			this.invocation = invocation;
+			this.callback = callback;
+		}
+
+		public void run() {
+			long waitTime = System.currentTimeMillis() - submitted;
+			startedCount.incrementAndGet();
+			totalWaitTime.addAndGet(waitTime);
+			long max;
+			while (waitTime > (max = maxWaitTime.get())
+					&& !maxWaitTime.compareAndSet(max, waitTime)) {
+				// retry
+			}
+			invocation.run();
+		}
+	}
+}
@@ -50,7 +50,7 @@ public class ScriptActivityHealthChecker implements HealthChecker<ScriptActivity
 		List<VisitReport> reports = new ArrayList<VisitReport>();
 		
 		String engineName = activity.getConfiguration().getEngineName();
-		if (ScriptEngineUtils.getScriptEngine(engineName) == null) {
+		if (ScriptEngineRegistry.refreshIfChanged().getByEngineName(engineName) == null) {
 			VisitReport report = new VisitReport(HealthCheck.getInstance(), subject , "Unknown script language", HealthCheck.INVALID_SCRIPT, Status.SEVERE);
 		    reports.add(report);
 		}
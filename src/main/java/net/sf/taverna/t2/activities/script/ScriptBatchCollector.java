@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchErrorType;
+
+/**
+ * Collects the iteration items of a {@link ScriptActivity} in batch mode.
+ * <p>
+ * A batch is handed to the activity as soon as it holds
+ * {@link ScriptActivityConfigurationBean#getBatchSize()} items, as soon as no
+ * other batch of the activity is running, or when its first item has waited
+ * for {@link ScriptActivityConfigurationBean#getBatchTimeout()} milliseconds.
+ * Items that arrive while a batch runs are handed on together once it
+ * finishes. Batches therefore only grow when the processor passes on several
+ * items at once, as it does when its parallelize layer allows more than one
+ * job; with a single job every item runs on its own straight away instead of
+ * waiting for a batch that cannot fill. A batch is run on the same threads as
+ * unbatched invocations, and if it cannot be started every item in it fails.
+ */
+class ScriptBatchCollector {
+
+	private static final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Script activity batch timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final ScriptActivity activity;
+
+	private final int batchSize;
+
+	private final long batchTimeout;
+
+	private List<BatchItem> pending = new ArrayList<BatchItem>();
+
+	private ScheduledFuture<?> timeout;
+
+	/**
+	 * The number of batches handed to the activity that have not finished
+	 */
+	private int running;
+
+	ScriptBatchCollector(ScriptActivity activity, int batchSize, long batchTimeout) {
+		this.activity = activity;
+		this.batchSize = batchSize;
+		this.batchTimeout = batchTimeout;
+	}
+
+	/**
+	 * Adds an item to the pending batch, running the batch if it is now full
+	 * or no other batch is running.
+	 */
+	void add(Map<String, T2Reference> data, AsynchronousActivityCallback callback) {
+		List<BatchItem> batch = null;
+		synchronized (this) {
+			pending.add(new BatchItem(data, callback));
+			if (pending.size() >= batchSize || running == 0) {
+				// with no batch running, nothing would take the item along sooner
+				batch = takePending();
+			} else if (timeout == null) {
+				timeout = timer.schedule(new Runnable() {
+					public void run() {
+						flush();
+					}
+				}, batchTimeout, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (batch != null) {
+			submit(batch);
+		}
+	}
+
+	/**
+	 * Runs the pending items, if any, without waiting for the batch to fill.
+	 */
+	void flush() {
+		List<BatchItem> batch;
+		synchronized (this) {
+			batch = takePending();
+		}
+		if (!batch.isEmpty()) {
+			submit(batch);
+		}
+	}
+
+	/**
+	 * @return the number of items waiting for their batch to be run
+	 */
+	synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the number of batches handed to the activity that have not
+	 *         finished
+	 */
+	synchronized int getRunningCount() {
+		return running;
+	}
+
+	private List<BatchItem> takePending() {
+		List<BatchItem> batch = pending;
+		pending = new ArrayList<BatchItem>();
+		if (timeout != null) {
+			timeout.cancel(false);
+			timeout = null;
+		}
+		if (!batch.isEmpty()) {
+			running++;
+		}
+		return batch;
+	}
+
+	private void submit(List<BatchItem> batch) {
+		final BatchCallback callback = new BatchCallback(batch);
+		activity.dispatch(new Runnable() {
+			public void run() {
+				try {
+					activity.runBatch(callback.batch);
+				} finally {
+					callback.finished();
+				}
+			}
+		}, callback);
+	}
+
+	/**
+	 * Runs the items that arrived while a batch was running.
+	 */
+	private void batchFinished() {
+		List<BatchItem> batch;
+		synchronized (this) {
+			running--;
+			batch = takePending();
+		}
+		if (!batch.isEmpty()) {
+			submit(batch);
+		}
+	}
+
+	/**
+	 * The callback a batch is dispatched with, which fails every item if the
+	 * batch cannot be started.
+	 */
+	private final class BatchCallback implements AsynchronousActivityCallback {
+
+		private final List<BatchItem> batch;
+
+		private final AtomicBoolean finished = new AtomicBoolean();
+
+		private BatchCallback(List<BatchItem> batch) {
+			this.batch = batch;
+		}
+
+		private void finished() {
+			if (finished.compareAndSet(false, true)) {
+				batchFinished();
+			}
+		}
+
+		public InvocationContext getContext() {
+			return batch.get(0).callback.getContext();
+		}
+
+		public void requestRun(Runnable runnable) {
+			batch.get(0).callback.requestRun(runnable);
+		}
+
+		public String getParentProcessIdentifier() {
+			return batch.get(0).callback.getParentProcessIdentifier();
+		}
+
+		public void receiveResult(Map<String, T2Reference> data, int[] index) {
+			// each item returns its own results
+		}
+
+		public void receiveCompletion(int[] completionIndex) {
+			// each item completes on its own
+		}
+
+		public void fail(String message, Throwable t, DispatchErrorType errorType) {
+			for (BatchItem item : batch) {
+				item.callback.fail(message, t, errorType);
+			}
+			finished();
+		}
+
+		public void fail(String message, Throwable t) {
+			for (BatchItem item : batch) {
+				item.callback.fail(message, t);
+			}
+			finished();
+		}
+
+		public void fail(String message) {
+			for (BatchItem item : batch) {
+				item.callback.fail(message);
+			}
+			finished();
+		}
+	}
+
+	/**
+	 * The input data of one iteration item and the callback its results are
+	 * returned to.
+	 */
+	static final class BatchItem {
+
+		final Map<String, T2Reference> data;
+
+		final AsynchronousActivityCallback callback;
+
+		/**
+		 * The key the item's outputs are cached under, set by the activity
+		 * before the batch is run, or <code>null</code>
+		 */
+		String outputCacheKey;
+
+		BatchItem(Map<String, T2Reference> data, AsynchronousActivityCallback callback) {
+			this.data = data;
+			this.callback = callback;
+		}
+	}
+}
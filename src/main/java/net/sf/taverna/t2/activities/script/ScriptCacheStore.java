@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester
+ *
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.taverna.raven.appconfig.ApplicationRuntime;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A directory of artefacts that survive a restart, such as the entries of
+ * the {@link ScriptOutputCache} and compiled scripts of engines implementing
+ * {@link PersistableCompilable}, kept under the application home next to the
+ * <code>lib</code> directory.
+ * <p>
+ * Each artefact is one file holding a header, the SHA-256 digest of the
+ * payload and the payload itself; a file that fails the check, including one
+ * that is truncated, is deleted and treated as a miss. Files are written to a
+ * temporary name and renamed into place, so several JVMs sharing the
+ * directory never read a partial file. When the directory grows beyond its
+ * size cap the least recently used files are removed, under a file lock so
+ * that only one JVM prunes at a time, together with temporary files left
+ * behind by a JVM that died while writing. The directory is only listed for
+ * pruning on the first write and then whenever a tenth of the size cap has
+ * been written since it was last pruned.
+ */
+public class ScriptCacheStore {
+
+	public static final String MAX_SIZE_PROPERTY = "net.sf.taverna.t2.activities.script.cacheStore.maxSize";
+
+	private static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+	private static final int MAGIC = 0x54534331; // "TSC1"
+
+	private static final String SUFFIX = ".cache";
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final int DIGEST_LENGTH = 32;
+
+	/**
+	 * Temporary files older than this are no longer being written.
+	 */
+	private static final long TEMP_FILE_AGE = 60 * 60 * 1000;
+
+	private static final String LOCK_FILE = ".lock";
+
+	/**
+	 * The directory is pruned each time this fraction of the size cap has
+	 * been written.
+	 */
+	private static final int PRUNE_FRACTION = 10;
+
+	private static Logger logger = Logger.getLogger(ScriptCacheStore.class);
+
+	private static ScriptCacheStore instance;
+
+	private final File directory;
+
+	private final long maxSize;
+
+	/**
+	 * Bytes written since the directory was last pruned, or -1 before the
+	 * first write.
+	 */
+	private final AtomicLong unpruned = new AtomicLong(-1);
+
+	public ScriptCacheStore(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns the store in the application home directory, or
+	 * <code>null</code> if it has been disabled by setting
+	 * {@value #MAX_SIZE_PROPERTY} to 0.
+	 * 
+	 * @return the shared store, or <code>null</code>
+	 */
+	public static synchronized ScriptCacheStore getInstance() {
+		if (instance == null) {
+			long maxSize = Long.getLong(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE);
+			if (maxSize <= 0) {
+				return null;
+			}
+			File directory = new File(ApplicationRuntime.getInstance()
+					.getApplicationHomeDir(), "script-cache");
+			instance = new ScriptCacheStore(directory, maxSize);
+		}
+		return instance;
+	}
+
+	/**
+	 * Reads an artefact.
+	 * 
+	 * @param key
+	 *            a key made of hex digits, as from
+	 *            {@link CompiledScriptCache#fingerprint(String, String, String)}
+	 * @return the payload, or <code>null</code> if there is no valid
+	 *         artefact for the key
+	 */
+	public byte[] read(String key) {
+		File file = getFile(key);
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				if (in.readInt() != MAGIC) {
+					throw new IOException("Not a cache file");
+				}
+				if (in.readInt() != DIGEST_LENGTH) {
+					throw new IOException("Bad digest length");
+				}
+				byte[] digest = new byte[DIGEST_LENGTH];
+				in.readFully(digest);
+				int length = in.readInt();
+				// header, digest and payload length have been read
+				if (length < 0 || length > file.length() - 12 - DIGEST_LENGTH) {
+					throw new IOException("Bad payload length " + length);
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				if (!Arrays.equals(digest, digest(payload))) {
+					throw new IOException("Checksum mismatch");
+				}
+				file.setLastModified(System.currentTimeMillis());
+				return payload;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Discarding invalid cache file " + file, e);
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Writes an artefact, replacing any existing artefact for the key.
+	 * 
+	 * @param key
+	 *            a key made of hex digits
+	 * @param payload
+	 *            the artefact
+	 */
+	public void write(String key, byte[] payload) {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			logger.warn("Could not create cache directory " + directory);
+			return;
+		}
+		File tempFile = null;
+		try {
+			tempFile = File.createTempFile(key, TEMP_SUFFIX, directory);
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+			try {
+				byte[] digest = digest(payload);
+				out.writeInt(MAGIC);
+				out.writeInt(digest.length);
+				out.write(digest);
+				out.writeInt(payload.length);
+				out.write(payload);
+			} finally {
+				out.close();
+			}
+			File file = getFile(key);
+			if (!tempFile.renameTo(file)) {
+				// another JVM may hold the file open; its copy is as good as ours
+				logger.debug("Could not replace cache file " + file);
+			}
+		} catch (IOException e) {
+			logger.warn("Could not write cache file for " + key, e);
+		} finally {
+			if (tempFile != null && tempFile.exists()) {
+				tempFile.delete();
+			}
+		}
+		long written = unpruned.getAndAdd(payload.length);
+		if (written < 0 || written + payload.length >= maxSize / PRUNE_FRACTION) {
+			unpruned.set(0);
+			prune();
+		}
+	}
+
+	/**
+	 * Removes abandoned temporary files, then the least recently used
+	 * artefacts until the directory is within its size cap. Skipped if
+	 * another JVM is already pruning.
+	 */
+	protected void prune() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		long size = 0;
+		long now = System.currentTimeMillis();
+		for (File file : files) {
+			if (file.getName().endsWith(TEMP_SUFFIX)
+					&& now - file.lastModified() > TEMP_FILE_AGE && file.delete()) {
+				continue;
+			}
+			size += file.length();
+		}
+		if (size <= maxSize) {
+			return;
+		}
+		try {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+			try {
+				FileLock lock = lockFile.getChannel().tryLock();
+				if (lock == null) {
+					return;
+				}
+				try {
+					Arrays.sort(files, new Comparator<File>() {
+						public int compare(File f1, File f2) {
+							long m1 = f1.lastModified();
+							long m2 = f2.lastModified();
+							return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+						}
+					});
+					for (File file : files) {
+						if (size <= maxSize) {
+							break;
+						}
+						if (file.getName().endsWith(SUFFIX)) {
+							long length = file.length();
+							if (file.delete()) {
+								size -= length;
+							}
+						}
+					}
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Could not prune cache directory " + directory, e);
+		} catch (RuntimeException e) {
+			// OverlappingFileLockException if another thread of this JVM is pruning
+			logger.debug("Cache directory " + directory + " is already being pruned", e);
+		}
+	}
+
+	private File getFile(String key) {
+		return new File(directory, key + SUFFIX);
+	}
+
+	private static byte[] digest(byte[] payload) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(payload);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not supported", e);
+		}
+	}
+
+	/**
+	 * @return the directory artefacts are kept in
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the maximum total size of the directory in bytes
+	 */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+}
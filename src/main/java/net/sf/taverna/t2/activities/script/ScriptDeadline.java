@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.script.ScriptEngine;
+
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+/**
+ * The execution deadline of one script invocation.
+ * <p>
+ * When the deadline passes before {@link #finish()} is called, the watchdog
+ * fails the invocations with a timeout itself and then interrupts the thread
+ * running the script. The callbacks should be {@link OnceOnlyCallback}s, so
+ * that whatever the script returns later is dropped. Engines that check for
+ * interruption, such as the Velocity engine in its <code>#foreach</code>
+ * loops, then stop the script; a script in a loop the engine does not
+ * interrupt keeps its thread, but no longer holds up the workflow.
+ * {@link #finish()} clears the interrupt again, so the thread can go on to
+ * run other work. The engine running the script is reported to its provider
+ * as abandoned, and stays checked out until the script returns.
+ */
+final class ScriptDeadline {
+
+	private static final ScheduledExecutorService watchdog = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Script activity watchdog");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final Thread thread;
+
+	private final long timeout;
+
+	private final List<? extends AsynchronousActivityCallback> callbacks;
+
+	private final ScriptEngineProvider engineProvider;
+
+	private final ScriptEngine engine;
+
+	private final ScheduledFuture<?> expiry;
+
+	private boolean expired;
+
+	private boolean finished;
+
+	private ScriptDeadline(Thread thread, long timeout,
+			List<? extends AsynchronousActivityCallback> callbacks,
+			ScriptEngineProvider engineProvider, ScriptEngine engine) {
+		this.thread = thread;
+		this.timeout = timeout;
+		this.callbacks = callbacks;
+		this.engineProvider = engineProvider;
+		this.engine = engine;
+		expiry = watchdog.schedule(new Runnable() {
+			public void run() {
+				expire();
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts the deadline for a script run by the current thread.
+	 * 
+	 * @param timeout
+	 *            the time in milliseconds the script may run for
+	 * @param callbacks
+	 *            the callbacks of the invocations the script runs for, failed
+	 *            when the deadline passes
+	 * @return the deadline, or <code>null</code> if the timeout is not
+	 *         positive
+	 */
+	static ScriptDeadline start(long timeout,
+			List<? extends AsynchronousActivityCallback> callbacks) {
+		return start(timeout, callbacks, null, null);
+	}
+
+	/**
+	 * Starts the deadline for a script run by the current thread with an
+	 * engine from a provider.
+	 * 
+	 * @param timeout
+	 *            the time in milliseconds the script may run for
+	 * @param callbacks
+	 *            the callbacks of the invocations the script runs for, failed
+	 *            when the deadline passes
+	 * @param engineProvider
+	 *            the provider of the engine, told when the engine is
+	 *            abandoned, or <code>null</code>
+	 * @param engine
+	 *            the engine running the script
+	 * @return the deadline, or <code>null</code> if the timeout is not
+	 *         positive
+	 */
+	static ScriptDeadline start(long timeout,
+			List<? extends AsynchronousActivityCallback> callbacks,
+			ScriptEngineProvider engineProvider, ScriptEngine engine) {
+		if (timeout <= 0) {
+			return null;
+		}
+		return new ScriptDeadline(Thread.currentThread(), timeout, callbacks, engineProvider,
+				engine);
+	}
+
+	private void expire() {
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			expired = true;
+			// before finish() can see the expiry and invalidate the engine
+			if (engineProvider != null) {
+				engineProvider.abandonEngine(engine);
+			}
+		}
+		// failed before the interrupt, so that any failure the interrupt causes
+		// comes too late to be reported
+		for (AsynchronousActivityCallback callback : callbacks) {
+			callback.fail(getMessage(), new TimeoutException(getMessage()));
+		}
+		synchronized (this) {
+			if (!finished) {
+				thread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the deadline passed while the script was
+	 *         running
+	 */
+	synchronized boolean isExpired() {
+		return expired;
+	}
+
+	/**
+	 * @return the time in milliseconds the script was allowed to run for
+	 */
+	long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @return the message the invocations are failed with
+	 */
+	String getMessage() {
+		return "Script did not finish within " + timeout + " ms";
+	}
+
+	/**
+	 * Stops watching the script. Must be called by the thread that started
+	 * the deadline.
+	 * 
+	 * @return <code>true</code> if the deadline had passed, in which case the
+	 *         engine may have been left in an unknown state
+	 */
+	synchronized boolean finish() {
+		finished = true;
+		expiry.cancel(false);
+		if (expired) {
+			// the interrupt was meant for the script, not for whatever runs next
+			Thread.interrupted();
+		}
+		return expired;
+	}
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester
+ *
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.ScriptEngineFactory;
+
+/**
+ * The metadata of a {@link ScriptEngineFactory}, read once when the
+ * {@link ScriptEngineRegistry} is built so that lookups do not have to call
+ * back into the factory.
+ */
+public class ScriptEngineDescriptor {
+
+	private final ScriptEngineFactory factory;
+
+	private final String engineName;
+
+	private final String engineVersion;
+
+	private final String languageName;
+
+	private final String languageVersion;
+
+	private final List<String> names;
+
+	private final List<String> extensions;
+
+	private final List<String> mimeTypes;
+
+	private final Object threading;
+
+	private final ScriptEngineSharing sharing;
+
+	public ScriptEngineDescriptor(ScriptEngineFactory factory) {
+		this.factory = factory;
+		this.engineName = factory.getEngineName();
+		this.engineVersion = factory.getEngineVersion();
+		this.languageName = factory.getLanguageName();
+		this.languageVersion = factory.getLanguageVersion();
+		this.names = copy(factory.getNames());
+		this.extensions = copy(factory.getExtensions());
+		this.mimeTypes = copy(factory.getMimeTypes());
+		this.threading = factory.getParameter(ScriptEngineSharing.THREADING);
+		this.sharing = ScriptEngineSharing.forThreading(threading);
+	}
+
+	private static List<String> copy(List<String> list) {
+		if (list == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(new ArrayList<String>(list));
+	}
+
+	/**
+	 * @return the factory described
+	 */
+	public ScriptEngineFactory getFactory() {
+		return factory;
+	}
+
+	/**
+	 * @return the full name of the engine
+	 */
+	public String getEngineName() {
+		return engineName;
+	}
+
+	/**
+	 * @return the version of the engine
+	 */
+	public String getEngineVersion() {
+		return engineVersion;
+	}
+
+	/**
+	 * @return the name of the scripting language
+	 */
+	public String getLanguageName() {
+		return languageName;
+	}
+
+	/**
+	 * @return the version of the scripting language
+	 */
+	public String getLanguageVersion() {
+		return languageVersion;
+	}
+
+	/**
+	 * @return the short names of the engine
+	 */
+	public List<String> getNames() {
+		return names;
+	}
+
+	/**
+	 * @return the file extensions of scripts for the engine
+	 */
+	public List<String> getExtensions() {
+		return extensions;
+	}
+
+	/**
+	 * @return the MIME types of scripts for the engine
+	 */
+	public List<String> getMimeTypes() {
+		return mimeTypes;
+	}
+
+	/**
+	 * @return the value of the THREADING parameter, or <code>null</code> if
+	 *         the engine is not thread safe
+	 */
+	public Object getThreading() {
+		return threading;
+	}
+
+	/**
+	 * @return how engines of this type can be shared between invocations
+	 */
+	public ScriptEngineSharing getSharing() {
+		return sharing;
+	}
+
+	@Override
+	public String toString() {
+		return engineName + " " + engineVersion;
+	}
+
+}
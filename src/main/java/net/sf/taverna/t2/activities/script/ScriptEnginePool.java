@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester
+ *
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.ScriptEngine;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded pool of {@link ScriptEngine}s for one engine name and class
+ * loader.
+ * <p>
+ * Engines are checked out with {@link #borrowEngine()} and must be handed
+ * back with either {@link #returnEngine(ScriptEngine)} or, if the engine
+ * should not be reused, {@link #invalidateEngine(ScriptEngine)}. At most
+ * {@link #getMaxSize()} engines are checked out at once; further borrowers
+ * wait until one is returned. An engine abandoned by an invocation that timed
+ * out still counts against the maximum until its script actually returns and
+ * the engine is invalidated, so runaway scripts cannot push the number of
+ * scripts running past the maximum. Engines left idle for longer than
+ * {@link #getIdleTimeout()} milliseconds are dropped from the pool.
+ * <p>
+ * The size and timeout can be changed with the system properties
+ * {@value #MAX_SIZE_PROPERTY} and {@value #IDLE_TIMEOUT_PROPERTY}.
+ */
+public class ScriptEnginePool extends ScriptEngineProvider {
+
+	public static final String MAX_SIZE_PROPERTY = "net.sf.taverna.t2.activities.script.pool.maxSize";
+
+	public static final String IDLE_TIMEOUT_PROPERTY = "net.sf.taverna.t2.activities.script.pool.idleTimeout";
+
+	private static final int DEFAULT_MAX_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+	private static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+	private static Logger logger = Logger.getLogger(ScriptEnginePool.class);
+
+	private final int maxSize;
+
+	private final long idleTimeout;
+
+	private final Semaphore permits;
+
+	private final LinkedBlockingDeque<IdleEngine> idleEngines = new LinkedBlockingDeque<IdleEngine>();
+
+	private final Set<ScriptEngine> abandonedEngines = Collections
+			.newSetFromMap(new ConcurrentHashMap<ScriptEngine, Boolean>());
+
+	private final AtomicLong borrowCount = new AtomicLong();
+
+	private final AtomicLong destroyedCount = new AtomicLong();
+
+	protected ScriptEnginePool(String engineName, ScriptEngineRegistry registry,
+			int maxSize, long idleTimeout) {
+		super(engineName, registry);
+		this.maxSize = maxSize;
+		this.idleTimeout = idleTimeout;
+		this.permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Creates a pool sized from the system properties.
+	 * 
+	 * @param engineName
+	 *            the engine name as reported by
+	 *            {@link javax.script.ScriptEngineFactory#getEngineName()}
+	 * @param registry
+	 *            the registry the engines are created from
+	 * @return the new pool
+	 */
+	static ScriptEnginePool newPool(String engineName, ScriptEngineRegistry registry) {
+		return new ScriptEnginePool(engineName, registry, Integer.getInteger(
+				MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE), Long.getLong(
+				IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT));
+	}
+
+	/**
+	 * Checks out an engine, waiting if the pool is exhausted.
+	 *
+	 * @return an engine, or <code>null</code> if no engine with this name can
+	 *         be found
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for an engine to be returned
+	 */
+	public ScriptEngine borrowEngine() throws InterruptedException {
+		permits.acquire();
+		evictIdleEngines();
+		IdleEngine idleEngine = idleEngines.pollFirst();
+		if (idleEngine != null) {
+			borrowCount.incrementAndGet();
+			return idleEngine.engine;
+		}
+		ScriptEngine engine = null;
+		try {
+			engine = newEngine();
+		} finally {
+			if (engine == null) {
+				permits.release();
+			}
+		}
+		if (engine == null) {
+			return null;
+		}
+		borrowCount.incrementAndGet();
+		return engine;
+	}
+
+	/**
+	 * Returns a previously borrowed engine to the pool. The engine scope
+	 * bindings are cleared so that values from one invocation are not seen
+	 * by the next.
+	 *
+	 * @param engine
+	 *            the engine obtained from {@link #borrowEngine()}
+	 */
+	public void returnEngine(ScriptEngine engine) {
+		try {
+			resetEngine(engine);
+			idleEngines.offerFirst(new IdleEngine(engine));
+		} catch (RuntimeException e) {
+			logger.warn("Discarding " + engineName + " engine that could not be reset", e);
+			destroyedCount.incrementAndGet();
+		} finally {
+			permits.release();
+		}
+		evictIdleEngines();
+	}
+
+	/**
+	 * Releases a previously borrowed engine without putting it back in the
+	 * pool, for example after it has been left in an unknown state. An
+	 * abandoned engine must only be invalidated once its script has returned.
+	 *
+	 * @param engine
+	 *            the engine obtained from {@link #borrowEngine()}
+	 */
+	@Override
+	public void invalidateEngine(ScriptEngine engine) {
+		abandonedEngines.remove(engine);
+		destroyedCount.incrementAndGet();
+		permits.release();
+	}
+
+	/**
+	 * Records that the engine's invocation has timed out. The engine keeps
+	 * its permit until it is invalidated.
+	 */
+	@Override
+	public void abandonEngine(ScriptEngine engine) {
+		abandonedEngines.add(engine);
+	}
+
+	@Override
+	public ScriptEngine acquireEngine() throws InterruptedException {
+		return borrowEngine();
+	}
+
+	@Override
+	public void releaseEngine(ScriptEngine engine) {
+		returnEngine(engine);
+	}
+
+	@Override
+	public ScriptEngineSharing getSharing() {
+		return ScriptEngineSharing.POOLED;
+	}
+
+	/**
+	 * Drops engines that have been idle for longer than the idle timeout.
+	 * Idle engines are kept most recently used first, so only the tail of the
+	 * queue has to be checked.
+	 */
+	protected void evictIdleEngines() {
+		long now = System.currentTimeMillis();
+		IdleEngine oldest;
+		while ((oldest = idleEngines.peekLast()) != null
+				&& now - oldest.returned > idleTimeout) {
+			if (idleEngines.removeLastOccurrence(oldest)) {
+				destroyedCount.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return the maximum number of engines that can be checked out at once
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return the time in milliseconds an engine may stay idle before it is
+	 *         evicted
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @return the number of engines currently checked out
+	 */
+	public int getActiveCount() {
+		return maxSize - permits.availablePermits();
+	}
+
+	/**
+	 * @return the number of checked out engines still running the script of
+	 *         an invocation that timed out
+	 */
+	public int getAbandonedCount() {
+		return abandonedEngines.size();
+	}
+
+	/**
+	 * @return the number of engines waiting in the pool to be reused
+	 */
+	public int getIdleCount() {
+		return idleEngines.size();
+	}
+
+	/**
+	 * @return the number of threads waiting for an engine to be returned
+	 */
+	public int getWaitingCount() {
+		return permits.getQueueLength();
+	}
+
+	/**
+	 * @return the total number of checkouts from this pool
+	 */
+	public long getBorrowCount() {
+		return borrowCount.get();
+	}
+
+	/**
+	 * @return the total number of engines evicted or invalidated
+	 */
+	public long getDestroyedCount() {
+		return destroyedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ScriptEnginePool[" + engineName + ", active=" + getActiveCount()
+				+ ", abandoned=" + getAbandonedCount() + ", idle=" + getIdleCount() + ", created=" + getCreatedCount()
+				+ ", destroyed=" + getDestroyedCount() + "]";
+	}
+
+	private static final class IdleEngine {
+
+		private final ScriptEngine engine;
+
+		private final long returned = System.currentTimeMillis();
+
+		private IdleEngine(ScriptEngine engine) {
+			this.engine = engine;
+		}
+	}
+}
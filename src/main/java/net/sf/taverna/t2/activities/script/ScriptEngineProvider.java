@@ -0,0 +1,326 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester
+ *
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+
+/**
+ * Hands out {@link ScriptEngine}s to script activity invocations according
+ * to a {@link ScriptEngineSharing} strategy.
+ * <p>
+ * Every {@link #acquireEngine()} must be matched by either
+ * {@link #releaseEngine(ScriptEngine)} or
+ * {@link #invalidateEngine(ScriptEngine)}.
+ */
+public abstract class ScriptEngineProvider {
+
+	private static ConcurrentMap<ProviderKey, ScriptEngineProvider> providers = new ConcurrentHashMap<ProviderKey, ScriptEngineProvider>();
+
+	protected final String engineName;
+
+	protected final ScriptEngineRegistry registry;
+
+	protected final AtomicLong createdCount = new AtomicLong();
+
+	protected ScriptEngineProvider(String engineName, ScriptEngineRegistry registry) {
+		this.engineName = engineName;
+		this.registry = registry;
+	}
+
+	/**
+	 * Returns the provider for the named engine, registry class loader and
+	 * sharing strategy, creating it if this is the first request for that
+	 * combination.
+	 * 
+	 * @param engineName
+	 *            the engine name as reported by
+	 *            {@link javax.script.ScriptEngineFactory#getEngineName()}
+	 * @param registry
+	 *            the registry the engines are created from
+	 * @param sharing
+	 *            how engines are shared between invocations
+	 * @return the provider
+	 */
+	public static ScriptEngineProvider getProvider(String engineName,
+			ScriptEngineRegistry registry, ScriptEngineSharing sharing) {
+		ProviderKey key = new ProviderKey(engineName, registry.getClassLoader(), sharing);
+		ScriptEngineProvider provider = providers.get(key);
+		if (provider == null) {
+			ScriptEngineProvider newProvider;
+			switch (sharing) {
+			case SHARED:
+				newProvider = new Shared(engineName, registry);
+				break;
+			case THREAD_AFFINE:
+				newProvider = new ThreadAffine(engineName, registry);
+				break;
+			default:
+				newProvider = ScriptEnginePool.newPool(engineName, registry);
+			}
+			provider = providers.putIfAbsent(key, newProvider);
+			if (provider == null) {
+				provider = newProvider;
+			}
+		}
+		return provider;
+	}
+
+	/**
+	 * Forgets the providers created from any class loader other than the
+	 * given one, so that the engines and class loaders of a replaced
+	 * {@link ScriptEngineRegistry} can be garbage collected. Invocations that
+	 * already hold an engine from an evicted provider can still hand it back.
+	 * 
+	 * @param classLoader
+	 *            the class loader of the current registry
+	 * @return the number of providers evicted
+	 */
+	static int evictProviders(ClassLoader classLoader) {
+		int evicted = 0;
+		for (ProviderKey key : providers.keySet()) {
+			if (key.classLoader != classLoader && providers.remove(key) != null) {
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Obtains an engine for one invocation.
+	 * 
+	 * @return an engine, or <code>null</code> if no engine with this name can
+	 *         be found
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for an engine
+	 */
+	public abstract ScriptEngine acquireEngine() throws InterruptedException;
+
+	/**
+	 * Hands back an engine after a successful invocation.
+	 * 
+	 * @param engine
+	 *            the engine obtained from {@link #acquireEngine()}
+	 */
+	public abstract void releaseEngine(ScriptEngine engine);
+
+	/**
+	 * Hands back an engine that has been left in an unknown state and should
+	 * not be used again.
+	 * 
+	 * @param engine
+	 *            the engine obtained from {@link #acquireEngine()}
+	 */
+	public abstract void invalidateEngine(ScriptEngine engine);
+
+	/**
+	 * Called when an invocation has been failed at its deadline while its
+	 * script is still running. The engine stays in use until the script
+	 * returns and the engine is handed back with
+	 * {@link #invalidateEngine(ScriptEngine)}.
+	 * 
+	 * @param engine
+	 *            the engine obtained from {@link #acquireEngine()}
+	 */
+	public void abandonEngine(ScriptEngine engine) {
+	}
+
+	/**
+	 * @return the sharing strategy of this provider
+	 */
+	public abstract ScriptEngineSharing getSharing();
+
+	/**
+	 * Returns <code>true</code> if the engine may be in use by other threads,
+	 * so invocations must evaluate against their own ScriptContext rather
+	 * than the engine's default one.
+	 * 
+	 * @return <code>true</code> if the engine's default context must not be
+	 *         modified
+	 */
+	public boolean isEngineShared() {
+		return getSharing() == ScriptEngineSharing.SHARED;
+	}
+
+	/**
+	 * @return the engine name this provider creates engines for
+	 */
+	public String getEngineName() {
+		return engineName;
+	}
+
+	/**
+	 * @return the total number of engines created by this provider
+	 */
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	/**
+	 * Creates a new engine and counts it.
+	 */
+	protected final ScriptEngine newEngine() {
+		ScriptEngine engine = createEngine();
+		if (engine != null) {
+			createdCount.incrementAndGet();
+		}
+		return engine;
+	}
+
+	protected ScriptEngine createEngine() {
+		return registry.createEngine(engineName);
+	}
+
+	/**
+	 * Clears the engine scope of an engine that is about to be reused by
+	 * another invocation. Invocations bind their values in their own
+	 * context, so the engine's bindings are usually empty and are only
+	 * replaced if the engine has none.
+	 */
+	protected static void resetEngine(ScriptEngine engine) {
+		Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+		if (bindings == null) {
+			engine.setBindings(engine.createBindings(), ScriptContext.ENGINE_SCOPE);
+		} else if (!bindings.isEmpty()) {
+			bindings.clear();
+		}
+	}
+
+	/**
+	 * A single engine used concurrently by every invocation.
+	 * <p>
+	 * Every invocation evaluates against its own ScriptContext, so one that
+	 * is abandoned leaves nothing behind in the engine that the others would
+	 * see. The engine is therefore kept when it is invalidated: other
+	 * invocations, and a runaway script that is still running, go on using it.
+	 */
+	static final class Shared extends ScriptEngineProvider {
+
+		private volatile ScriptEngine engine;
+
+		Shared(String engineName, ScriptEngineRegistry registry) {
+			super(engineName, registry);
+		}
+
+		@Override
+		public ScriptEngine acquireEngine() {
+			ScriptEngine result = engine;
+			if (result == null) {
+				synchronized (this) {
+					result = engine;
+					if (result == null) {
+						engine = result = newEngine();
+					}
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public void releaseEngine(ScriptEngine engine) {
+		}
+
+		@Override
+		public void invalidateEngine(ScriptEngine engine) {
+		}
+
+		@Override
+		public ScriptEngineSharing getSharing() {
+			return ScriptEngineSharing.SHARED;
+		}
+	}
+
+	/**
+	 * One engine per worker thread.
+	 */
+	static final class ThreadAffine extends ScriptEngineProvider {
+
+		private final ThreadLocal<ScriptEngine> engines = new ThreadLocal<ScriptEngine>();
+
+		ThreadAffine(String engineName, ScriptEngineRegistry registry) {
+			super(engineName, registry);
+		}
+
+		@Override
+		public ScriptEngine acquireEngine() {
+			ScriptEngine engine = engines.get();
+			if (engine == null) {
+				engine = newEngine();
+				engines.set(engine);
+			}
+			return engine;
+		}
+
+		@Override
+		public void releaseEngine(ScriptEngine engine) {
+			resetEngine(engine);
+		}
+
+		@Override
+		public void invalidateEngine(ScriptEngine engine) {
+			engines.remove();
+		}
+
+		@Override
+		public ScriptEngineSharing getSharing() {
+			return ScriptEngineSharing.THREAD_AFFINE;
+		}
+	}
+
+	private static final class ProviderKey {
+
+		private final String engineName;
+
+		private final ClassLoader classLoader;
+
+		private final ScriptEngineSharing sharing;
+
+		private ProviderKey(String engineName, ClassLoader classLoader,
+				ScriptEngineSharing sharing) {
+			this.engineName = engineName;
+			this.classLoader = classLoader;
+			this.sharing = sharing;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * String.valueOf(engineName).hashCode() + System
+					.identityHashCode(classLoader)) + sharing.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ProviderKey)) {
+				return false;
+			}
+			ProviderKey other = (ProviderKey) obj;
+			return classLoader == other.classLoader
+					&& sharing == other.sharing
+					&& (engineName == null ? other.engineName == null
+							: engineName.equals(other.engineName));
+		}
+	}
+}
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester
+ *
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+
+import net.sf.taverna.raven.appconfig.ApplicationRuntime;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An index of the script engine factories found on the class path and in the
+ * <code>lib</code> directory of the application home.
+ * <p>
+ * A registry is immutable once built. Factories can be looked up by engine
+ * name, short name, MIME type or file extension in constant time. When jars
+ * are added to or removed from the <code>lib</code> directory a new registry
+ * can be built with {@link #refreshIfChanged()}; until then
+ * {@link #getInstance()} keeps returning the current one.
+ */
+public class ScriptEngineRegistry {
+
+	private static Logger logger = Logger.getLogger(ScriptEngineRegistry.class);
+
+	private static volatile ScriptEngineRegistry instance;
+
+	private final File libDir;
+
+	private final long libDirStamp;
+
+	private final URLClassLoader classLoader;
+
+	private final ScriptEngineManager manager;
+
+	private final List<ScriptEngineDescriptor> descriptors = new ArrayList<ScriptEngineDescriptor>();
+
+	private final List<String> engineNames = new ArrayList<String>();
+
+	private final Map<String, ScriptEngineDescriptor> byEngineName = new HashMap<String, ScriptEngineDescriptor>();
+
+	private final Map<String, ScriptEngineDescriptor> byName = new HashMap<String, ScriptEngineDescriptor>();
+
+	private final Map<String, ScriptEngineDescriptor> byMimeType = new HashMap<String, ScriptEngineDescriptor>();
+
+	private final Map<String, ScriptEngineDescriptor> byExtension = new HashMap<String, ScriptEngineDescriptor>();
+
+	protected ScriptEngineRegistry(File libDir) {
+		this.libDir = libDir;
+		this.libDirStamp = getStamp(libDir);
+		this.classLoader = createClassLoader(libDir);
+		this.manager = new ScriptEngineManager(classLoader);
+		for (ScriptEngineFactory factory : manager.getEngineFactories()) {
+			ScriptEngineDescriptor descriptor;
+			try {
+				descriptor = new ScriptEngineDescriptor(factory);
+			} catch (RuntimeException e) {
+				logger.warn("Ignoring script engine factory " + factory.getClass().getName(), e);
+				continue;
+			}
+			descriptors.add(descriptor);
+			// first factory found wins, as with ScriptEngineManager
+			if (!byEngineName.containsKey(descriptor.getEngineName())) {
+				byEngineName.put(descriptor.getEngineName(), descriptor);
+				engineNames.add(descriptor.getEngineName());
+			}
+			index(byName, descriptor.getNames(), descriptor);
+			index(byMimeType, descriptor.getMimeTypes(), descriptor);
+			index(byExtension, descriptor.getExtensions(), descriptor);
+		}
+		Collections.sort(engineNames);
+	}
+
+	private static void index(Map<String, ScriptEngineDescriptor> map,
+			List<String> keys, ScriptEngineDescriptor descriptor) {
+		for (String key : keys) {
+			if (key != null && !map.containsKey(key)) {
+				map.put(key, descriptor);
+			}
+		}
+	}
+
+	/**
+	 * Returns the current registry, building it on first use.
+	 * 
+	 * @return the current registry
+	 */
+	public static ScriptEngineRegistry getInstance() {
+		ScriptEngineRegistry result = instance;
+		if (result == null) {
+			synchronized (ScriptEngineRegistry.class) {
+				result = instance;
+				if (result == null) {
+					instance = result = new ScriptEngineRegistry(getLibDir());
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Rebuilds the registry if the contents of the <code>lib</code> directory
+	 * have changed since it was built.
+	 * 
+	 * @return the current registry
+	 */
+	public static ScriptEngineRegistry refreshIfChanged() {
+		ScriptEngineRegistry current = getInstance();
+		if (!current.isChanged()) {
+			return current;
+		}
+		return refresh();
+	}
+
+	/**
+	 * @return <code>true</code> if jars have been added to, removed from or
+	 *         replaced in the <code>lib</code> directory since this registry
+	 *         was built
+	 */
+	public boolean isChanged() {
+		return libDirStamp != getStamp(libDir);
+	}
+
+	/**
+	 * Rebuilds the registry. Engines already handed out from the previous
+	 * registry remain usable, but are not reused once they are handed back.
+	 * 
+	 * @return the new registry
+	 */
+	public static synchronized ScriptEngineRegistry refresh() {
+		ScriptEngineRegistry registry = new ScriptEngineRegistry(getLibDir());
+		instance = registry;
+		ScriptEngineProvider.evictProviders(registry.getClassLoader());
+		logger.info("Script engines available: " + registry.getEngineNames());
+		return registry;
+	}
+
+	private static File getLibDir() {
+		return new File(ApplicationRuntime.getInstance().getApplicationHomeDir(), "lib");
+	}
+
+	/**
+	 * A cheap fingerprint of the directory contents, so that a change can be
+	 * detected without opening any jars.
+	 */
+	private static long getStamp(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		long stamp = dir.lastModified();
+		for (File f : files) {
+			stamp = 31 * stamp + f.getName().hashCode();
+			stamp = 31 * stamp + f.lastModified();
+			stamp = 31 * stamp + f.length();
+		}
+		return stamp;
+	}
+
+	private static URLClassLoader createClassLoader(File libDir) {
+		List<URL> urls = new ArrayList<URL>();
+		File[] files = libDir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				try {
+					urls.add(f.toURI().toURL());
+				} catch (MalformedURLException e) {
+					logger.error(e);
+				}
+			}
+		}
+		return new URLClassLoader(urls.toArray(new URL[] {}), Thread
+				.currentThread().getContextClassLoader());
+	}
+
+	/**
+	 * @return a fingerprint of the <code>lib</code> directory contents this
+	 *         registry was built from
+	 */
+	public String getFingerprint() {
+		return Long.toHexString(libDirStamp);
+	}
+
+	/**
+	 * @return the class loader engines are loaded from
+	 */
+	public ClassLoader getClassLoader() {
+		return classLoader;
+	}
+
+	/**
+	 * @return the descriptors of all factories found, in discovery order
+	 */
+	public List<ScriptEngineDescriptor> getDescriptors() {
+		return Collections.unmodifiableList(descriptors);
+	}
+
+	/**
+	 * @return the sorted engine names of all factories found
+	 */
+	public List<String> getEngineNames() {
+		return Collections.unmodifiableList(engineNames);
+	}
+
+	/**
+	 * @param engineName
+	 *            the full engine name, as in
+	 *            {@link ScriptEngineFactory#getEngineName()}
+	 * @return the descriptor, or <code>null</code> if there is no such engine
+	 */
+	public ScriptEngineDescriptor getByEngineName(String engineName) {
+		return byEngineName.get(engineName);
+	}
+
+	/**
+	 * @param name
+	 *            a short name, as in {@link ScriptEngineFactory#getNames()}
+	 * @return the descriptor, or <code>null</code> if there is no such engine
+	 */
+	public ScriptEngineDescriptor getByName(String name) {
+		return byName.get(name);
+	}
+
+	/**
+	 * @param mimeType
+	 *            a MIME type, as in {@link ScriptEngineFactory#getMimeTypes()}
+	 * @return the descriptor, or <code>null</code> if there is no such engine
+	 */
+	public ScriptEngineDescriptor getByMimeType(String mimeType) {
+		return byMimeType.get(mimeType);
+	}
+
+	/**
+	 * @param extension
+	 *            a file extension, as in
+	 *            {@link ScriptEngineFactory#getExtensions()}
+	 * @return the descriptor, or <code>null</code> if there is no such engine
+	 */
+	public ScriptEngineDescriptor getByExtension(String extension) {
+		return byExtension.get(extension);
+	}
+
+	/**
+	 * Creates a new engine from the named factory. As with
+	 * {@link ScriptEngineManager#getEngineByName(String)} the engine's global
+	 * scope is the manager's global bindings.
+	 * 
+	 * @param engineName
+	 *            the full engine name
+	 * @return the new engine, or <code>null</code> if there is no such engine
+	 */
+	public ScriptEngine createEngine(String engineName) {
+		ScriptEngineDescriptor descriptor = getByEngineName(engineName);
+		if (descriptor == null) {
+			return null;
+		}
+		ScriptEngine engine = descriptor.getFactory().getScriptEngine();
+		if (engine != null) {
+			engine.setBindings(manager.getBindings(), ScriptContext.GLOBAL_SCOPE);
+		}
+		return engine;
+	}
+
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester
+ *
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import javax.script.ScriptEngineFactory;
+
+/**
+ * How script engines are shared between concurrent invocations of a script
+ * activity.
+ */
+public enum ScriptEngineSharing {
+
+	/**
+	 * One engine is shared by all threads; each invocation evaluates against
+	 * its own ScriptContext.
+	 */
+	SHARED,
+
+	/**
+	 * Each worker thread keeps its own engine for its lifetime.
+	 */
+	THREAD_AFFINE,
+
+	/**
+	 * Engines are checked out of a bounded {@link ScriptEnginePool} for the
+	 * duration of an invocation.
+	 */
+	POOLED;
+
+	/**
+	 * The JSR-223 parameter an engine factory uses to describe its thread
+	 * safety.
+	 */
+	public static final String THREADING = "THREADING";
+
+	/**
+	 * Chooses the sharing strategy for an engine from the value of its
+	 * {@value #THREADING} parameter. Engines declaring
+	 * <code>MULTITHREADED</code>, <code>THREAD-ISOLATED</code> or
+	 * <code>STATELESS</code> are safe to call from several threads at once
+	 * and are shared. A <code>null</code> value declares an engine that is
+	 * not thread safe but may be used by one thread after another, so each
+	 * worker thread keeps its own. Engines reporting a value this method
+	 * does not know give no guarantee it can rely on and are pooled.
+	 * 
+	 * @param threading
+	 *            the value of {@link ScriptEngineFactory#getParameter(String)}
+	 *            for {@value #THREADING}
+	 * @return the sharing strategy to use
+	 */
+	public static ScriptEngineSharing forThreading(Object threading) {
+		if (threading == null) {
+			return THREAD_AFFINE;
+		}
+		if ("MULTITHREADED".equals(threading)
+				|| "THREAD-ISOLATED".equals(threading)
+				|| "STATELESS".equals(threading)) {
+			return SHARED;
+		}
+		return POOLED;
+	}
+
+	/**
+	 * Chooses the sharing strategy for the engines created by a factory.
+	 * 
+	 * @param factory
+	 * @return the sharing strategy to use
+	 */
+	public static ScriptEngineSharing forFactory(ScriptEngineFactory factory) {
+		return forThreading(factory.getParameter(THREADING));
+	}
+
+}
@@ -3,21 +3,11 @@
  */
 package net.sf.taverna.t2.activities.script;
 
-import java.io.File;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptEngineFactory;
-import javax.script.ScriptEngineManager;
-
-import org.apache.log4j.Logger;
-
-import net.sf.taverna.raven.appconfig.ApplicationRuntime;
 
 /**
  * @author alson
@@ -25,62 +15,59 @@ import net.sf.taverna.raven.appconfig.ApplicationRuntime;
  */
 public class ScriptEngineUtils {
 	
-	private static Logger logger = Logger.getLogger(ScriptEngineUtils.class);
-	
-	private static ScriptEngineManager sem = new ScriptEngineManager(getClassLoader());
-	
 	/**
 	 * Probably should filter
 	 * 
 	 * @return
 	 */
 	public static List<ScriptEngineFactory> getApplicableFactories() {
-		return sem.getEngineFactories();
-	}
-	
-	public static List<String> getApplicableFactoryNames() {
-		List<String> result = new ArrayList<String>();
-		for (ScriptEngineFactory sef : getApplicableFactories()) {
-			result.add(sef.getEngineName());
+		List<ScriptEngineFactory> result = new ArrayList<ScriptEngineFactory>();
+		for (ScriptEngineDescriptor descriptor : ScriptEngineRegistry.getInstance().getDescriptors()) {
+			result.add(descriptor.getFactory());
 		}
-		Collections.sort(result);
 		return result;
 	}
 	
-	private static URLClassLoader getClassLoader() {
-		ApplicationRuntime.getInstance().getApplicationHomeDir();
-		
-		List<URL> urls = new ArrayList<URL>();
-		
-		File libDir = new File(ApplicationRuntime.getInstance().getApplicationHomeDir(), "lib");
-		for (File f : libDir.listFiles()) {
-			try {
-				urls.add(f.toURL());
-			} catch (MalformedURLException e) {
-				logger.error(e);
-			}
-		}
-		return new URLClassLoader(urls.toArray(new URL[]{}), Thread.currentThread().getContextClassLoader());
+	public static List<String> getApplicableFactoryNames() {
+		return ScriptEngineRegistry.getInstance().getEngineNames();
 	}
 	
 	public static ScriptEngineFactory getApplicableFactory(final String engineName) {
-		for (ScriptEngineFactory sef : getApplicableFactories()) {
-			if (sef.getEngineName().equals(engineName)) {
-				return sef;
-			}
+		ScriptEngineDescriptor descriptor = ScriptEngineRegistry.getInstance().getByEngineName(engineName);
+		if (descriptor == null) {
+			return null;
 		}
-		return null;
+		return descriptor.getFactory();
 	}
 
-	public static ScriptEngine getScriptEngine(final String engineName) {
-		ScriptEngineFactory sef = getApplicableFactory(engineName);
-		if (sef == null) {
-			return null;
-		}
-		List<String> shortNames = sef.getNames();
-		if (shortNames.isEmpty()) {
-			return null;
+	/**
+	 * Returns how engines with the given name can be shared between
+	 * concurrent invocations, based on the factory's THREADING parameter.
+	 * 
+	 * @param engineName
+	 * @return
+	 */
+	public static ScriptEngineSharing getEngineSharing(final String engineName) {
+		ScriptEngineDescriptor descriptor = ScriptEngineRegistry.getInstance().getByEngineName(engineName);
+		if (descriptor == null) {
+			return ScriptEngineSharing.POOLED;
 		}
-		return sem.getEngineByName(shortNames.get(0));
+		return descriptor.getSharing();
+	}
+
+	/**
+	 * Returns the provider of engines for the named engine, created from the
+	 * current {@link ScriptEngineRegistry}.
+	 * 
+	 * @param engineName
+	 * @param sharing
+	 * @return
+	 */
+	public static ScriptEngineProvider getScriptEngineProvider(final String engineName, final ScriptEngineSharing sharing) {
+		return ScriptEngineProvider.getProvider(engineName, ScriptEngineRegistry.getInstance(), sharing);
+	}
+
+	public static ScriptEngine getScriptEngine(final String engineName) {
+		return ScriptEngineRegistry.getInstance().createEngine(engineName);
 	}
 }
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+/**
+ * Which threads run the invocations of a script activity.
+ */
+public enum ScriptExecutionMode {
+
+	/**
+	 * Invocations run on the threads of the workflow engine, through
+	 * {@link net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback#requestRun(Runnable)
+	 * requestRun}, like other activities.
+	 */
+	SHARED,
+
+	/**
+	 * Invocations run on the bounded {@link ScriptActivityExecutor} used only
+	 * by script activities.
+	 */
+	DEDICATED,
+
+	/**
+	 * Each invocation runs on its own virtual thread, for scripts that spend
+	 * most of their time waiting for the reference service. Runtimes without
+	 * virtual threads use {@link #DEDICATED} instead. Engines that would be
+	 * kept per thread are pooled, as every invocation has a new thread.
+	 */
+	VIRTUAL;
+}
@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.taverna.t2.workflowmodel.OutputPort;
+import net.sf.taverna.t2.workflowmodel.processor.activity.ActivityInputPort;
+
+/**
+ * How the ports of a configured {@link ScriptActivity} are bound to script
+ * variables.
+ * <p>
+ * The plan is worked out once when the activity is configured, so that an
+ * invocation only has to look up each input by port name and walk the
+ * outputs in order. Plans are immutable and can be inspected through
+ * {@link ScriptActivity#getExecutionPlan()} to see what each invocation binds.
+ */
+public final class ScriptExecutionPlan {
+
+	/**
+	 * Where the value of an output port comes from.
+	 */
+	public enum OutputSource {
+		STDOUT, STDERR, VARIABLE
+	}
+
+	private final Map<String, InputBinding> inputsByPort;
+
+	private final List<InputBinding> inputs;
+
+	private final List<OutputBinding> outputs;
+
+	private ScriptExecutionPlan(List<InputBinding> inputs, List<OutputBinding> outputs) {
+		this.inputs = Collections.unmodifiableList(inputs);
+		this.outputs = Collections.unmodifiableList(outputs);
+		Map<String, InputBinding> inputsByPort = new HashMap<String, InputBinding>();
+		for (InputBinding input : inputs) {
+			inputsByPort.put(input.getPortName(), input);
+		}
+		this.inputsByPort = inputsByPort;
+	}
+
+	/**
+	 * Works out the plan for the ports of an activity.
+	 * 
+	 * @param inputPorts
+	 *            the input ports of the activity
+	 * @param outputPorts
+	 *            the output ports of the activity
+	 * @param configurationBean
+	 *            the configuration the escaping of each input is taken from
+	 * @param stdIn
+	 *            the name of the port read as the script's standard input
+	 * @param stdOut
+	 *            the name of the port holding the script's standard output
+	 * @param stdErr
+	 *            the name of the port holding the script's error output
+	 * @return the plan
+	 */
+	public static ScriptExecutionPlan create(Collection<ActivityInputPort> inputPorts,
+			Collection<? extends OutputPort> outputPorts,
+			ScriptActivityConfigurationBean configurationBean, String stdIn, String stdOut,
+			String stdErr) {
+		List<InputBinding> inputs = new ArrayList<InputBinding>();
+		for (ActivityInputPort port : inputPorts) {
+			String variableName = sanitiseName(port.getName());
+			boolean isStdIn = variableName.equals(stdIn);
+			inputs.add(new InputBinding(port, variableName, isStdIn ? null : configurationBean
+					.getInputEscaping(variableName), isStdIn));
+		}
+		List<OutputBinding> outputs = new ArrayList<OutputBinding>();
+		for (OutputPort port : outputPorts) {
+			OutputSource source;
+			if (port.getName().equals(stdOut)) {
+				source = OutputSource.STDOUT;
+			} else if (port.getName().equals(stdErr)) {
+				source = OutputSource.STDERR;
+			} else {
+				source = OutputSource.VARIABLE;
+			}
+			outputs.add(new OutputBinding(port, source));
+		}
+		return new ScriptExecutionPlan(inputs, outputs);
+	}
+
+	/**
+	 * Removes any characters that are not letters, digits or underscores
+	 * from a port name. For example, xml-text would become xmltext.
+	 * 
+	 * @param name
+	 *            the port name
+	 * @return the variable name
+	 */
+	public static String sanitiseName(String name) {
+		int length = name.length();
+		int i = 0;
+		while (i < length && isNameChar(name.charAt(i))) {
+			i++;
+		}
+		if (i == length) {
+			return name;
+		}
+		StringBuilder result = new StringBuilder(length);
+		result.append(name, 0, i);
+		for (; i < length; i++) {
+			char c = name.charAt(i);
+			if (isNameChar(c)) {
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+
+	private static boolean isNameChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+
+	/**
+	 * @param portName
+	 *            the name of an input port
+	 * @return how the port is bound, or <code>null</code> if the activity has
+	 *         no such input port
+	 */
+	public InputBinding getInput(String portName) {
+		return inputsByPort.get(portName);
+	}
+
+	/**
+	 * @return how each input port is bound
+	 */
+	public List<InputBinding> getInputs() {
+		return inputs;
+	}
+
+	/**
+	 * @return where the value of each output port comes from, in port order
+	 */
+	public List<OutputBinding> getOutputs() {
+		return outputs;
+	}
+
+	@Override
+	public String toString() {
+		return "ScriptExecutionPlan[inputs=" + inputs + ", outputs=" + outputs + "]";
+	}
+
+	/**
+	 * How one input port is bound.
+	 */
+	public static final class InputBinding {
+
+		private final ActivityInputPort port;
+
+		private final String variableName;
+
+		private final ScriptEscapingType escaping;
+
+		private final boolean stdIn;
+
+		private InputBinding(ActivityInputPort port, String variableName,
+				ScriptEscapingType escaping, boolean stdIn) {
+			this.port = port;
+			this.variableName = variableName;
+			this.escaping = escaping;
+			this.stdIn = stdIn;
+		}
+
+		public ActivityInputPort getPort() {
+			return port;
+		}
+
+		public String getPortName() {
+			return port.getName();
+		}
+
+		/**
+		 * @return the name of the variable the input is bound to
+		 */
+		public String getVariableName() {
+			return variableName;
+		}
+
+		/**
+		 * @return the escaping applied to the input, or <code>null</code> for
+		 *         standard input
+		 */
+		public ScriptEscapingType getEscaping() {
+			return escaping;
+		}
+
+		public Class<?> getTranslatedElementClass() {
+			return port.getTranslatedElementClass();
+		}
+
+		/**
+		 * @return <code>true</code> if the input is read as the script's
+		 *         standard input rather than bound to a variable
+		 */
+		public boolean isStdIn() {
+			return stdIn;
+		}
+
+		@Override
+		public String toString() {
+			return getPortName() + (stdIn ? "->stdin" : "->" + variableName + "(" + escaping + ")");
+		}
+	}
+
+	/**
+	 * Where one output port gets its value.
+	 */
+	public static final class OutputBinding {
+
+		private final OutputPort port;
+
+		private final OutputSource source;
+
+		private OutputBinding(OutputPort port, OutputSource source) {
+			this.port = port;
+			this.source = source;
+		}
+
+		public OutputPort getPort() {
+			return port;
+		}
+
+		public String getName() {
+			return port.getName();
+		}
+
+		public int getDepth() {
+			return port.getDepth();
+		}
+
+		public OutputSource getSource() {
+			return source;
+		}
+
+		@Override
+		public String toString() {
+			return getName() + "<-" + (source == OutputSource.VARIABLE ? getName() : source.toString());
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester
+ *
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+
+/**
+ * A {@link ScriptContext} for a single script invocation.
+ * <p>
+ * The engine scope is a fresh {@link Bindings} from the engine, so values
+ * bound by one invocation are never seen by the next. The global scope is a
+ * read-only view of the engine's global bindings, so concurrent invocations
+ * of the same engine can share it without locking. Unlike
+ * {@link javax.script.SimpleScriptContext} the readers and writers of the
+ * standard streams are only created if they are read before the caller has
+ * set them, as invocations set their own.
+ */
+public class ScriptInvocationContext implements ScriptContext {
+
+	private static final List<Integer> SCOPES = Collections.unmodifiableList(Arrays.asList(
+			ENGINE_SCOPE, GLOBAL_SCOPE));
+
+	private Bindings engineScope;
+
+	private Bindings globalScope;
+
+	private Reader reader;
+
+	private Writer writer;
+
+	private Writer errorWriter;
+
+	/**
+	 * Creates a context with new engine scope bindings and a read-only view
+	 * of the engine's global bindings.
+	 * 
+	 * @param engine
+	 *            the engine the invocation runs on
+	 */
+	public ScriptInvocationContext(ScriptEngine engine) {
+		engineScope = engine.createBindings();
+		Bindings engineGlobalScope = engine.getBindings(GLOBAL_SCOPE);
+		if (engineGlobalScope != null) {
+			globalScope = new ReadOnlyBindings(engineGlobalScope);
+		}
+	}
+
+	public void setBindings(Bindings bindings, int scope) {
+		switch (scope) {
+		case ENGINE_SCOPE:
+			if (bindings == null) {
+				throw new NullPointerException("Engine scope Bindings may not be null.");
+			}
+			engineScope = bindings;
+			break;
+		case GLOBAL_SCOPE:
+			globalScope = bindings;
+			break;
+		default:
+			throw new IllegalArgumentException("Invalid scope value.");
+		}
+	}
+
+	public Bindings getBindings(int scope) {
+		switch (scope) {
+		case ENGINE_SCOPE:
+			return engineScope;
+		case GLOBAL_SCOPE:
+			return globalScope;
+		default:
+			throw new IllegalArgumentException("Invalid scope value.");
+		}
+	}
+
+	public void setAttribute(String name, Object value, int scope) {
+		Bindings bindings = getBindings(scope);
+		if (bindings == null) {
+			throw new IllegalArgumentException("No bindings for scope " + scope);
+		}
+		bindings.put(name, value);
+	}
+
+	public Object getAttribute(String name, int scope) {
+		Bindings bindings = getBindings(scope);
+		return bindings == null ? null : bindings.get(name);
+	}
+
+	public Object removeAttribute(String name, int scope) {
+		Bindings bindings = getBindings(scope);
+		return bindings == null ? null : bindings.remove(name);
+	}
+
+	public Object getAttribute(String name) {
+		if (engineScope.containsKey(name)) {
+			return engineScope.get(name);
+		}
+		if (globalScope != null && globalScope.containsKey(name)) {
+			return globalScope.get(name);
+		}
+		return null;
+	}
+
+	public int getAttributesScope(String name) {
+		if (engineScope.containsKey(name)) {
+			return ENGINE_SCOPE;
+		}
+		if (globalScope != null && globalScope.containsKey(name)) {
+			return GLOBAL_SCOPE;
+		}
+		return -1;
+	}
+
+	public Writer getWriter() {
+		if (writer == null) {
+			writer = new StringWriter();
+		}
+		return writer;
+	}
+
+	public Writer getErrorWriter() {
+		if (errorWriter == null) {
+			errorWriter = new StringWriter();
+		}
+		return errorWriter;
+	}
+
+	public void setWriter(Writer writer) {
+		this.writer = writer;
+	}
+
+	public void setErrorWriter(Writer writer) {
+		this.errorWriter = writer;
+	}
+
+	public Reader getReader() {
+		if (reader == null) {
+			reader = new StringReader("");
+		}
+		return reader;
+	}
+
+	public void setReader(Reader reader) {
+		this.reader = reader;
+	}
+
+	public List<Integer> getScopes() {
+		return SCOPES;
+	}
+
+	/**
+	 * A view of a {@link Bindings} that cannot be changed through it.
+	 */
+	private static final class ReadOnlyBindings implements Bindings {
+
+		private final Bindings bindings;
+
+		private ReadOnlyBindings(Bindings bindings) {
+			this.bindings = bindings;
+		}
+
+		public Object put(String name, Object value) {
+			throw new UnsupportedOperationException("The global scope is read-only");
+		}
+
+		public void putAll(Map<? extends String, ? extends Object> toMerge) {
+			throw new UnsupportedOperationException("The global scope is read-only");
+		}
+
+		public Object remove(Object key) {
+			throw new UnsupportedOperationException("The global scope is read-only");
+		}
+
+		public void clear() {
+			throw new UnsupportedOperationException("The global scope is read-only");
+		}
+
+		public boolean containsKey(Object key) {
+			return bindings.containsKey(key);
+		}
+
+		public Object get(Object key) {
+			return bindings.get(key);
+		}
+
+		public int size() {
+			return bindings.size();
+		}
+
+		public boolean isEmpty() {
+			return bindings.isEmpty();
+		}
+
+		public boolean containsValue(Object value) {
+			return bindings.containsValue(value);
+		}
+
+		public Set<String> keySet() {
+			return Collections.unmodifiableSet(bindings.keySet());
+		}
+
+		public Collection<Object> values() {
+			return Collections.unmodifiableCollection(bindings.values());
+		}
+
+		public Set<Entry<String, Object>> entrySet() {
+			return Collections.unmodifiableSet(bindings.entrySet());
+		}
+	}
+}
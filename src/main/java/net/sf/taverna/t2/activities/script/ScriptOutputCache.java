@@ -0,0 +1,333 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import net.sf.taverna.t2.reference.Identified;
+import net.sf.taverna.t2.reference.ReferenceContext;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.ReferenceServiceException;
+import net.sf.taverna.t2.reference.T2Reference;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The registered outputs of deterministic scripts, keyed by the script and
+ * its inputs, so that a script run again on the same inputs returns its
+ * earlier outputs without being evaluated.
+ * <p>
+ * Keys are SHA-256 digests of the script fingerprint, the template file and
+ * its modification time, the references and escaping of the inputs, and the
+ * output ports. Files a script reads for itself are not part of the key, so
+ * Velocity templates that <code>#parse</code> or <code>#include</code> other
+ * files are not cached, and other scripts should only be marked
+ * deterministic if they are self-contained. Values are the references of
+ * the registered outputs. A reference store that is not persistent may have
+ * lost them since, so each is resolved again before cached outputs are
+ * returned, and entries that no longer resolve are dropped. The number of
+ * entries is set by the system property {@value #MAX_SIZE_PROPERTY}.
+ * <p>
+ * If the system property {@value #PERSISTENT_PROPERTY} is <code>true</code>,
+ * entries are also kept in the {@link ScriptCacheStore} and survive a
+ * restart. This is only safe with a persistent reference store.
+ */
+public class ScriptOutputCache {
+
+	public static final String MAX_SIZE_PROPERTY = "net.sf.taverna.t2.activities.script.outputCache.maxSize";
+
+	public static final String PERSISTENT_PROPERTY = "net.sf.taverna.t2.activities.script.outputCache.persistent";
+
+	private static final int DEFAULT_MAX_SIZE = 10000;
+
+	private static final Pattern LOADS_OTHER_FILES = Pattern.compile("#\\{?(parse|include)\\b");
+
+	private static Logger logger = Logger.getLogger(ScriptOutputCache.class);
+
+	private static ScriptOutputCache instance;
+
+	private final BoundedCache<String, Map<String, String>> cache;
+
+	private final ScriptCacheStore store;
+
+	private final AtomicLong storeHitCount = new AtomicLong();
+
+	private final AtomicLong staleCount = new AtomicLong();
+
+	/**
+	 * @param maxSize
+	 *            the maximum number of entries held in memory
+	 * @param store
+	 *            the store entries are also kept in, or <code>null</code>
+	 */
+	protected ScriptOutputCache(int maxSize, ScriptCacheStore store) {
+		cache = new BoundedCache<String, Map<String, String>>(maxSize);
+		this.store = store;
+	}
+
+	/**
+	 * @return the cache shared by all script activities
+	 */
+	public static synchronized ScriptOutputCache getInstance() {
+		if (instance == null) {
+			instance = new ScriptOutputCache(Integer.getInteger(MAX_SIZE_PROPERTY,
+					DEFAULT_MAX_SIZE), Boolean.getBoolean(PERSISTENT_PROPERTY) ? ScriptCacheStore
+					.getInstance() : null);
+		}
+		return instance;
+	}
+
+	/**
+	 * Works out the key for one invocation.
+	 * 
+	 * @param scriptFingerprint
+	 *            the fingerprint of the engine and script
+	 * @param templateFile
+	 *            the template file run instead of the script, or
+	 *            <code>null</code>
+	 * @param plan
+	 *            the execution plan of the activity
+	 * @param outputs
+	 *            the outputs that are registered
+	 * @param data
+	 *            the input references by port name
+	 * @return the key, or <code>null</code> if the invocation has data for an
+	 *         unknown port
+	 */
+	public static String key(String scriptFingerprint, String templateFile,
+			ScriptExecutionPlan plan, List<ScriptExecutionPlan.OutputBinding> outputs,
+			Map<String, T2Reference> data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			update(digest, "outputs");
+			update(digest, scriptFingerprint);
+			if (templateFile != null) {
+				update(digest, templateFile);
+				update(digest, String.valueOf(new File(templateFile).lastModified()));
+			}
+			List<String> portNames = new ArrayList<String>(data.keySet());
+			Collections.sort(portNames);
+			for (String portName : portNames) {
+				ScriptExecutionPlan.InputBinding input = plan.getInput(portName);
+				if (input == null) {
+					return null;
+				}
+				update(digest, portName);
+				update(digest, String.valueOf(data.get(portName)));
+				update(digest, String.valueOf(input.getEscaping()));
+			}
+			for (ScriptExecutionPlan.OutputBinding output : outputs) {
+				update(digest, output.getName());
+				update(digest, String.valueOf(output.getDepth()));
+			}
+			return CompiledScriptCache.toHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not supported", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not supported", e);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the script is a Velocity template that
+	 *         loads other files, whose changes its key would not reflect
+	 */
+	public static boolean loadsOtherFiles(String script) {
+		return script != null && LOADS_OTHER_FILES.matcher(script).find();
+	}
+
+	private static void update(MessageDigest digest, String value)
+			throws UnsupportedEncodingException {
+		digest.update(value.getBytes("UTF-8"));
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * Returns the outputs cached for a key.
+	 * 
+	 * @param key
+	 *            the key from
+	 *            {@link #key(String, String, ScriptExecutionPlan, List, Map)}
+	 * @param referenceService
+	 *            the service the references are read by
+	 * @param context
+	 *            the context the references are resolved in
+	 * @return the output references by port name, or <code>null</code> if
+	 *         nothing is cached for the key or the outputs no longer resolve
+	 */
+	public Map<String, T2Reference> get(String key, ReferenceService referenceService,
+			ReferenceContext context) {
+		Map<String, String> references = cache.get(key);
+		if (references == null && store != null) {
+			references = readStored(key);
+			if (references != null) {
+				storeHitCount.incrementAndGet();
+				cache.putIfAbsent(key, references);
+			}
+		}
+		if (references == null) {
+			return null;
+		}
+		Map<String, T2Reference> outputData = new HashMap<String, T2Reference>();
+		for (Map.Entry<String, String> entry : references.entrySet()) {
+			T2Reference reference = referenceService.referenceFromString(entry.getValue());
+			if (!resolves(reference, referenceService, context)) {
+				logger.info("Dropping cached outputs " + key + " as " + reference
+						+ " no longer resolves");
+				staleCount.incrementAndGet();
+				cache.remove(key);
+				return null;
+			}
+			outputData.put(entry.getKey(), reference);
+		}
+		return outputData;
+	}
+
+	private static boolean resolves(T2Reference reference, ReferenceService referenceService,
+			ReferenceContext context) {
+		try {
+			Identified identified = referenceService.resolveIdentifier(reference, null, context);
+			return identified != null;
+		} catch (ReferenceServiceException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Caches the registered outputs of an invocation.
+	 * 
+	 * @param key
+	 *            the key of the invocation
+	 * @param outputData
+	 *            the output references by port name
+	 */
+	public void put(String key, Map<String, T2Reference> outputData) {
+		Map<String, String> references = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, T2Reference> entry : outputData.entrySet()) {
+			references.put(entry.getKey(), entry.getValue().toString());
+		}
+		references = Collections.unmodifiableMap(references);
+		if (cache.putIfAbsent(key, references) == references && store != null) {
+			store.write(key, serialise(references));
+		}
+	}
+
+	private Map<String, String> readStored(String key) {
+		byte[] payload = store.read(key);
+		if (payload == null) {
+			return null;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			int count = in.readInt();
+			Map<String, String> references = new LinkedHashMap<String, String>();
+			for (int i = 0; i < count; i++) {
+				references.put(in.readUTF(), in.readUTF());
+			}
+			return Collections.unmodifiableMap(references);
+		} catch (IOException e) {
+			logger.warn("Ignoring unreadable cached outputs " + key, e);
+			return null;
+		}
+	}
+
+	private static byte[] serialise(Map<String, String> references) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(references.size());
+			for (Map.Entry<String, String> entry : references.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeUTF(entry.getValue());
+			}
+			out.flush();
+		} catch (IOException e) {
+			// cannot happen writing to memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public int getMaxSize() {
+		return cache.getMaxSize();
+	}
+
+	/**
+	 * @return the number of lookups answered from memory or the store
+	 */
+	public long getHitCount() {
+		return cache.getHitCount() + storeHitCount.get() - staleCount.get();
+	}
+
+	/**
+	 * @return the number of lookups that found nothing, or outputs that no
+	 *         longer resolve
+	 */
+	public long getMissCount() {
+		return cache.getMissCount() - storeHitCount.get() + staleCount.get();
+	}
+
+	/**
+	 * @return the number of entries dropped because their outputs no longer
+	 *         resolve
+	 */
+	public long getStaleCount() {
+		return staleCount.get();
+	}
+
+	/**
+	 * @return the fraction of lookups that found cached outputs
+	 */
+	public double getHitRate() {
+		long lookups = cache.getHitCount() + cache.getMissCount();
+		return lookups == 0 ? 0 : getHitCount() / (double) lookups;
+	}
+
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+
+	@Override
+	public String toString() {
+		return "ScriptOutputCache[size=" + size() + "/" + getMaxSize() + ", hits=" + getHitCount()
+				+ ", misses=" + getMissCount() + "]";
+	}
+}
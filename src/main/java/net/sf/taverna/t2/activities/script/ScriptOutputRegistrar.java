@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Registers the outputs of script invocations with the reference service on
+ * a dedicated I/O executor, so the thread that ran the script can start the
+ * next one while the values are stored.
+ * <p>
+ * The reference service has no call storing several values at once, so the
+ * outputs of an invocation, or of every item in a batch, are submitted
+ * together and each is stored by its own task. Their round trips to the
+ * reference store overlap instead of following one another, and an
+ * invocation's results are returned through its callback as soon as its last
+ * output is stored. If any output cannot be stored, or anything else goes
+ * wrong, the invocation is failed instead. Output a {@link SpillingWriter}
+ * spilled to a temporary file is retained and registered as a file reference,
+ * so it is never read into memory, and the file is deleted if it cannot be
+ * stored; any other value, including a <code>File</code> returned by a
+ * script, is registered as it is and left alone. A {@link SharedOutput}, such
+ * as the STDERR of a batch, is stored once and its reference returned to every
+ * invocation it belongs to. When the queue of pending tasks is full, the
+ * thread submitting a task stores the output itself, which slows script
+ * evaluation down to the rate the reference service can keep up with.
+ * <p>
+ * The number of threads and the queue length can be changed with the system
+ * properties {@value #THREADS_PROPERTY} and {@value #QUEUE_SIZE_PROPERTY}. With
+ * no threads outputs are registered by the calling thread.
+ */
+public class ScriptOutputRegistrar {
+
+	public static final String THREADS_PROPERTY = "net.sf.taverna.t2.activities.script.registrar.threads";
+
+	public static final String QUEUE_SIZE_PROPERTY = "net.sf.taverna.t2.activities.script.registrar.queueSize";
+
+	private static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+	private static Logger logger = Logger.getLogger(ScriptOutputRegistrar.class);
+
+	private static ScriptOutputRegistrar instance;
+
+	private final ThreadPoolExecutor executor;
+
+	private final AtomicLong registeredCount = new AtomicLong();
+
+	protected ScriptOutputRegistrar(int threads, int queueSize) {
+		if (threads > 0) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "Script output registrar "
+									+ threadCount.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					}, new ThreadPoolExecutor.CallerRunsPolicy());
+			executor.allowCoreThreadTimeOut(true);
+		} else {
+			executor = null;
+		}
+	}
+
+	/**
+	 * @return the registrar shared by all script activities, sized from the
+	 *         system properties
+	 */
+	public static synchronized ScriptOutputRegistrar getInstance() {
+		if (instance == null) {
+			instance = new ScriptOutputRegistrar(Integer.getInteger(THREADS_PROPERTY,
+					DEFAULT_THREADS), Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE));
+		}
+		return instance;
+	}
+
+	/**
+	 * Registers the outputs of one or more invocations and returns each
+	 * invocation's results through its callback.
+	 * 
+	 * @param results
+	 *            the outputs of each invocation
+	 */
+	public void register(List<PendingResult> results) {
+		for (PendingResult result : results) {
+			result.start(this);
+		}
+	}
+
+	private void execute(Runnable task) {
+		if (executor == null) {
+			task.run();
+		} else {
+			executor.execute(task);
+		}
+	}
+
+	/**
+	 * @return the number of registration tasks waiting for a thread
+	 */
+	public int getQueueLength() {
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+
+	/**
+	 * @return the number of invocations whose outputs have been registered
+	 */
+	public long getRegisteredCount() {
+		return registeredCount.get();
+	}
+
+	/**
+	 * The unregistered outputs of one invocation.
+	 */
+	public static class PendingResult {
+
+		private final AsynchronousActivityCallback callback;
+
+		private final List<ScriptExecutionPlan.OutputBinding> outputs;
+
+		private final Object[] values;
+
+		private final String description;
+
+		/**
+		 * @param callback
+		 *            the callback of the invocation
+		 * @param outputs
+		 *            the output ports
+		 * @param values
+		 *            the value of each output port, or <code>null</code> where
+		 *            none was produced
+		 * @param description
+		 *            the activity, for error messages
+		 */
+		public PendingResult(AsynchronousActivityCallback callback,
+				List<ScriptExecutionPlan.OutputBinding> outputs, Object[] values, String description) {
+			this.callback = callback;
+			this.outputs = outputs;
+			this.values = values;
+			this.description = description;
+			this.references = new T2Reference[values.length];
+			this.remaining = new AtomicInteger(values.length);
+		}
+
+		private final T2Reference[] references;
+
+		private final AtomicInteger remaining;
+
+		private volatile Throwable failure;
+
+		private ScriptOutputRegistrar registrar;
+
+		/**
+		 * Submits a task storing each output.
+		 */
+		void start(ScriptOutputRegistrar registrar) {
+			this.registrar = registrar;
+			if (values.length == 0) {
+				complete();
+				return;
+			}
+			for (int i = 0; i < values.length; i++) {
+				final int index = i;
+				try {
+					registrar.execute(new Runnable() {
+						public void run() {
+							store(index);
+						}
+					});
+				} catch (Throwable t) {
+					// the executor has been shut down
+					failure = t;
+					deleteSpilledOutput(index);
+					outputDone();
+				}
+			}
+		}
+
+		private void store(int index) {
+			try {
+				if (failure == null) {
+					references[index] = register(outputs.get(index), values[index]);
+				}
+			} catch (Throwable t) {
+				failure = t;
+			} finally {
+				deleteSpilledOutput(index);
+				outputDone();
+			}
+		}
+
+		private void deleteSpilledOutput(int index) {
+			if (values[index] instanceof SpillingWriter.SpilledOutput) {
+				((SpillingWriter.SpilledOutput) values[index]).delete();
+			} else if (values[index] instanceof SharedOutput) {
+				((SharedOutput) values[index]).release();
+			}
+		}
+
+		private T2Reference register(ScriptExecutionPlan.OutputBinding output, Object value)
+				throws IOException {
+			if (value instanceof SharedOutput) {
+				return ((SharedOutput) value).register(this, output);
+			}
+			ReferenceService referenceService = callback.getContext().getReferenceService();
+			if (value == null) {
+				// an error document is already registered, so its identifier can be returned as it is
+				return referenceService.getErrorDocumentService().registerError(
+						"No value produced for output variable " + output.getName(),
+						output.getDepth(), callback.getContext()).getId();
+			}
+			if (value instanceof SpillingWriter.SpilledOutput) {
+				// registered as a file reference, so that a large output is
+				// never read into memory
+				File file = ((SpillingWriter.SpilledOutput) value).retain();
+				boolean registered = false;
+				try {
+					T2Reference reference = referenceService.register(file, output.getDepth(), true,
+							callback.getContext());
+					registered = true;
+					return reference;
+				} finally {
+					if (!registered) {
+						// nothing refers to the file
+						file.delete();
+					}
+				}
+			}
+			return referenceService.register(value, output.getDepth(), true, callback.getContext());
+		}
+
+		private void outputDone() {
+			if (remaining.decrementAndGet() == 0) {
+				complete();
+			}
+		}
+
+		/**
+		 * Returns the results, or the failure, once every output has been
+		 * dealt with.
+		 */
+		private void complete() {
+			if (failure != null) {
+				logger.error("Could not register the outputs of " + description, failure);
+				callback.fail("Error accessing input/output data for " + description, failure);
+				return;
+			}
+			Map<String, T2Reference> outputData = new HashMap<String, T2Reference>();
+			for (int i = 0; i < references.length; i++) {
+				outputData.put(outputs.get(i).getName(), references[i]);
+			}
+			try {
+				registered(outputData);
+			} catch (RuntimeException e) {
+				logger.warn("Ignoring failure after registering the outputs of " + description, e);
+			}
+			registrar.registeredCount.incrementAndGet();
+			callback.receiveResult(outputData, new int[0]);
+		}
+
+		/**
+		 * Called once all outputs have been registered, before they are
+		 * returned to the callback.
+		 * 
+		 * @param outputData
+		 *            the output references by port name
+		 */
+		protected void registered(Map<String, T2Reference> outputData) {
+		}
+	}
+
+	/**
+	 * A value of the same output of several invocations, stored by whichever
+	 * invocation gets to it first. A spilled value's file is retained once it
+	 * has been stored, or deleted once every invocation has been dealt with.
+	 */
+	public static final class SharedOutput {
+
+		private final Object value;
+
+		private int users;
+
+		private T2Reference reference;
+
+		private boolean attempted;
+
+		/**
+		 * @param value
+		 *            the value, as it would be given to a single invocation
+		 * @param users
+		 *            the number of invocations it is given to
+		 */
+		public SharedOutput(Object value, int users) {
+			this.value = value;
+			this.users = users;
+		}
+
+		private synchronized T2Reference register(PendingResult result,
+				ScriptExecutionPlan.OutputBinding output) throws IOException {
+			if (reference == null) {
+				if (attempted) {
+					throw new IOException("Output " + output.getName() + " could not be stored");
+				}
+				attempted = true;
+				try {
+					reference = result.register(output, value);
+				} finally {
+					delete();
+				}
+			}
+			return reference;
+		}
+
+		private synchronized void release() {
+			if (--users == 0) {
+				delete();
+			}
+		}
+
+		/**
+		 * Deletes the value's file if it was spilled by a
+		 * {@link SpillingWriter}.
+		 */
+		public void delete() {
+			if (value instanceof SpillingWriter.SpilledOutput) {
+				((SpillingWriter.SpilledOutput) value).delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * The text of a script activity's template file, for engines that do not
+ * read template files themselves. The file is read as UTF-8 and only read
+ * again when its modification time or length has changed, which is checked
+ * at most once per check interval.
+ */
+final class ScriptTemplateFile {
+
+	private final File file;
+
+	private final long checkInterval;
+
+	private volatile Snapshot snapshot;
+
+	/**
+	 * @param fileName
+	 *            the template file
+	 * @param checkInterval
+	 *            the minimum time in milliseconds between checks of the file
+	 *            for modification
+	 */
+	ScriptTemplateFile(String fileName, long checkInterval) {
+		this.file = new File(fileName);
+		this.checkInterval = checkInterval;
+	}
+
+	/**
+	 * @return the text of the template file
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	String getScript() throws IOException {
+		Snapshot current = snapshot;
+		long now = System.currentTimeMillis();
+		if (current != null && now - current.checked < checkInterval) {
+			return current.script;
+		}
+		long lastModified = file.lastModified();
+		long length = file.length();
+		if (current == null || current.lastModified != lastModified
+				|| current.length != length) {
+			current = new Snapshot(read(), lastModified, length, now);
+		} else {
+			current = current.recheck(now);
+		}
+		snapshot = current;
+		return current.script;
+	}
+
+	/**
+	 * @return <code>true</code> if the text of the template file, as a
+	 *         Velocity template, loads other files
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	boolean loadsOtherFiles() throws IOException {
+		getScript();
+		return snapshot.loadsOtherFiles();
+	}
+
+	private String read() throws IOException {
+		StringBuilder script = new StringBuilder();
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			char[] buffer = new char[4096];
+			int count;
+			while ((count = reader.read(buffer)) != -1) {
+				script.append(buffer, 0, count);
+			}
+		} finally {
+			reader.close();
+		}
+		return script.toString();
+	}
+
+	/**
+	 * @return the template file
+	 */
+	String getFileName() {
+		return file.getPath();
+	}
+
+	/**
+	 * @return the minimum time in milliseconds between checks of the file
+	 */
+	long getCheckInterval() {
+		return checkInterval;
+	}
+
+	private static final class Snapshot {
+
+		private final String script;
+
+		private final long lastModified;
+
+		private final long length;
+
+		private final long checked;
+
+		private volatile Boolean loadsOtherFiles;
+
+		private Snapshot(String script, long lastModified, long length, long checked) {
+			this.script = script;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.checked = checked;
+		}
+
+		/**
+		 * @return the snapshot of an unchanged file checked again
+		 */
+		private Snapshot recheck(long now) {
+			Snapshot snapshot = new Snapshot(script, lastModified, length, now);
+			snapshot.loadsOtherFiles = loadsOtherFiles;
+			return snapshot;
+		}
+
+		private boolean loadsOtherFiles() {
+			Boolean result = loadsOtherFiles;
+			if (result == null) {
+				// worked out once for each version of the file
+				loadsOtherFiles = result = ScriptOutputCache.loadsOtherFiles(script);
+			}
+			return result;
+		}
+	}
+}
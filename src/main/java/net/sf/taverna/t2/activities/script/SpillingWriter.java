@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.apache.velocity.script.util.DiagnosticsWriter;
+
+/**
+ * A writer that keeps its contents in memory until they grow beyond a
+ * threshold, and from then on writes them to a temporary file.
+ * <p>
+ * {@link #getValue()} returns the contents as a <code>String</code> if they
+ * stayed in memory, or otherwise a {@link SpilledOutput} for the file. The
+ * file belongs to the writer, not to the script. It is either deleted, or
+ * retained and registered as a file reference, without its contents ever
+ * being read back into memory. Spilled files are written as UTF-8 to the
+ * directory given by the system property {@value #SPILL_DIRECTORY_PROPERTY},
+ * or the default temporary directory, and retained files are moved to the
+ * directory given by {@value #RETAINED_DIRECTORY_PROPERTY}, by default
+ * <code>script-outputs</code> in the spill directory. The threshold, in
+ * characters, can be changed with the system property
+ * {@value #THRESHOLD_PROPERTY}.
+ * <p>
+ * Used as an error writer, exceptions reported by the engine are kept as they
+ * are and their stack traces only formatted into the contents by
+ * {@link #getValue()}.
+ */
+public class SpillingWriter extends DiagnosticsWriter {
+
+	public static final String THRESHOLD_PROPERTY = "net.sf.taverna.t2.activities.script.output.spillThreshold";
+
+	public static final String SPILL_DIRECTORY_PROPERTY = "net.sf.taverna.t2.activities.script.output.spillDirectory";
+
+	public static final String RETAINED_DIRECTORY_PROPERTY = "net.sf.taverna.t2.activities.script.output.retainedDirectory";
+
+	private static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+	private static final String CHARSET = "UTF-8";
+
+	private final int threshold;
+
+	private StringBuilder buffer = new StringBuilder();
+
+	private File file;
+
+	private Writer fileWriter;
+
+	private boolean closed;
+
+	/**
+	 * Creates a writer with the threshold from the system properties.
+	 */
+	public SpillingWriter() {
+		this(Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD));
+	}
+
+	/**
+	 * @param threshold
+	 *            the number of characters kept in memory before spilling to a
+	 *            file
+	 */
+	public SpillingWriter(int threshold) {
+		this.threshold = threshold;
+	}
+
+	@Override
+	protected void writeText(char[] cbuf, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Writer closed");
+		}
+		if (fileWriter == null && buffer.length() + len > threshold) {
+			spill();
+		}
+		if (fileWriter == null) {
+			buffer.append(cbuf, off, len);
+		} else {
+			fileWriter.write(cbuf, off, len);
+		}
+	}
+
+	@Override
+	protected void writeText(String str, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException("Writer closed");
+		}
+		if (fileWriter == null && buffer.length() + len > threshold) {
+			spill();
+		}
+		if (fileWriter == null) {
+			buffer.append(str, off, off + len);
+		} else {
+			fileWriter.write(str, off, len);
+		}
+	}
+
+	private void spill() throws IOException {
+		file = createFile();
+		fileWriter = newFileWriter(file);
+		fileWriter.write(buffer.toString());
+		buffer = null;
+	}
+
+	private static File createFile() throws IOException {
+		String directory = System.getProperty(SPILL_DIRECTORY_PROPERTY);
+		return File.createTempFile("script-output", ".txt", directory == null ? null
+				: new File(directory));
+	}
+
+	private static File getRetainedDirectory() {
+		String directory = System.getProperty(RETAINED_DIRECTORY_PROPERTY);
+		if (directory != null) {
+			return new File(directory);
+		}
+		String spillDirectory = System.getProperty(SPILL_DIRECTORY_PROPERTY);
+		return new File(spillDirectory == null ? System.getProperty("java.io.tmpdir")
+				: spillDirectory, "script-outputs");
+	}
+
+	private static Writer newFileWriter(File file) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET));
+	}
+
+	private static Reader newFileReader(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+	}
+
+	/**
+	 * @return <code>true</code> if the contents have been written to a file
+	 */
+	public boolean isSpilled() {
+		synchronized (lock) {
+			return file != null;
+		}
+	}
+
+	/**
+	 * Closes the writer and returns its contents, with the stack traces of
+	 * any exceptions reported to it.
+	 * 
+	 * @return the contents as a <code>String</code>, or the
+	 *         {@link SpilledOutput} holding them if they were spilled
+	 * @throws IOException
+	 *             if the file could not be completed
+	 */
+	public Object getValue() throws IOException {
+		synchronized (lock) {
+			close();
+			if (file == null) {
+				if (hasExceptions()) {
+					StringWriter merged = new StringWriter();
+					writeWithExceptions(new StringReader(buffer.toString()), merged);
+					buffer = new StringBuilder(merged.toString());
+				}
+				return buffer.toString();
+			}
+			if (hasExceptions()) {
+				File merged = createFile();
+				Reader in = newFileReader(file);
+				try {
+					Writer out = newFileWriter(merged);
+					try {
+						writeWithExceptions(in, out);
+					} finally {
+						out.close();
+					}
+				} catch (IOException e) {
+					merged.delete();
+					throw e;
+				} finally {
+					in.close();
+				}
+				file.delete();
+				file = merged;
+			}
+			return new SpilledOutput(file);
+		}
+	}
+
+	/**
+	 * Closes the writer and deletes its file, for output that will not be
+	 * returned.
+	 */
+	public void discard() {
+		synchronized (lock) {
+			try {
+				close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+			if (file != null) {
+				file.delete();
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		synchronized (lock) {
+			if (fileWriter != null && !closed) {
+				fileWriter.flush();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			if (!closed) {
+				closed = true;
+				if (fileWriter != null) {
+					fileWriter.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Output that was spilled to a temporary file by a {@link SpillingWriter}.
+	 */
+	public static final class SpilledOutput {
+
+		private File file;
+
+		private boolean retained;
+
+		private SpilledOutput(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * @return the file, in the spill directory or where it was retained
+		 */
+		public synchronized File getFile() {
+			return file;
+		}
+
+		/**
+		 * Moves the file to the retained directory, where it stays for as
+		 * long as the reference registered for it. From then on
+		 * {@link #delete()} leaves it alone.
+		 * 
+		 * @return the retained file
+		 * @throws IOException
+		 *             if the file could not be moved
+		 */
+		public synchronized File retain() throws IOException {
+			if (!retained) {
+				File directory = getRetainedDirectory();
+				if (!directory.isDirectory() && !directory.mkdirs()) {
+					throw new IOException("Could not create directory " + directory);
+				}
+				File retainedFile = new File(directory, file.getName());
+				if (!file.renameTo(retainedFile)) {
+					// on another file system
+					copy(file, retainedFile);
+					file.delete();
+				}
+				file = retainedFile;
+				retained = true;
+			}
+			return file;
+		}
+
+		private static void copy(File from, File to) throws IOException {
+			InputStream in = new FileInputStream(from);
+			try {
+				OutputStream out = new FileOutputStream(to);
+				try {
+					byte[] bytes = new byte[8192];
+					int read;
+					while ((read = in.read(bytes)) >= 0) {
+						out.write(bytes, 0, read);
+					}
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				to.delete();
+				throw e;
+			} finally {
+				in.close();
+			}
+		}
+
+		/**
+		 * @return a reader of the contents of the file
+		 * @throws IOException
+		 *             if the file cannot be opened
+		 */
+		public synchronized Reader newReader() throws IOException {
+			return newFileReader(file);
+		}
+
+		/**
+		 * Deletes the file, unless it has been retained, once it is no longer
+		 * needed.
+		 */
+		public synchronized void delete() {
+			if (!retained) {
+				file.delete();
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return file.toString();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package org.apache.velocity.script;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.VelocityException;
+import org.apache.velocity.runtime.directive.Foreach;
+
+/**
+ * The #foreach directive, stopping with a VelocityException when the rendering thread is interrupted. It replaces
+ * the standard directive in core engines from the VelocityEngineRegistry, so that a script stuck in a long or
+ * endless loop can be cancelled by interrupting its thread. The interrupt is left set for the caller to see.
+ */
+public class InterruptibleForeach extends Foreach {
+
+    @Override
+    protected void put(InternalContextAdapter context, String key, Object value) {
+        // called for every iteration, before the body is rendered
+        if (Thread.currentThread().isInterrupted()) {
+            throw new VelocityException("Rendering interrupted in #foreach at " + uberInfo);
+        }
+        super.put(context, key, value);
+    }
+}
@@ -47,8 +47,9 @@ public class VelocityBindings implements Bindings,Context {
      */
     public VelocityBindings(Map<String,Object> map) {
         if(map == null) {
-            ScriptUtil.addExceptionToErrorWriter(new NullPointerException("Cannot pass a null map to initialize VelocityBindings"));
-          throw new NullPointerException("Cannot pass a null map to initialize VelocityBindings");
+          NullPointerException exception = new NullPointerException("Cannot pass a null map to initialize VelocityBindings");
+          ScriptUtil.addExceptionToErrorWriter(exception);
+          throw exception;
         }
         this.map = map;
     }
@@ -197,16 +198,19 @@ public class VelocityBindings implements Bindings,Context {
      */
     private void validateKey(Object key) {
         if (key == null) {
-            ScriptUtil.addExceptionToErrorWriter(new NullPointerException("Cannot pass a null map to initialize VelocityBindings"));
-            throw new NullPointerException("The key cannot be null..!!");
+            NullPointerException exception = new NullPointerException("The key cannot be null..!!");
+            ScriptUtil.addExceptionToErrorWriter(exception);
+            throw exception;
         }
         if (!(key instanceof String)) {
-            ScriptUtil.addExceptionToErrorWriter(new ClassCastException("The key must be of the type String..!!"));
-            throw new ClassCastException("The key must be of the type String..!!");
+            ClassCastException exception = new ClassCastException("The key must be of the type String..!!");
+            ScriptUtil.addExceptionToErrorWriter(exception);
+            throw exception;
         }
         if (key.equals("")) {
-            ScriptUtil.addExceptionToErrorWriter(new IllegalArgumentException("The key cannot be empty..!!"));
-            throw new IllegalArgumentException("The key cannot be empty..!!");
+            IllegalArgumentException exception = new IllegalArgumentException("The key cannot be empty..!!");
+            ScriptUtil.addExceptionToErrorWriter(exception);
+            throw exception;
         }
     }
 
@@ -0,0 +1,148 @@
+package org.apache.velocity.script;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.velocity.context.AbstractContext;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Velocity context reading the engine and global scope Bindings of a ScriptContext directly. Variables are looked
+ * up in the engine scope and then the global scope; variables set by a template go into the engine scope.
+ *
+ * A context can be reused by the thread that acquired it. Velocity keeps its introspection cache in the context and
+ * that cache holds on to the syntax tree nodes it has seen, so a context is only reused for the same template, which
+ * also lets later merges start with a warm cache. Acquiring a context while the thread's context is still in use,
+ * for example by a script evaluated from within a template, gives a new one. The template is only weakly referenced,
+ * so an idle thread does not keep it alive.
+ */
+class VelocityBindingsContext extends AbstractContext {
+
+    private static final ThreadLocal<VelocityBindingsContext> threadContext =
+            new ThreadLocal<VelocityBindingsContext>();
+
+    private Bindings engineScope;
+
+    private Bindings globalScope;
+
+    /**
+     * The template this context was last acquired for, or null if it is not reusable
+     */
+    private WeakReference<Object> owner;
+
+    private boolean inUse;
+
+    /**
+     * Creates a context that is not reused.
+     *
+     * @param scriptContext the context whose bindings are read
+     */
+    VelocityBindingsContext(ScriptContext scriptContext) {
+        reset(scriptContext, null);
+    }
+
+    /**
+     * Returns the calling thread's context for a template, or a new context if the thread's context belongs to another
+     * template or is in use. The context must be released after the merge.
+     *
+     * @param scriptContext the context whose bindings are read
+     * @param owner         the template the context is used to merge
+     * @return a context reading the given bindings
+     */
+    static VelocityBindingsContext acquire(ScriptContext scriptContext, Object owner) {
+        VelocityBindingsContext context = threadContext.get();
+        if (owner == null || context == null || context.inUse || context.getOwner() != owner) {
+            VelocityBindingsContext created = new VelocityBindingsContext(scriptContext);
+            if (owner != null && (context == null || !context.inUse)) {
+                threadContext.set(created);
+            }
+            context = created;
+        }
+        context.reset(scriptContext, owner);
+        context.inUse = true;
+        return context;
+    }
+
+    /**
+     * Releases an acquired context, dropping its references to the bindings.
+     */
+    void release() {
+        engineScope = null;
+        globalScope = null;
+        inUse = false;
+    }
+
+    private void reset(ScriptContext scriptContext, Object owner) {
+        this.engineScope = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
+        this.globalScope = scriptContext.getBindings(ScriptContext.GLOBAL_SCOPE);
+        if (getOwner() != owner) {
+            this.owner = owner == null ? null : new WeakReference<Object>(owner);
+        }
+    }
+
+    private Object getOwner() {
+        return owner == null ? null : owner.get();
+    }
+
+    @Override
+    public Object internalGet(String key) {
+        Object value = engineScope == null ? null : engineScope.get(key);
+        if (value == null && globalScope != null) {
+            value = globalScope.get(key);
+        }
+        return value;
+    }
+
+    @Override
+    public Object internalPut(String key, Object value) {
+        return engineScope.put(key, value);
+    }
+
+    @Override
+    public boolean internalContainsKey(Object key) {
+        return (engineScope != null && engineScope.containsKey(key))
+                || (globalScope != null && globalScope.containsKey(key));
+    }
+
+    @Override
+    public Object[] internalGetKeys() {
+        List<Object> keys = new ArrayList<Object>();
+        if (engineScope != null) {
+            keys.addAll(engineScope.keySet());
+        }
+        if (globalScope != null) {
+            for (String key : globalScope.keySet()) {
+                if (engineScope == null || !engineScope.containsKey(key)) {
+                    keys.add(key);
+                }
+            }
+        }
+        return keys.toArray();
+    }
+
+    @Override
+    public Object internalRemove(Object key) {
+        return engineScope == null ? null : engineScope.remove(key);
+    }
+}
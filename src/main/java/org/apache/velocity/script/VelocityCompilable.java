@@ -19,17 +19,92 @@ package org.apache.velocity.script;
  * under the License.
  */
 
+import org.apache.velocity.Template;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+import org.apache.velocity.script.util.ScriptUtil;
+
 import javax.script.Compilable;
 import javax.script.CompiledScript;
+import javax.script.ScriptContext;
 import javax.script.ScriptException;
 import java.io.Reader;
+import java.io.StringReader;
 
+/**
+ * Compiles Velocity scripts by parsing them once into a Template. The template's syntax tree is initialised at
+ * compile time, so evaluating the resulting VelocityCompiledScript is only a merge against the given context.
+ *
+ * If the Velocity property VelocityScriptEngine.RENDER_MODE is set to "compiled" the template is also compiled by
+ * VelocityTemplateCompiler.
+ */
 public class VelocityCompilable implements Compilable {
+
+    /**
+     * The engine whose core engine parses the templates
+     */
+    private final VelocityScriptEngine scriptEngine;
+
+    /**
+     * @param scriptEngine the engine compiled scripts belong to
+     */
+    public VelocityCompilable(VelocityScriptEngine scriptEngine) {
+        this.scriptEngine = scriptEngine;
+    }
+
     public CompiledScript compile(String s) throws ScriptException {
-        return null;
+        if (s == null) {
+            throw new NullPointerException("Script passed cannot be null");
+        }
+        return compile(new StringReader(s));
+    }
+
+    /**
+     * Parses a script into an initialised template, whose inline macros are defined in the given namespace.
+     *
+     * @param script          the script text
+     * @param namespace       the name to parse the script under, from VelocityScriptEngine.getNamespace
+     * @param runtimeInstance the core engine to parse with
+     * @return the template
+     * @throws Exception if the script does not parse
+     */
+    Template parse(String script, String namespace, RuntimeInstance runtimeInstance) throws Exception {
+        Template template = new Template();
+        template.setRuntimeServices(runtimeInstance);
+        template.setName(namespace);
+        SimpleNode nodeTree;
+        try {
+            // the same text always defines the same macros, so there is nothing to clear from its namespace
+            nodeTree = runtimeInstance.parse(new StringReader(script), namespace, false);
+        } catch (ParseException exp) {
+            throw new ParseErrorException(exp, namespace);
+        }
+        scriptEngine.addNamespace(namespace);
+        template.setData(nodeTree);
+        template.initDocument();
+        return template;
     }
 
     public CompiledScript compile(Reader reader) throws ScriptException {
-        return null;
+        if (reader == null) {
+            throw new NullPointerException("Reader passed cannot be null");
+        }
+        RuntimeInstance runtimeInstance = scriptEngine.getRuntimeInstance();
+        ScriptContext enclosingContext = ScriptUtil.enterContext(scriptEngine.getContext());
+        try {
+            String script = VelocityScriptEngine.read(reader);
+            Template template = parse(script, VelocityScriptEngine.getNamespace(script), runtimeInstance);
+            if (VelocityTemplateCompiler.isEnabled(runtimeInstance)) {
+                VelocityTemplateCompiler.compile(template, runtimeInstance);
+            }
+            return new VelocityCompiledScript(scriptEngine, template);
+        } catch (Exception exp) {
+            ScriptUtil.addExceptionToErrorWriter(exp);
+            throw new ScriptException(exp);
+        } finally {
+            ScriptUtil.exitContext(enclosingContext);
+        }
     }
-}
\ No newline at end of file
+}
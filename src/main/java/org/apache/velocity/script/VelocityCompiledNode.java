@@ -0,0 +1,118 @@
+package org.apache.velocity.script;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.Renderable;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A block of a template compiled by VelocityTemplateCompiler. Text is written directly, plain references are looked
+ * up directly in the context and all other children are rendered by the interpreter.
+ *
+ * The node keeps the children, tokens and type of the block it replaces, so it looks the same as the original block
+ * to the directives that render it.
+ */
+class VelocityCompiledNode extends SimpleNode {
+
+    /**
+     * Text of each ASTText child, or null
+     */
+    private final char[][] texts;
+
+    /**
+     * Variable name of each plain reference child, or null
+     */
+    private final String[] references;
+
+    /**
+     * @param block      the block being replaced
+     * @param texts      text of each text child, or null for other children
+     * @param references variable name of each plain reference child, or null for other children
+     */
+    VelocityCompiledNode(SimpleNode block, char[][] texts, String[] references) {
+        super(block.getType());
+        this.texts = texts;
+        this.references = references;
+        rsvc = block.getRuntimeServices();
+        parent = block.jjtGetParent();
+        first = block.getFirstToken();
+        last = block.getLastToken();
+        templateName = block.getTemplateName();
+        info = block.getInfo();
+        int count = block.jjtGetNumChildren();
+        children = new Node[count];
+        for (int i = 0; i < count; i++) {
+            children[i] = block.jjtGetChild(i);
+        }
+    }
+
+    /**
+     * @return the variable name of the plain reference child at an index, or null if it is rendered some other way
+     */
+    String getReference(int index) {
+        return references[index];
+    }
+
+    @Override
+    public boolean render(InternalContextAdapter context, Writer writer)
+            throws IOException, MethodInvocationException, ParseErrorException, ResourceNotFoundException {
+        boolean referencesEnabled = !VelocityTemplateCompiler.handlesReferences(context.getEventCartridge());
+        for (int i = 0; i < children.length; i++) {
+            if (texts[i] != null) {
+                writer.write(texts[i]);
+            } else if (references[i] == null || !referencesEnabled || !writeReference(context, writer, references[i])) {
+                children[i].render(context, writer);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the value of a variable if it is one the interpreter would simply write as a string.
+     *
+     * @return false if the interpreter has to render the reference instead
+     */
+    private static boolean writeReference(InternalContextAdapter context, Writer writer, String name)
+            throws IOException {
+        Object value;
+        try {
+            value = context.get(name);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        if (value == null || value instanceof Renderable) {
+            return false;
+        }
+        String string = value.toString();
+        if (string == null) {
+            return false;
+        }
+        writer.write(string);
+        return true;
+    }
+}
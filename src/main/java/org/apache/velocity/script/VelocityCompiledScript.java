@@ -1,9 +1,14 @@
 package org.apache.velocity.script;
 
+import org.apache.velocity.Template;
+import org.apache.velocity.script.util.ScriptUtil;
+
 import javax.script.CompiledScript;
 import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
+import java.io.StringWriter;
+import java.io.Writer;
 
 /*
 * Licensed to the Apache Software Foundation (ASF) under one
@@ -23,19 +28,46 @@ import javax.script.ScriptException;
 * specific language governing permissions and limitations
 * under the License.
 */
+
+/**
+ * A Velocity script parsed into a Template. Each eval merges the template against the given context; the template is
+ * never parsed again, and may be evaluated by several threads at once.
+ */
 public class VelocityCompiledScript extends CompiledScript {
 
-    private ScriptEngine scriptEngine;
-    private String script = "";
+    private VelocityScriptEngine scriptEngine;
+    private Template template;
 
-    public VelocityCompiledScript(ScriptEngine scriptEngine,String script) {
+    public VelocityCompiledScript(VelocityScriptEngine scriptEngine, Template template) {
        this.scriptEngine = scriptEngine;
-       this.script = script;
+       this.template = template;
     }
 
     @Override
     public Object eval(ScriptContext context) throws ScriptException {
-        return scriptEngine.eval(script,context);
+        if (context == null) {
+            throw new NullPointerException("Context passed cannot be null");
+        }
+
+        Writer outPut;
+        if (context.getWriter() != null) {
+            outPut = context.getWriter();
+        } else {
+            outPut = new StringWriter();
+        }
+
+        ScriptContext enclosingContext = ScriptUtil.enterContext(context);
+        VelocityBindingsContext velocityContext = VelocityBindingsContext.acquire(context, template);
+        try {
+            template.merge(velocityContext, outPut);
+        } catch (Exception exp) {
+            ScriptUtil.addExceptionToErrorWriter(exp);
+            throw new ScriptException(exp);
+        } finally {
+            velocityContext.release();
+            ScriptUtil.exitContext(enclosingContext);
+        }
+        return String.valueOf(true);
     }
 
     @Override
@@ -43,4 +75,11 @@ public class VelocityCompiledScript extends CompiledScript {
         return scriptEngine;
     }
 
-}
\ No newline at end of file
+    /**
+     * @return the pre-parsed template this script merges
+     */
+    public Template getTemplate() {
+        return template;
+    }
+
+}
@@ -19,24 +19,212 @@ package org.apache.velocity.script;
  * under the License.
  */
 
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.script.util.ScriptUtil;
+
 import javax.script.Invocable;
+import javax.script.ScriptContext;
 import javax.script.ScriptException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Calls the #macro definitions of previously evaluated or compiled scripts as functions. Arguments are bound
+ * positionally to the macro's parameters and the rendered output of the macro is returned.
+ *
+ * Each call is made through a small template containing only the macro call, parsed in the namespace of the script
+ * that defined the macro. These templates are parsed once per namespace, macro name and number of arguments and then
+ * reused, so calling a macro does not parse anything.
+ */
 public class VelocityInvocable implements Invocable {
 
+    /**
+     * Prefix of the context names the arguments of a call are bound to
+     */
+    private static final String ARGUMENT_PREFIX = "velocityInvocableArg";
+
+    /**
+     * The engine whose macro library is called
+     */
+    private final VelocityScriptEngine scriptEngine;
+
+    /**
+     * Pre-parsed macro call templates, keyed by macro name and number of arguments
+     */
+    private final ConcurrentMap<String, Template> callTemplates = new ConcurrentHashMap<String, Template>();
+
+    /**
+     * The core engine the call templates were parsed with
+     */
+    private volatile RuntimeInstance callTemplatesRuntime;
+
+    /**
+     * @param scriptEngine the engine whose macros are called
+     */
+    public VelocityInvocable(VelocityScriptEngine scriptEngine) {
+        this.scriptEngine = scriptEngine;
+    }
+
+    /**
+     * Velocity scripts do not define objects, so there are no methods to call.
+     *
+     * @throws IllegalArgumentException always
+     */
     public Object invokeMethod(Object o, String s, Object... objects) throws ScriptException, NoSuchMethodException {
-        return null;
+        throw new IllegalArgumentException("Velocity scripts do not define objects");
     }
 
+    /**
+     * Calls a macro defined by a previously evaluated or compiled script.
+     *
+     * @param s       name of the macro
+     * @param objects arguments, bound to the macro's parameters in order
+     * @return the output rendered by the macro
+     * @throws ScriptException       if the macro fails
+     * @throws NoSuchMethodException if no macro of that name has been defined
+     */
     public Object invokeFunction(String s, Object... objects) throws ScriptException, NoSuchMethodException {
+        if (s == null) {
+            throw new NullPointerException("Macro name cannot be null");
+        }
+        if (objects == null) {
+            objects = new Object[0];
+        }
+        RuntimeInstance runtimeInstance = scriptEngine.getRuntimeInstance();
+        String namespace = findNamespace(runtimeInstance, s);
+        if (namespace == null) {
+            throw new NoSuchMethodException("No macro named " + s);
+        }
+        ScriptContext enclosingContext = ScriptUtil.enterContext(scriptEngine.getContext());
+        try {
+            return invokeMacro(runtimeInstance, namespace, s, objects);
+        } finally {
+            ScriptUtil.exitContext(enclosingContext);
+        }
+    }
+
+    /**
+     * Finds the namespace a macro is defined in, looking at the scripts of this engine from the most recently used and
+     * then at the global macros.
+     *
+     * @return the namespace, or null if there is no such macro
+     */
+    private String findNamespace(RuntimeInstance runtimeInstance, String name) {
+        for (String namespace : scriptEngine.getNamespaces()) {
+            if (runtimeInstance.isVelocimacro(name, namespace)) {
+                return namespace;
+            }
+        }
+        if (runtimeInstance.isVelocimacro(name, VelocityScriptEngine.DEFAULT_LOG_TAG)) {
+            return VelocityScriptEngine.DEFAULT_LOG_TAG;
+        }
         return null;
     }
 
+    private String invokeMacro(RuntimeInstance runtimeInstance, String namespace, String s, Object[] objects)
+            throws ScriptException {
+        Template template = getCallTemplate(runtimeInstance, namespace, s, objects.length);
+
+        VelocityContext velocityContext = new VelocityContext(
+                scriptEngine.getVelocityContext(scriptEngine.getContext()));
+        for (int i = 0; i < objects.length; i++) {
+            velocityContext.put(ARGUMENT_PREFIX + i, objects[i]);
+        }
+        StringWriter writer = new StringWriter();
+        try {
+            template.merge(velocityContext, writer);
+        } catch (Exception exp) {
+            ScriptUtil.addExceptionToErrorWriter(exp);
+            throw new ScriptException(exp);
+        }
+        return writer.toString();
+    }
+
+    private Template getCallTemplate(RuntimeInstance runtimeInstance, String namespace, String name, int arity)
+            throws ScriptException {
+        if (callTemplatesRuntime != runtimeInstance) {
+            callTemplates.clear();
+            callTemplatesRuntime = runtimeInstance;
+        }
+        String key = namespace + "/" + name + "/" + arity;
+        Template template = callTemplates.get(key);
+        if (template == null) {
+            StringBuilder call = new StringBuilder();
+            call.append("#").append(name).append("(");
+            for (int i = 0; i < arity; i++) {
+                if (i > 0) {
+                    call.append(" ");
+                }
+                call.append("$").append(ARGUMENT_PREFIX).append(i);
+            }
+            call.append(")");
+            try {
+                template = new Template();
+                template.setRuntimeServices(runtimeInstance);
+                // parsed in the macro's namespace so that the call finds it there
+                template.setName(namespace);
+                template.setData(runtimeInstance.parse(new StringReader(call.toString()), namespace, false));
+                template.initDocument();
+            } catch (Exception exp) {
+                ScriptUtil.addExceptionToErrorWriter(exp);
+                throw new ScriptException(exp);
+            }
+            callTemplates.put(key, template);
+        }
+        return template;
+    }
+
+    /**
+     * Returns an implementation of an interface whose methods call the macros of the same name. Every method must
+     * return void or a type a String can be assigned to.
+     *
+     * @param tClass the interface to implement
+     * @return the implementation, or null if a method has no matching macro or an unsupported return type
+     */
     public <T> T getInterface(Class<T> tClass) {
-        return null;
+        if (tClass == null || !tClass.isInterface()) {
+            throw new IllegalArgumentException("Not an interface: " + tClass);
+        }
+        RuntimeInstance runtimeInstance = scriptEngine.getRuntimeInstance();
+        for (Method method : tClass.getMethods()) {
+            Class<?> returnType = method.getReturnType();
+            if (returnType != Void.TYPE && !returnType.isAssignableFrom(String.class)) {
+                return null;
+            }
+            if (findNamespace(runtimeInstance, method.getName()) == null) {
+                return null;
+            }
+        }
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Object.class) {
+                    if ("equals".equals(method.getName())) {
+                        return proxy == args[0];
+                    } else if ("hashCode".equals(method.getName())) {
+                        return System.identityHashCode(proxy);
+                    }
+                    return "Velocity macros " + proxy.getClass().getInterfaces()[0].getName();
+                }
+                Object result = invokeFunction(method.getName(), args);
+                return method.getReturnType() == Void.TYPE ? null : result;
+            }
+        };
+        return tClass.cast(Proxy.newProxyInstance(tClass.getClassLoader(), new Class<?>[]{tClass}, handler));
     }
 
+    /**
+     * Velocity scripts do not define objects, so there are no methods to call.
+     *
+     * @throws IllegalArgumentException always
+     */
     public <T> T getInterface(Object o, Class<T> tClass) {
-        return null;
+        throw new IllegalArgumentException("Velocity scripts do not define objects");
     }
-}
\ No newline at end of file
+}
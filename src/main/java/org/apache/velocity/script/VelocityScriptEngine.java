@@ -23,14 +23,23 @@ package org.apache.velocity.script;
  * This file has been changed to cope with missing properties
  */
 import org.apache.velocity.Template;
-import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
-import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.Node;
 import org.apache.velocity.script.util.ScriptResourceHolder;
+import org.apache.velocity.script.util.VelocityEngineRegistry;
 import org.apache.velocity.script.util.ScriptUtil;
 
 import javax.script.*;
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -45,8 +54,22 @@ import java.util.Properties;
  *
  * There are two ways to instantiate VelocityScriptEngine. One is directly using the script engine factory which was used to create this
  * engine. Other one is by passing the factory and the pre defined bindings required for the engine.
+ *
+ * Scripts can also be compiled once with compile(String) or compile(Reader) and the resulting CompiledScript evaluated
+ * many times without parsing the template again. Macros defined by evaluated or compiled scripts can be called as
+ * functions through the Invocable methods.
+ *
+ * Core engines are shared by every script engine with the same properties, so each distinct script is parsed under a
+ * name derived from its text and its inline macros are kept in the namespace of that name. Two scripts defining a
+ * macro of the same name each call their own.
  */
-public class VelocityScriptEngine implements ScriptEngine {
+public class VelocityScriptEngine implements ScriptEngine, Compilable, Invocable {
+
+    /**
+     * Properties used when neither the context nor the system property names any, shared so that the core engine is
+     * found without fingerprinting them again
+     */
+    private static final Properties DEFAULT_PROPERTIES = new Properties();
 
     /**
      * ScriptEngineFactory reference from whom this engine got created
@@ -55,9 +78,56 @@ public class VelocityScriptEngine implements ScriptEngine {
 
 
     /**
-     * Velocity core engine reference
+     * Compiles scripts into pre-parsed templates
+     */
+    private final VelocityCompilable compilable = new VelocityCompilable(this);
+
+
+    /**
+     * Calls macros as functions
      */
-    private VelocityEngine velocityEngine;
+    private final VelocityInvocable invocable = new VelocityInvocable(this);
+
+
+    /**
+     * Number of inline scripts kept parsed
+     */
+    private static final int MAX_INLINE_TEMPLATES = 16;
+
+
+    /**
+     * Parsed templates of the scripts most recently evaluated inline, keyed by namespace, least recently used first
+     */
+    private final Map<String, InlineTemplate> inlineTemplates = new LinkedHashMap<String, InlineTemplate>(16, 0.75f,
+            true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, InlineTemplate> eldest) {
+            return size() > MAX_INLINE_TEMPLATES;
+        }
+    };
+
+
+    /**
+     * Number of macro namespaces remembered for Invocable calls
+     */
+    private static final int MAX_NAMESPACES = 64;
+
+
+    /**
+     * Macro namespaces of the scripts this engine evaluated or compiled, least recently used first
+     */
+    private final Map<String, Boolean> namespaces = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_NAMESPACES;
+        }
+    };
 
 
     /**
@@ -66,6 +136,32 @@ public class VelocityScriptEngine implements ScriptEngine {
     public static final String VELOCITY_PROPERTIES = "org.apache.velocity.engine.properties";
 
 
+    /**
+     * Velocity property choosing how compiled scripts are rendered, either RENDER_MODE_INTERPRETED (the default) or
+     * RENDER_MODE_COMPILED
+     */
+    public static final String RENDER_MODE = "org.apache.velocity.script.render.mode";
+
+
+    /**
+     * Render compiled scripts by interpreting the template's syntax tree
+     */
+    public static final String RENDER_MODE_INTERPRETED = "interpreted";
+
+
+    /**
+     * Render compiled scripts with a template compiled by VelocityTemplateCompiler
+     */
+    public static final String RENDER_MODE_COMPILED = "compiled";
+
+
+    /**
+     * Context attribute holding the minimum time in milliseconds between checks of a FILENAME template's file for
+     * modification
+     */
+    public static final String TEMPLATE_CHECK_INTERVAL = "org.apache.velocity.script.template.checkInterval";
+
+
     /**
      * Default velocity log tag
      */
@@ -86,7 +182,6 @@ public class VelocityScriptEngine implements ScriptEngine {
     public VelocityScriptEngine(ScriptEngineFactory scriptEngineFactory) {
         this.scriptEngineFactory = scriptEngineFactory;
         this.scriptContext = new VelocityScriptContext();
-        ScriptUtil.setScriptContext(scriptContext);
     }
 
     /**
@@ -96,12 +191,12 @@ public class VelocityScriptEngine implements ScriptEngine {
     public VelocityScriptEngine(ScriptEngineFactory scriptEngineFactory, Bindings bindings) {
         this.scriptEngineFactory = scriptEngineFactory;
         this.scriptContext = new VelocityScriptContext();
-        ScriptUtil.setScriptContext(scriptContext);
         if (bindings != null) {
             this.scriptContext.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
         } else {
-            ScriptUtil.addExceptionToErrorWriter(new NullPointerException("Bindings cannot be null"));
-            throw new NullPointerException("Bindings cannot be null");
+            NullPointerException exception = new NullPointerException("Bindings cannot be null");
+            ScriptUtil.addExceptionToErrorWriter(exception);
+            throw exception;
         }
     }
 
@@ -129,61 +224,111 @@ public class VelocityScriptEngine implements ScriptEngine {
     }
 
     /**
-     * Creates the velocity core engine by initializing it from reading property file/system properties
+     * Returns the velocity core engine for the properties taken from the context, or else from the property file
+     * named by the system property. Core engines are shared through VelocityEngineRegistry, so this only initialises
+     * an engine the first time a set of properties is seen.
      *
      * @param context
+     * @return the initialised core engine
      */
-    private void constructVelocityEngine(ScriptContext context) {
+    RuntimeInstance constructVelocityEngine(ScriptContext context) {
+        return VelocityEngineRegistry.getRuntimeInstance(getVelocityProperties(context));
+    }
 
+    private Properties getVelocityProperties(ScriptContext context) {
         Properties props = getPropertiesFromContext(context);
-        //Check if property exists in context
-        if (props != null) {
-            initVelocityEngine(props);
-            return;
-        } else {
-        	try {
-        		props = getPropertiesFromSystem();
-        	}
-        	catch (NullPointerException e) {
-        		props = new Properties();
-        	}
-            //Check if properties exists in System
-            if (props != null) {
-                initVelocityEngine(props);
-                return;
-            }
+        //Check if property exists in context, otherwise in System
+        if (props == null) {
+            props = getPropertiesFromSystem();
         }
         //Init velocity engine with default settings
-        initVelocityEngine();
+        if (props == null) {
+            props = DEFAULT_PROPERTIES;
+        }
+        return props;
     }
 
     /**
-     * Init velocity engine without properties.
+     * Returns the template for the FILENAME attribute, from ScriptResourceHolder if it has been loaded before and
+     * not modified since. Relative file names are resolved by the core engine's resource loaders. Absolute file names
+     * are loaded by a core engine whose file resource loader is rooted at the file system root, shared by templates
+     * in every directory. #parse and #include name files relative to the loader's path, so templates using them are
+     * loaded again by a core engine rooted at the template's own directory.
+     *
+     * @param fileName       name of the template file
+     * @param checkInterval  minimum time in milliseconds between checks of the file, or negative for the default
+     * @param velocityEngine core engine for the context's properties
+     * @param context        context holding the Velocity properties, if any
+     * @return the parsed template
+     * @throws Exception if the template cannot be found or parsed
      */
-    private void initVelocityEngine() {
+    private Template getFileTemplate(String fileName, long checkInterval, RuntimeInstance velocityEngine,
+                                     ScriptContext context) throws Exception {
+        // the context's core engine stands for its properties, which decide how the name is resolved
+        Template template = ScriptResourceHolder.getTemplate(velocityEngine, fileName, checkInterval);
+        //Cache miss
+        if (template == null) {
+            File file = new File(fileName);
+            if (file.isAbsolute()) {
+                Properties props = getVelocityProperties(context);
+                File root = file;
+                while (root.getParentFile() != null) {
+                    root = root.getParentFile();
+                }
+                String name = file.getPath().substring(root.getPath().length()).replace(File.separatorChar, '/');
+                template = getFileEngine(props, root).getTemplate(name);
+                if (loadsOtherFiles((Node) template.getData())) {
+                    template = getFileEngine(props, file.getParentFile()).getTemplate(file.getName());
+                }
+            } else {
+                template = velocityEngine.getTemplate(fileName);
+            }
+            ScriptResourceHolder.putTemplate(velocityEngine, fileName, template);
+        }
+        return template;
+    }
 
-        if (velocityEngine != null) {
+    /**
+     * @return the core engine for the properties with a file resource loader rooted at a directory
+     */
+    private static RuntimeInstance getFileEngine(Properties props, File directory) {
+        Properties fileProps = new Properties();
+        for (String name : props.stringPropertyNames()) {
+            fileProps.setProperty(name, props.getProperty(name));
+        }
+        fileProps.setProperty("file.resource.loader.path", directory.getPath());
+        return VelocityEngineRegistry.getRuntimeInstance(fileProps);
+    }
 
-//            Add sync block from a parallel thread creating two velocity engine instances
-            synchronized (this) {
-                velocityEngine = new VelocityEngine();
-                velocityEngine.init();
+    /**
+     * @return true if the syntax tree holds a #parse or #include directive
+     */
+    private static boolean loadsOtherFiles(Node node) {
+        if (node instanceof ASTDirective) {
+            String name = ((ASTDirective) node).getDirectiveName();
+            if ("parse".equals(name) || "include".equals(name)) {
+                return true;
             }
         }
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            if (loadsOtherFiles(node.jjtGetChild(i))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Initializes the velocity engine with pre defined properties
-     *
-     * @param props
+     * @return the TEMPLATE_CHECK_INTERVAL attribute of the context, or -1 if it has none
      */
-    private void initVelocityEngine(Properties props) {
-        if (velocityEngine == null) {
-            synchronized (this) {
-                velocityEngine = new VelocityEngine();
-                velocityEngine.init(props);
-            }
+    private static long getCheckInterval(ScriptContext context) {
+        Object checkIntervalAttribute = context.getAttribute(TEMPLATE_CHECK_INTERVAL);
+        if (checkIntervalAttribute instanceof Number) {
+            return ((Number) checkIntervalAttribute).longValue();
+        } else if (checkIntervalAttribute != null) {
+            return Long.parseLong(checkIntervalAttribute.toString());
         }
+        return -1;
     }
 
     /**
@@ -193,19 +338,16 @@ public class VelocityScriptEngine implements ScriptEngine {
      */
     private Properties getPropertiesFromSystem() {
         String propFileName = System.getProperty(VELOCITY_PROPERTIES);
-        File propFile = new File(propFileName);
-        if (propFile.exists()) {
-            Properties properties = new Properties();
-            try {
-                properties.load(new FileInputStream(propFile));
-                return properties;
-            } catch (IOException e) {
-                ScriptUtil.addExceptionToErrorWriter(e);
-                return null;
-            }
+        if (propFileName == null) {
+            return null;
+        }
+        try {
+            //TODO log error msg saying no such property file
+            return VelocityEngineRegistry.getProperties(propFileName);
+        } catch (IOException e) {
+            ScriptUtil.addExceptionToErrorWriter(e);
+            return null;
         }
-        //TODO log error msg saying no such property file
-        return null;
     }
 
     private Properties getPropertiesFromContext(ScriptContext context) {
@@ -235,7 +377,8 @@ public class VelocityScriptEngine implements ScriptEngine {
 
 
     /**
-     * Same as eval(String, ScriptContext) where the source of the script is read from a Reader.
+     * Same as eval(String, ScriptContext) where the source of the script is read from a Reader. If the context has a
+     * FILENAME attribute the template in that file is merged instead and the reader is not read.
      *
      * @param reader        The source of the script to be executed by the script engine.
      * @param scriptContext The ScriptContext passed to the script engine.
@@ -248,8 +391,16 @@ public class VelocityScriptEngine implements ScriptEngine {
         if (reader == null) {
             throw new NullPointerException("Reader passed cannot be null");
         }
-        constructVelocityEngine(scriptContext);
-        VelocityContext velocityContext = getVelocityContext(scriptContext);
+        ScriptContext enclosingContext = ScriptUtil.enterContext(scriptContext);
+        try {
+            return evalTemplate(reader, scriptContext);
+        } finally {
+            ScriptUtil.exitContext(enclosingContext);
+        }
+    }
+
+    private Object evalTemplate(Reader reader, ScriptContext scriptContext) throws ScriptException {
+        RuntimeInstance velocityEngine = constructVelocityEngine(scriptContext);
 
         Writer outPut;
         if (scriptContext.getWriter() != null) {
@@ -257,34 +408,68 @@ public class VelocityScriptEngine implements ScriptEngine {
         } else {
             outPut = new StringWriter();
         }
-        boolean result;
 
         try {
-            //Check for velocity tools vm file
+            //Templates read from a file replace the script
             if (scriptContext.getAttribute(VelocityScriptEngine.FILENAME) != null) {
-                Template template = null;
                 String fileName = scriptContext.getAttribute(VelocityScriptEngine.FILENAME).toString();
-                //Cache hit
-                if (ScriptResourceHolder.hasTemplate(fileName)) {
-                    template = ScriptResourceHolder.getTemplate(fileName);
-                } else {
-                    try {
-                        template = velocityEngine.getTemplate(fileName);
-                        ScriptResourceHolder.putTemplate(fileName,template);
-                        template.merge(velocityContext, outPut);
-                    } catch(ResourceNotFoundException e1){
-                    }
+                mergeFile(fileName, getCheckInterval(scriptContext), velocityEngine, scriptContext, outPut);
+                return String.valueOf(true);
+            }
 
-                }
+            Template template = getInlineTemplate(read(reader), velocityEngine);
+            VelocityBindingsContext velocityContext = VelocityBindingsContext.acquire(scriptContext, template);
+            try {
+                template.merge(velocityContext, outPut);
+            } finally {
+                velocityContext.release();
             }
 
-            result = velocityEngine.evaluate(velocityContext, outPut, VelocityScriptEngine.DEFAULT_LOG_TAG, reader);
+        } catch (Exception exp) {
+            ScriptUtil.addExceptionToErrorWriter(exp);
+            throw new ScriptException(exp);
+        }
+        return String.valueOf(true);
+    }
 
+    /**
+     * Merges the template in a file, as eval does for a context with a FILENAME attribute, without the file name or
+     * check interval having to be put in the context where scripts would see them.
+     *
+     * @param fileName      name of the template file
+     * @param checkInterval minimum time in milliseconds between checks of the file for modification, or negative for
+     *                      the default
+     * @param scriptContext the context the template is merged against
+     * @return The value returned from the execution of the script.
+     * @throws ScriptException if the template cannot be read or fails
+     */
+    public Object evalFile(String fileName, long checkInterval, ScriptContext scriptContext) throws ScriptException {
+        if (fileName == null) {
+            throw new NullPointerException("File name passed cannot be null");
+        }
+        ScriptContext enclosingContext = ScriptUtil.enterContext(scriptContext);
+        try {
+            Writer outPut = scriptContext.getWriter() != null ? scriptContext.getWriter() : new StringWriter();
+            mergeFile(fileName, checkInterval, constructVelocityEngine(scriptContext), scriptContext, outPut);
+            return String.valueOf(true);
         } catch (Exception exp) {
             ScriptUtil.addExceptionToErrorWriter(exp);
             throw new ScriptException(exp);
+        } finally {
+            ScriptUtil.exitContext(enclosingContext);
+        }
+    }
+
+    private void mergeFile(String fileName, long checkInterval, RuntimeInstance velocityEngine,
+                           ScriptContext scriptContext, Writer outPut) throws Exception {
+        Template template = getFileTemplate(fileName, checkInterval, velocityEngine, scriptContext);
+        addNamespace(template.getName());
+        VelocityBindingsContext velocityContext = VelocityBindingsContext.acquire(scriptContext, template);
+        try {
+            template.merge(velocityContext, outPut);
+        } finally {
+            velocityContext.release();
         }
-        return String.valueOf(result);
     }
 
     /**
@@ -353,8 +538,9 @@ public class VelocityScriptEngine implements ScriptEngine {
         if (bindings != null) {
             tmpContext.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
         } else {
-            ScriptUtil.addExceptionToErrorWriter(new NullPointerException("Engine scope Bindings cannot be null."));
-            throw new NullPointerException("Engine scope Bindings cannot be null.");
+            NullPointerException exception = new NullPointerException("Engine scope Bindings cannot be null.");
+            ScriptUtil.addExceptionToErrorWriter(exception);
+            throw exception;
         }
 
         tmpContext.setReader(scriptContext.getReader());
@@ -364,6 +550,164 @@ public class VelocityScriptEngine implements ScriptEngine {
         return tmpContext;
     }
 
+    /**
+     * Compiles the script into a pre-parsed template which can be evaluated repeatedly without being parsed again.
+     *
+     * @param s The script to be compiled.
+     * @return a CompiledScript to be executed later.
+     * @throws ScriptException if the script cannot be parsed.
+     */
+    public CompiledScript compile(String s) throws ScriptException {
+        return compilable.compile(s);
+    }
+
+
+    /**
+     * Same as compile(String) except that the source of the script is read from a Reader.
+     *
+     * @param reader The source of the script.
+     * @return a CompiledScript to be executed later.
+     * @throws ScriptException if the script cannot be parsed.
+     */
+    public CompiledScript compile(Reader reader) throws ScriptException {
+        return compilable.compile(reader);
+    }
+
+
+    /**
+     * Calls a macro defined by a previously evaluated or compiled script, binding the arguments to the macro's
+     * parameters in order.
+     *
+     * @param s       name of the macro
+     * @param objects arguments of the macro
+     * @return the output rendered by the macro
+     * @throws ScriptException       if the macro fails
+     * @throws NoSuchMethodException if no macro of that name has been defined
+     */
+    public Object invokeFunction(String s, Object... objects) throws ScriptException, NoSuchMethodException {
+        return invocable.invokeFunction(s, objects);
+    }
+
+
+    /**
+     * Velocity scripts do not define objects, so there are no methods to call.
+     *
+     * @throws IllegalArgumentException always
+     */
+    public Object invokeMethod(Object o, String s, Object... objects) throws ScriptException, NoSuchMethodException {
+        return invocable.invokeMethod(o, s, objects);
+    }
+
+
+    /**
+     * Returns an implementation of an interface whose methods call the macros of the same name.
+     *
+     * @param tClass the interface to implement
+     * @return the implementation, or null if a method has no matching macro
+     */
+    public <T> T getInterface(Class<T> tClass) {
+        return invocable.getInterface(tClass);
+    }
+
+
+    /**
+     * Velocity scripts do not define objects, so there are no methods to call.
+     *
+     * @throws IllegalArgumentException always
+     */
+    public <T> T getInterface(Object o, Class<T> tClass) {
+        return invocable.getInterface(o, tClass);
+    }
+
+
+    /**
+     * Returns the parsed template of a script evaluated inline, parsing it only if it is not among the most recently
+     * evaluated scripts.
+     */
+    private Template getInlineTemplate(String script, RuntimeInstance velocityEngine) throws Exception {
+        String namespace = getNamespace(script);
+        InlineTemplate inlineTemplate;
+        synchronized (inlineTemplates) {
+            inlineTemplate = inlineTemplates.get(namespace);
+        }
+        if (inlineTemplate == null || inlineTemplate.runtimeInstance != velocityEngine) {
+            inlineTemplate = new InlineTemplate(velocityEngine, compilable.parse(script, namespace, velocityEngine));
+            synchronized (inlineTemplates) {
+                inlineTemplates.put(namespace, inlineTemplate);
+            }
+        } else {
+            addNamespace(namespace);
+        }
+        return inlineTemplate.template;
+    }
+
+    /**
+     * Returns the name a script is parsed under, which is also the namespace of the macros it defines.
+     *
+     * @param script the script text
+     * @return a name unique to the text
+     */
+    static String getNamespace(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes("UTF-8"));
+            StringBuilder namespace = new StringBuilder(DEFAULT_LOG_TAG).append('_');
+            for (byte b : digest) {
+                namespace.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return namespace.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+
+    /**
+     * Reads a script into a String.
+     */
+    static String read(Reader reader) throws IOException {
+        StringBuilder script = new StringBuilder();
+        char[] buffer = new char[4096];
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            script.append(buffer, 0, count);
+        }
+        return script.toString();
+    }
+
+    /**
+     * Remembers the namespace of a script evaluated or compiled by this engine, so that its macros can be called.
+     *
+     * @param namespace the name the script was parsed under
+     */
+    void addNamespace(String namespace) {
+        synchronized (namespaces) {
+            namespaces.put(namespace, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @return the macro namespaces of the scripts this engine evaluated or compiled, most recently used first
+     */
+    List<String> getNamespaces() {
+        List<String> result;
+        synchronized (namespaces) {
+            result = new ArrayList<String>(namespaces.keySet());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Returns the Velocity core engine, creating it from the default context's properties if no script has been
+     * evaluated yet.
+     *
+     * @return the core engine
+     */
+    RuntimeInstance getRuntimeInstance() {
+        return constructVelocityEngine(scriptContext);
+    }
+
     /**
      * Sets a key/value pair in the state of the ScriptEngine that may either create a Java Language Binding to be used in the
      * execution of scripts or be used in some other way, depending on whether the key is reserved. Must have the same effect
@@ -378,13 +722,15 @@ public class VelocityScriptEngine implements ScriptEngine {
     public void put(String s, Object o) {
 
         if (s == null) {
-            ScriptUtil.addExceptionToErrorWriter(new NullPointerException("Name cannot be null"));
-            throw new NullPointerException("Name cannot be null");
+            NullPointerException exception = new NullPointerException("Name cannot be null");
+            ScriptUtil.addExceptionToErrorWriter(exception);
+            throw exception;
         }
 
         if ("".equals(s)) {
-            ScriptUtil.addExceptionToErrorWriter(new IllegalArgumentException("Name cannot be empty"));
-            throw new IllegalArgumentException("Name cannot be empty");
+            IllegalArgumentException exception = new IllegalArgumentException("Name cannot be empty");
+            ScriptUtil.addExceptionToErrorWriter(exception);
+            throw exception;
         }
 
         Bindings engineScope = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
@@ -406,13 +752,15 @@ public class VelocityScriptEngine implements ScriptEngine {
     public Object get(String s) {
 
         if (s == null) {
-            ScriptUtil.addExceptionToErrorWriter(new NullPointerException("Name cannot be null"));
-            throw new NullPointerException("Name cannot be null");
+            NullPointerException exception = new NullPointerException("Name cannot be null");
+            ScriptUtil.addExceptionToErrorWriter(exception);
+            throw exception;
         }
 
         if ("".equals(s)) {
-            ScriptUtil.addExceptionToErrorWriter(new IllegalArgumentException("Name cannot be empty"));
-            throw new IllegalArgumentException("Name cannot be empty");
+            IllegalArgumentException exception = new IllegalArgumentException("Name cannot be empty");
+            ScriptUtil.addExceptionToErrorWriter(exception);
+            throw exception;
         }
 
         Bindings engineScope = scriptContext.getBindings(ScriptContext.ENGINE_SCOPE);
@@ -477,21 +825,28 @@ public class VelocityScriptEngine implements ScriptEngine {
         this.scriptContext = scriptContext;
     }
 
-    private VelocityContext getVelocityContext(ScriptContext ctx) {
-        Bindings engineScope = ctx.getBindings(ScriptContext.ENGINE_SCOPE);
-        if (ctx.getBindings(ScriptContext.GLOBAL_SCOPE) == null) {
-            return new VelocityContext(engineScope);
-        } else {
-            return new VelocityContext(engineScope, new VelocityContext(ctx.getBindings(ScriptContext.GLOBAL_SCOPE)));
-        }
+    /**
+     * Returns a Velocity context reading the engine and global scope bindings of a script context directly.
+     *
+     * @param ctx the script context
+     * @return a new context over its bindings
+     */
+    Context getVelocityContext(ScriptContext ctx) {
+        return new VelocityBindingsContext(ctx);
     }
 
-    private String getTargetFilename(ScriptContext ctx) {
-        Object fileName = ctx.getAttribute(ScriptEngine.FILENAME);
-        if (fileName != null) {
-            return fileName.toString();
-        } else {
-            return "No-Such-File";
+    /**
+     * A parsed inline script and the core engine it was parsed with
+     */
+    private static final class InlineTemplate {
+
+        private final RuntimeInstance runtimeInstance;
+
+        private final Template template;
+
+        private InlineTemplate(RuntimeInstance runtimeInstance, Template template) {
+            this.runtimeInstance = runtimeInstance;
+            this.template = template;
         }
     }
-}
\ No newline at end of file
+}
@@ -38,6 +38,15 @@ import java.util.List;
  */
 public class VelocityScriptEngineFactory implements ScriptEngineFactory {
 
+    /**
+     * Value reported for the THREADING parameter. The engine may be used by several threads at once as long as each
+     * evaluation has its own ScriptContext: core engines are initialised once under a lock, templates are cached in
+     * thread safe maps and every evaluation merges into a context built from its own bindings, which
+     * VelocityScriptEngineTest checks by evaluating one engine from several threads. The macros of every script it
+     * evaluated stay callable through Invocable, so the engine is not THREAD-ISOLATED.
+     */
+    public static final String THREADING = "MULTITHREADED";
+
     /**
      *  names of the script engine
      */
@@ -218,7 +227,7 @@ public class VelocityScriptEngineFactory implements ScriptEngineFactory {
         } else if (s.equals(ScriptEngine.LANGUAGE_VERSION)) {
             return getLanguageVersion();
         } else if (s.equals("THREADING")) {
-            return "MULTITHREADED";
+            return THREADING;
         } else {
             return null;
         }
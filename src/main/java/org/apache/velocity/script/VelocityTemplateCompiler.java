@@ -0,0 +1,157 @@
+package org.apache.velocity.script;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.event.EventCartridge;
+import org.apache.velocity.context.InternalContextAdapterImpl;
+import org.apache.velocity.exception.VelocityException;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.parser.node.ASTBlock;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.ASTText;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Compiles the syntax tree of an initialised Template into specialised render code. Every block of the template,
+ * including the template itself and the bodies of #foreach, #if and other directives, is replaced by a
+ * VelocityCompiledNode that writes its text directly and looks plain $references up directly in the context.
+ *
+ * Everything else, such as directives, method calls and references that need escaping or event handling, is left to
+ * the interpreter, so a compiled template renders exactly the same output as the interpreted one.
+ */
+public class VelocityTemplateCompiler {
+
+    /**
+     * Value a reference is rendered with to check that it writes its value as it is
+     */
+    private static final String PROBE = "\u0000value\u0000";
+
+    private VelocityTemplateCompiler() {
+    }
+
+    /**
+     * @param runtimeServices the core engine templates are parsed with
+     * @return true if the engine is configured to render compiled scripts with compiled templates
+     */
+    public static boolean isEnabled(RuntimeServices runtimeServices) {
+        return VelocityScriptEngine.RENDER_MODE_COMPILED.equalsIgnoreCase(
+                runtimeServices.getString(VelocityScriptEngine.RENDER_MODE, VelocityScriptEngine.RENDER_MODE_INTERPRETED));
+    }
+
+    /**
+     * Compiles the syntax tree of a template in place. The template must have been initialised.
+     *
+     * @param template        the template to compile
+     * @param runtimeServices the core engine the template was parsed with
+     * @throws IOException if the text of the template cannot be read
+     */
+    public static void compile(Template template, RuntimeServices runtimeServices) throws IOException {
+        if (!(template.getData() instanceof SimpleNode) || template.getData() instanceof VelocityCompiledNode) {
+            return;
+        }
+        boolean referencesEnabled = !handlesReferences(runtimeServices.getApplicationEventCartridge());
+        template.setData(compileBlock((SimpleNode) template.getData(), referencesEnabled));
+    }
+
+    private static VelocityCompiledNode compileBlock(SimpleNode block, boolean referencesEnabled) throws IOException {
+        int count = block.jjtGetNumChildren();
+        char[][] texts = new char[count][];
+        String[] references = new String[count];
+        for (int i = 0; i < count; i++) {
+            Node child = block.jjtGetChild(i);
+            if (child instanceof ASTText) {
+                CharArrayWriter text = new CharArrayWriter();
+                child.render(null, text);
+                texts[i] = text.toCharArray();
+            } else if (referencesEnabled && isPlainReference(child)) {
+                references[i] = ((ASTReference) child).getRootString();
+            } else {
+                compileChildBlocks(child, referencesEnabled);
+            }
+        }
+        return new VelocityCompiledNode(block, texts, references);
+    }
+
+    /**
+     * Replaces the blocks found below a node the interpreter renders, so that loop and branch bodies are compiled too.
+     */
+    private static void compileChildBlocks(Node node, boolean referencesEnabled) throws IOException {
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            Node child = node.jjtGetChild(i);
+            if (child instanceof ASTBlock) {
+                node.jjtAddChild(compileBlock((SimpleNode) child, referencesEnabled), i);
+            } else {
+                compileChildBlocks(child, referencesEnabled);
+            }
+        }
+    }
+
+    /**
+     * The engine always has an application event cartridge, so only the handlers that see references being written
+     * keep references from being compiled.
+     *
+     * @param cartridge the application or context event cartridge, or null
+     * @return true if the cartridge has handlers that see references being written
+     */
+    static boolean handlesReferences(EventCartridge cartridge) {
+        return cartridge != null && (hasNext(cartridge.getReferenceInsertionEventHandlers())
+                || hasNext(cartridge.getInvalidReferenceEventHandlers()));
+    }
+
+    /**
+     * The cartridge returns null rather than an empty iterator for a kind of handler it has never been given.
+     */
+    private static boolean hasNext(Iterator<?> handlers) {
+        return handlers != null && handlers.hasNext();
+    }
+
+    /**
+     * A plain reference is a variable without methods, properties, index, quiet or escape markers, which renders as
+     * the string value of the variable whenever that value is set. Initialising the template strips escaping
+     * backslashes from the reference's tokens, so an escaped reference is only told apart by rendering it.
+     */
+    private static boolean isPlainReference(Node node) throws IOException {
+        if (!(node instanceof ASTReference) || node.jjtGetNumChildren() != 0) {
+            return false;
+        }
+        String name = ((ASTReference) node).getRootString();
+        String literal = node.literal();
+        if (name == null || name.length() == 0
+                || !(literal.equals("$" + name) || literal.equals("${" + name + "}"))) {
+            return false;
+        }
+        VelocityContext values = new VelocityContext();
+        values.put(name, PROBE);
+        CharArrayWriter rendered = new CharArrayWriter();
+        try {
+            node.render(new InternalContextAdapterImpl(values), rendered);
+        } catch (VelocityException e) {
+            return false;
+        }
+        return rendered.toString().equals(PROBE);
+    }
+}
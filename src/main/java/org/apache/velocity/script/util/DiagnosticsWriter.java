@@ -0,0 +1,191 @@
+package org.apache.velocity.script.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An error writer that keeps the exceptions reported through ScriptUtil and only formats their stack traces when the
+ * contents are read with toString. Text written to it is kept in order with the exceptions.
+ * <p>
+ * Subclasses can keep the text elsewhere by overriding the writeText methods, and merge the stack traces into it
+ * when it is read with {@link #writeWithExceptions(Reader, Writer)}.
+ */
+public class DiagnosticsWriter extends Writer {
+
+    private final StringBuilder buffer = new StringBuilder();
+
+    /**
+     * Exceptions not yet formatted, with the text position they were reported at
+     */
+    private final List<PendingException> pending = new ArrayList<PendingException>();
+
+    /**
+     * The number of characters of text written so far
+     */
+    private long length;
+
+    public DiagnosticsWriter() {
+        lock = pending;
+    }
+
+    /**
+     * Records an exception, to be formatted when the contents are read.
+     *
+     * @param exception the exception
+     */
+    public void addException(Throwable exception) {
+        synchronized (lock) {
+            pending.add(new PendingException(length, exception));
+        }
+    }
+
+    /**
+     * @return true if nothing has been written or reported
+     */
+    public boolean isEmpty() {
+        synchronized (lock) {
+            return length == 0 && pending.isEmpty();
+        }
+    }
+
+    /**
+     * @return true if exceptions have been reported that are not yet formatted
+     */
+    protected boolean hasExceptions() {
+        synchronized (lock) {
+            return !pending.isEmpty();
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        synchronized (lock) {
+            writeText(cbuf, off, len);
+            length += len;
+        }
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        write(str, 0, str.length());
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        synchronized (lock) {
+            writeText(str, off, len);
+            length += len;
+        }
+    }
+
+    /**
+     * Keeps text written to this writer; called holding the lock.
+     */
+    protected void writeText(char[] cbuf, int off, int len) throws IOException {
+        buffer.append(cbuf, off, len);
+    }
+
+    /**
+     * Keeps text written to this writer; called holding the lock.
+     */
+    protected void writeText(String str, int off, int len) throws IOException {
+        buffer.append(str, off, off + len);
+    }
+
+    /**
+     * Copies the text written to this writer, read back from text, to out with the stack traces of the reported
+     * exceptions where they were reported. The exceptions are not formatted again.
+     *
+     * @param text the text written to this writer
+     * @param out where to copy it
+     * @throws IOException if the text cannot be read or copied
+     */
+    protected void writeWithExceptions(Reader text, Writer out) throws IOException {
+        synchronized (lock) {
+            char[] chars = new char[8192];
+            long position = 0;
+            long written = 0;
+            for (PendingException pendingException : pending) {
+                position += copy(text, out, chars, pendingException.position - position);
+                String trace = ScriptUtil.formatException(pendingException.exception);
+                out.write(trace);
+                written += trace.length();
+            }
+            position += copy(text, out, chars, Long.MAX_VALUE);
+            pending.clear();
+            length = position + written;
+        }
+    }
+
+    private static long copy(Reader text, Writer out, char[] chars, long count) throws IOException {
+        long copied = 0;
+        while (copied < count) {
+            int read = text.read(chars, 0, (int) Math.min(chars.length, count - copied));
+            if (read < 0) {
+                break;
+            }
+            out.write(chars, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    /**
+     * @return the text written so far, with the stack traces of the reported exceptions
+     */
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                PendingException pendingException = pending.get(i);
+                buffer.insert((int) pendingException.position,
+                        ScriptUtil.formatException(pendingException.exception));
+            }
+            pending.clear();
+            length = buffer.length();
+            return buffer.toString();
+        }
+    }
+
+    private static final class PendingException {
+
+        private final long position;
+
+        private final Throwable exception;
+
+        private PendingException(long position, Throwable exception) {
+            this.position = position;
+            this.exception = exception;
+        }
+    }
+}
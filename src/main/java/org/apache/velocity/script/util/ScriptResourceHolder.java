@@ -20,28 +20,306 @@ package org.apache.velocity.script.util;
  */
 
 import org.apache.velocity.Template;
+import org.apache.velocity.runtime.RuntimeServices;
 
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Holds templates loaded from files, keyed by the core engine that loaded them and the file name, so that they are
+ * only parsed once. The same name can be resolved to different files, or parsed with different properties, by
+ * different core engines, so a template is only returned for the engine it was cached for.
+ *
+ * The cache keeps at most a fixed number of templates and evicts the least recently used one when it is full.
+ * Templates can also expire a fixed time after they were loaded, and are dropped when their source file is modified.
+ * The limits are set with the system properties MAX_SIZE_PROPERTY, EXPIRY_PROPERTY and CHECK_INTERVAL_PROPERTY.
+ */
 public class ScriptResourceHolder {
 
     /**
-     * Holds the template with their matching template file name
-      */
-private static Map<String,Template> templateCache = new HashMap<String, Template>();
+     * System property holding the maximum number of cached templates
+     */
+    public static final String MAX_SIZE_PROPERTY = "org.apache.velocity.script.templateCache.maxSize";
+
+    /**
+     * System property holding the time in milliseconds after which a cached template expires, 0 for never
+     */
+    public static final String EXPIRY_PROPERTY = "org.apache.velocity.script.templateCache.expiry";
+
+    /**
+     * System property holding the minimum time in milliseconds between checks of a template's source file
+     */
+    public static final String CHECK_INTERVAL_PROPERTY = "org.apache.velocity.script.templateCache.checkInterval";
+
+    private static final TemplateCache templateCache = new TemplateCache(
+            Integer.getInteger(MAX_SIZE_PROPERTY, 100),
+            Long.getLong(EXPIRY_PROPERTY, 0L),
+            Long.getLong(CHECK_INTERVAL_PROPERTY, 1000L));
+
+    private ScriptResourceHolder() {
+    }
+
+    public static void putTemplate(String fileName, Template template) {
+        templateCache.put(fileName, template);
+    }
+
+    /**
+     * @param runtimeServices the core engine the template was loaded by
+     * @param fileName        the template file name
+     * @param template        the template
+     */
+    public static void putTemplate(RuntimeServices runtimeServices, String fileName, Template template) {
+        templateCache.put(runtimeServices, fileName, template);
+    }
+
+    /**
+     * @param fileName the template file name
+     * @return the cached template, or null if it is not cached, has expired or its file has been modified
+     */
+    public static Template getTemplate(String fileName) {
+        return templateCache.get(fileName);
+    }
+
+    /**
+     * @param fileName      the template file name
+     * @param checkInterval minimum time in milliseconds between checks of the template's file, or a negative number
+     *                      for the default interval
+     * @return the cached template, or null if it is not cached, has expired or its file has been modified
+     */
+    public static Template getTemplate(String fileName, long checkInterval) {
+        return templateCache.get(fileName, checkInterval);
+    }
+
+    /**
+     * @param runtimeServices the core engine the template is loaded by
+     * @param fileName        the template file name
+     * @param checkInterval   minimum time in milliseconds between checks of the template's file, or a negative
+     *                        number for the default interval
+     * @return the cached template, or null if it is not cached, has expired or its file has been modified
+     */
+    public static Template getTemplate(RuntimeServices runtimeServices, String fileName, long checkInterval) {
+        return templateCache.get(runtimeServices, fileName, checkInterval);
+    }
+
+    public static boolean hasTemplate(String fileName) {
+        return templateCache.get(fileName) != null;
+    }
+
+    public static void removeTemplate(String fileName) {
+        templateCache.remove(fileName);
+    }
+
+    public static void clear() {
+        templateCache.clear();
+    }
+
+    /**
+     * @return the cache behind the static methods, for its statistics
+     */
+    public static TemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
+    /**
+     * A bounded, least recently used cache of templates. All methods are thread safe; the lock is only held while the
+     * map itself is read or changed. Templates cached by file name alone are kept apart from those cached for a core
+     * engine.
+     */
+    public static class TemplateCache {
+
+        private final int maxSize;
+
+        private final long expiry;
+
+        private final long checkInterval;
+
+        private final LinkedHashMap<TemplateKey, Entry> entries;
+
+        private final AtomicLong hitCount = new AtomicLong();
+
+        private final AtomicLong missCount = new AtomicLong();
+
+        private final AtomicLong evictionCount = new AtomicLong();
+
+        /**
+         * @param maxSize       maximum number of templates
+         * @param expiry        time in milliseconds after which a template expires, 0 for never
+         * @param checkInterval minimum time in milliseconds between checks of a template's source file
+         */
+        public TemplateCache(int maxSize, long expiry, long checkInterval) {
+            this.maxSize = Math.max(1, maxSize);
+            this.expiry = expiry;
+            this.checkInterval = checkInterval;
+            this.entries = new LinkedHashMap<TemplateKey, Entry>(16, 0.75f, true);
+        }
+
+        public void put(String fileName, Template template) {
+            put(null, fileName, template);
+        }
+
+        /**
+         * @param runtimeServices the core engine the template was loaded by, or null to cache it by file name alone
+         * @param fileName        the template file name
+         * @param template        the template
+         */
+        public void put(RuntimeServices runtimeServices, String fileName, Template template) {
+            Entry entry = new Entry(template);
+            synchronized (entries) {
+                entries.put(new TemplateKey(runtimeServices, fileName), entry);
+                Iterator<Entry> iterator = entries.values().iterator();
+                while (entries.size() > maxSize && iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                    evictionCount.incrementAndGet();
+                }
+            }
+        }
+
+        public Template get(String fileName) {
+            return get(fileName, checkInterval);
+        }
+
+        /**
+         * @param fileName      the template file name
+         * @param checkInterval minimum time in milliseconds between checks of the template's file, or a negative
+         *                      number for the interval this cache was created with
+         * @return the cached template, or null if it is not cached, has expired or its file has been modified
+         */
+        public Template get(String fileName, long checkInterval) {
+            return get(null, fileName, checkInterval);
+        }
+
+        /**
+         * @param runtimeServices the core engine the template is loaded by, or null for a template cached by file name
+         *                        alone
+         * @param fileName        the template file name
+         * @param checkInterval   minimum time in milliseconds between checks of the template's file, or a negative
+         *                        number for the interval this cache was created with
+         * @return the cached template, or null if it is not cached, has expired or its file has been modified
+         */
+        public Template get(RuntimeServices runtimeServices, String fileName, long checkInterval) {
+            if (checkInterval < 0) {
+                checkInterval = this.checkInterval;
+            }
+            TemplateKey key = new TemplateKey(runtimeServices, fileName);
+            Entry entry;
+            synchronized (entries) {
+                entry = entries.get(key);
+            }
+            if (entry != null && isStale(entry, checkInterval)) {
+                synchronized (entries) {
+                    if (entries.get(key) == entry) {
+                        entries.remove(key);
+                        evictionCount.incrementAndGet();
+                    }
+                }
+                entry = null;
+            }
+            if (entry == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            hitCount.incrementAndGet();
+            return entry.template;
+        }
+
+        private boolean isStale(Entry entry, long checkInterval) {
+            long now = System.currentTimeMillis();
+            if (expiry > 0 && now - entry.loaded >= expiry) {
+                return true;
+            }
+            if (entry.template.getResourceLoader() != null && now - entry.lastChecked >= checkInterval) {
+                entry.lastChecked = now;
+                return entry.template.isSourceModified();
+            }
+            return false;
+        }
+
+        public void remove(String fileName) {
+            synchronized (entries) {
+                entries.remove(new TemplateKey(null, fileName));
+            }
+        }
+
+        public void clear() {
+            synchronized (entries) {
+                entries.clear();
+            }
+        }
+
+        public int size() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        public long getHitCount() {
+            return hitCount.get();
+        }
+
+        public long getMissCount() {
+            return missCount.get();
+        }
+
+        /**
+         * @return the number of templates dropped because the cache was full, they expired or their file changed
+         */
+        public long getEvictionCount() {
+            return evictionCount.get();
+        }
+
+        @Override
+        public String toString() {
+            return "TemplateCache[size=" + size() + ", maxSize=" + maxSize + ", hits=" + getHitCount()
+                    + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+        }
+    }
+
+    /**
+     * A file name and the core engine it is resolved by, compared by identity
+     */
+    private static final class TemplateKey {
+
+        private final RuntimeServices runtimeServices;
+
+        private final String fileName;
+
+        private TemplateKey(RuntimeServices runtimeServices, String fileName) {
+            this.runtimeServices = runtimeServices;
+            this.fileName = fileName;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TemplateKey)) {
+                return false;
+            }
+            TemplateKey other = (TemplateKey) obj;
+            return runtimeServices == other.runtimeServices && fileName.equals(other.fileName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(runtimeServices) + fileName.hashCode();
+        }
+    }
 
+    private static final class Entry {
 
- public static void putTemplate(String fileName,Template template){
-    templateCache.put(fileName,template);
- }
+        private final Template template;
 
- public static Template getTemplate(String fileName){
-     return  templateCache.get(fileName);
- }
+        private final long loaded = System.currentTimeMillis();
 
- public static boolean hasTemplate(String fileName){
-     return templateCache.containsKey(fileName);
- }
+        private volatile long lastChecked = loaded;
 
-}
\ No newline at end of file
+        private Entry(Template template) {
+            this.template = template;
+        }
+    }
+}
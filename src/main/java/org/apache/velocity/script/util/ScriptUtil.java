@@ -2,8 +2,8 @@ package org.apache.velocity.script.util;
 
 
 import javax.script.ScriptContext;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.IOException;
+import java.io.Writer;
 
 /*
 * Licensed to the Apache Software Foundation (ASF) under one
@@ -23,20 +23,102 @@ import java.io.StringWriter;
 * specific language governing permissions and limitations
 * under the License.
 */
+
+/**
+ * Reports exceptions to the error writer of the script invocation running on the current thread. An invocation is
+ * marked with enterContext and exitContext; exceptions raised outside an invocation are only thrown to the caller.
+ *
+ * If the error writer is a DiagnosticsWriter the exception is kept as it is and only formatted when the writer's
+ * contents are read. Any other writer gets the formatted stack trace straight away. Stack traces are cut to the
+ * number of frames set by the system property STACK_DEPTH_PROPERTY, negative for complete traces.
+ */
 public class ScriptUtil {
 
-    private static ScriptContext scriptContext;
+    /**
+     * System property holding the number of stack frames printed for each exception
+     */
+    public static final String STACK_DEPTH_PROPERTY = "org.apache.velocity.script.diagnostics.stackDepth";
+
+    private static final ThreadLocal<ScriptContext> currentContext = new ThreadLocal<ScriptContext>();
 
-    public static void setScriptContext(ScriptContext scriptContext){
-        ScriptUtil.scriptContext = scriptContext;
+    /**
+     * @deprecated exceptions now go to the invocation running on the current thread, see enterContext
+     */
+    @Deprecated
+    public static void setScriptContext(ScriptContext scriptContext) {
     }
 
-    public static void addExceptionToErrorWriter(Exception exc) {
-        StringWriter stringWriter = new StringWriter();
-        PrintWriter printWriter = new PrintWriter(stringWriter);
-        exc.printStackTrace(printWriter);
-        scriptContext.setErrorWriter(stringWriter);
+    /**
+     * Marks the start of an invocation using the given context on the current thread.
+     *
+     * @param scriptContext the context of the invocation
+     * @return the context of the enclosing invocation, to be passed to exitContext
+     */
+    public static ScriptContext enterContext(ScriptContext scriptContext) {
+        ScriptContext previous = currentContext.get();
+        currentContext.set(scriptContext);
+        return previous;
+    }
+
+    /**
+     * Marks the end of an invocation on the current thread.
+     *
+     * @param previous the value returned by the matching enterContext
+     */
+    public static void exitContext(ScriptContext previous) {
+        if (previous == null) {
+            currentContext.remove();
+        } else {
+            currentContext.set(previous);
+        }
     }
-}
 
+    public static void addExceptionToErrorWriter(Exception exc) {
+        ScriptContext scriptContext = currentContext.get();
+        if (scriptContext == null) {
+            return;
+        }
+        Writer errorWriter = scriptContext.getErrorWriter();
+        if (errorWriter instanceof DiscardingWriter) {
+            return;
+        } else if (errorWriter instanceof DiagnosticsWriter) {
+            ((DiagnosticsWriter) errorWriter).addException(exc);
+        } else if (errorWriter != null) {
+            try {
+                errorWriter.write(formatException(exc));
+                errorWriter.flush();
+            } catch (IOException e) {
+                // nowhere left to report it
+            }
+        }
+    }
 
+    /**
+     * Formats an exception and its causes like Throwable.printStackTrace, with at most the configured number of frames
+     * for each.
+     *
+     * @param exc the exception
+     * @return the formatted stack trace
+     */
+    public static String formatException(Throwable exc) {
+        int depth = Integer.getInteger(STACK_DEPTH_PROPERTY, -1);
+        StringBuilder builder = new StringBuilder();
+        String prefix = "";
+        for (Throwable throwable = exc; throwable != null; throwable = throwable.getCause()) {
+            builder.append(prefix).append(throwable).append('\n');
+            StackTraceElement[] stackTrace = throwable.getStackTrace();
+            int frames = depth < 0 ? stackTrace.length : Math.min(depth, stackTrace.length);
+            for (int i = 0; i < frames; i++) {
+                builder.append("\tat ").append(stackTrace[i]).append('\n');
+            }
+            if (frames < stackTrace.length) {
+                builder.append("\t... ").append(stackTrace.length - frames).append(" more\n");
+            }
+            if (throwable.getCause() == throwable) {
+                break;
+            }
+            prefix = "Caused by: ";
+        }
+        return builder.toString();
+    }
+}
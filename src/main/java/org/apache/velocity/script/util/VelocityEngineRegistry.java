@@ -0,0 +1,268 @@
+package org.apache.velocity.script.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.script.InterruptibleForeach;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shares Velocity core engines between script engines. An engine is created and initialised the first time a set of
+ * properties is used and then reused for every script evaluated with the same effective properties, however many
+ * Properties objects or script engines they come from. A Properties object looked up recently is recognised by
+ * identity and hash code, so its properties are not fingerprinted again. At most MAX_SIZE_PROPERTY engines are kept;
+ * the least recently used one is dropped when another is needed, and scripts already parsed by it keep working.
+ *
+ * Core engines run #foreach loops with the InterruptibleForeach directive, so that scripts can be cancelled. Any user
+ * directives set in the properties are kept, and a user directive named foreach still wins.
+ *
+ * Since a core engine is shared by unrelated scripts, inline macros are kept in the namespace of the script that
+ * defines them unless the properties say otherwise; VelocityScriptEngine gives each distinct script its own namespace.
+ *
+ * Properties files are also cached, and only read again when their modification time or length changes.
+ */
+public class VelocityEngineRegistry {
+
+    /**
+     * System property holding the maximum number of core engines kept
+     */
+    public static final String MAX_SIZE_PROPERTY = "org.apache.velocity.script.engineRegistry.maxSize";
+
+    /**
+     * Number of Properties objects remembered for each engine kept
+     */
+    private static final int RECENT_PER_ENGINE = 4;
+
+    /**
+     * Velocity property listing the classes of user directives
+     */
+    private static final String USER_DIRECTIVES = "userdirective";
+
+    /**
+     * Velocity property letting inline macros be defined in the namespace of their template rather than globally
+     */
+    private static final String INLINE_LOCAL_SCOPE = "velocimacro.permissions.allow.inline.local.scope";
+
+    private static final int maxSize = Math.max(1, Integer.getInteger(MAX_SIZE_PROPERTY, 16));
+
+    /**
+     * Initialised core engines, keyed by the fingerprint of their properties. Also the lock for recentProperties.
+     */
+    private static final Map<String, RuntimeInstance> engines = new LruMap<String, RuntimeInstance>(maxSize);
+
+    /**
+     * Engines by the Properties object they were last looked up with
+     */
+    private static final Map<PropertiesKey, RecentProperties> recentProperties =
+            new LruMap<PropertiesKey, RecentProperties>(maxSize * RECENT_PER_ENGINE);
+
+    /**
+     * Loaded properties files, keyed by absolute path
+     */
+    private static final ConcurrentMap<String, PropertiesFile> propertiesFiles =
+            new ConcurrentHashMap<String, PropertiesFile>();
+
+    private VelocityEngineRegistry() {
+    }
+
+    /**
+     * Returns the core engine for a set of properties, creating and initialising it on first use.
+     *
+     * @param properties the Velocity properties, which should not be changed once used
+     * @return an initialised core engine
+     */
+    public static RuntimeInstance getRuntimeInstance(Properties properties) {
+        PropertiesKey key = new PropertiesKey(properties);
+        // a cheap check that the properties have not been changed since
+        int hashCode = properties.hashCode();
+        synchronized (engines) {
+            RecentProperties recent = recentProperties.get(key);
+            if (recent != null && recent.hashCode == hashCode) {
+                return recent.engine;
+            }
+        }
+        String fingerprint = fingerprint(properties);
+        synchronized (engines) {
+            RuntimeInstance engine = engines.get(fingerprint);
+            if (engine == null) {
+                engine = new RuntimeInstance();
+                engine.init(getEffectiveProperties(properties));
+                engines.put(fingerprint, engine);
+            }
+            recentProperties.put(key, new RecentProperties(hashCode, engine));
+            return engine;
+        }
+    }
+
+    /**
+     * @return the number of core engines kept
+     */
+    public static int getEngineCount() {
+        synchronized (engines) {
+            return engines.size();
+        }
+    }
+
+    /**
+     * Copies the properties, including defaults, adding the InterruptibleForeach directive and local macro scope.
+     */
+    private static Properties getEffectiveProperties(Properties properties) {
+        Properties effective = new Properties();
+        for (String name : properties.stringPropertyNames()) {
+            effective.setProperty(name, properties.getProperty(name));
+        }
+        // directives listed later replace earlier ones of the same name
+        String userDirectives = effective.getProperty(USER_DIRECTIVES);
+        if (userDirectives == null || userDirectives.trim().length() == 0) {
+            effective.setProperty(USER_DIRECTIVES, InterruptibleForeach.class.getName());
+        } else {
+            effective.setProperty(USER_DIRECTIVES, InterruptibleForeach.class.getName() + "," + userDirectives);
+        }
+        if (effective.getProperty(INLINE_LOCAL_SCOPE) == null) {
+            effective.setProperty(INLINE_LOCAL_SCOPE, "true");
+        }
+        return effective;
+    }
+
+    /**
+     * Returns the contents of a properties file, reading it again only if it has been modified since it was last
+     * read. The returned Properties are shared and must not be changed.
+     *
+     * @param fileName name of the properties file
+     * @return the properties, or null if there is no such file
+     * @throws IOException if the file cannot be read
+     */
+    public static Properties getProperties(String fileName) throws IOException {
+        File file = new File(fileName).getAbsoluteFile();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (lastModified == 0L && !file.exists()) {
+            propertiesFiles.remove(file.getPath());
+            return null;
+        }
+        PropertiesFile propertiesFile = propertiesFiles.get(file.getPath());
+        if (propertiesFile == null || propertiesFile.lastModified != lastModified || propertiesFile.length != length) {
+            Properties properties = new Properties();
+            InputStream inputStream = new FileInputStream(file);
+            try {
+                properties.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+            propertiesFile = new PropertiesFile(properties, lastModified, length);
+            propertiesFiles.put(file.getPath(), propertiesFile);
+        }
+        return propertiesFile.properties;
+    }
+
+    /**
+     * Fingerprints the effective properties, including defaults. Velocity only reads String values, so other values
+     * are left out just as Velocity ignores them.
+     *
+     * @param properties the Velocity properties
+     * @return a key equal for all properties Velocity would initialise identically
+     */
+    static String fingerprint(Properties properties) {
+        StringBuilder fingerprint = new StringBuilder();
+        for (String name : new TreeSet<String>(properties.stringPropertyNames())) {
+            fingerprint.append(name).append('\u0000').append(properties.getProperty(name)).append('\u0000');
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * A map keeping at most a fixed number of entries, dropping the least recently used one when it is full
+     */
+    private static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        private LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    /**
+     * Compares Properties objects by identity, as their own equals compares their contents
+     */
+    private static final class PropertiesKey {
+
+        private final Properties properties;
+
+        private PropertiesKey(Properties properties) {
+            this.properties = properties;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof PropertiesKey && ((PropertiesKey) obj).properties == properties;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(properties);
+        }
+    }
+
+    private static final class RecentProperties {
+
+        private final int hashCode;
+
+        private final RuntimeInstance engine;
+
+        private RecentProperties(int hashCode, RuntimeInstance engine) {
+            this.hashCode = hashCode;
+            this.engine = engine;
+        }
+    }
+
+    private static final class PropertiesFile {
+
+        private final Properties properties;
+
+        private final long lastModified;
+
+        private final long length;
+
+        private PropertiesFile(Properties properties, long lastModified, long length) {
+            this.properties = properties;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
@@ -169,4 +169,19 @@ public class BeanshellActivityHealthCheckerTest {
 		System.out.println(visit);
 		assertEquals(Status.OK, visit.getStatus());
 	}
+
+	@Test
+	public void unknownLanguage() throws Exception {
+		ScriptActivity activity = new ScriptActivity();
+		ScriptActivityConfigurationBean bean = new ScriptActivityConfigurationBean();
+		bean.setEngineName("no such language");
+		bean.setScript("a = 5+3;");
+		activity.configure(bean);
+
+		ScriptActivityHealthChecker healthChecker = new ScriptActivityHealthChecker();
+		ArrayList<Object> ancestors = new ArrayList<Object>();
+		ancestors.add(edits.createProcessor("beanie"));
+		VisitReport visit = healthChecker.visit(activity, ancestors);
+		assertEquals(Status.SEVERE, visit.getStatus());
+	}
 }
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+
+import org.apache.velocity.script.VelocityScriptEngine;
+import org.apache.velocity.script.VelocityScriptEngineFactory;
+import org.junit.Test;
+
+/**
+ * CompiledScriptCache tests
+ *
+ */
+public class CompiledScriptCacheTest {
+
+	private static final String SCRIPT = "#set($out = \"$in!\")";
+
+	private static ScriptEngine newEngine() {
+		return new VelocityScriptEngine(new VelocityScriptEngineFactory());
+	}
+
+	@Test
+	public void sameScriptIsSharedBetweenActivities() throws Exception {
+		CompiledScriptCache cache = new CompiledScriptCache(4);
+		String fingerprint = CompiledScriptCache.fingerprint("velocity", "1.7", SCRIPT);
+		CompiledScript first = cache.getCompiledScript(fingerprint, newEngine(), SCRIPT);
+		CompiledScript second = cache.getCompiledScript(
+				CompiledScriptCache.fingerprint("velocity", "1.7", SCRIPT), newEngine(), SCRIPT);
+		assertSame("The second activity should reuse the compiled script", first, second);
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void newEngineVersionMisses() throws Exception {
+		String oldFingerprint = CompiledScriptCache.fingerprint("velocity", "1.7", SCRIPT);
+		String newFingerprint = CompiledScriptCache.fingerprint("velocity", "1.8", SCRIPT);
+		assertFalse(oldFingerprint.equals(newFingerprint));
+
+		CompiledScriptCache cache = new CompiledScriptCache(4);
+		CompiledScript oldScript = cache.getCompiledScript(oldFingerprint, newEngine(), SCRIPT);
+		CompiledScript newScript = cache.getCompiledScript(newFingerprint, newEngine(), SCRIPT);
+		assertNotSame("A new engine version should compile the script again", oldScript, newScript);
+		assertEquals(0, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+	}
+
+	@Test
+	public void leastRecentlyUsedScriptIsEvicted() throws Exception {
+		CompiledScriptCache cache = new CompiledScriptCache(2);
+		ScriptEngine engine = newEngine();
+		CompiledScript a = cache.getCompiledScript("a", engine, "a");
+		CompiledScript b = cache.getCompiledScript("b", engine, "b");
+		assertSame(a, cache.getCompiledScript("a", engine, "a"));
+		cache.getCompiledScript("c", engine, "c");
+
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(2, cache.size());
+		assertSame("The recently used script should have been kept", a,
+				cache.getCompiledScript("a", engine, "a"));
+		assertNotSame("The least recently used script should have been evicted", b,
+				cache.getCompiledScript("b", engine, "b"));
+	}
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.T2Reference;
+
+import org.apache.velocity.script.VelocityScriptEngine;
+import org.apache.velocity.script.VelocityScriptEngineFactory;
+import org.junit.Test;
+
+/**
+ * LazyInputBindings tests
+ *
+ */
+public class LazyInputBindingsTest {
+
+	private int renderCount;
+
+	private ReferenceService referenceService = (ReferenceService) Proxy.newProxyInstance(
+			getClass().getClassLoader(), new Class<?>[] { ReferenceService.class },
+			new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("renderIdentifier")) {
+						renderCount++;
+						return "<" + args[0] + ">";
+					}
+					throw new UnsupportedOperationException(method.getName());
+				}
+			});
+
+	@Test
+	public void onlyInputsReadByTheScriptAreRendered() throws Exception {
+		ScriptEngine engine = new VelocityScriptEngine(new VelocityScriptEngineFactory());
+		ScriptContext context = new ScriptInvocationContext(engine);
+		LazyInputBindings bindings = new LazyInputBindings(context
+				.getBindings(ScriptContext.ENGINE_SCOPE), referenceService, null);
+		context.setBindings(bindings, ScriptContext.ENGINE_SCOPE);
+		bindings.putReference("used", reference("a"), String.class, ScriptEscapingType.XML);
+		bindings.putReference("unused", reference("b"), String.class, ScriptEscapingType.TEXT);
+
+		StringWriter writer = new StringWriter();
+		context.setWriter(writer);
+		engine.eval("#if(false)$unused#end$used $used", context);
+		assertEquals("&lt;a&gt; &lt;a&gt;", writer.toString());
+		assertEquals(1, renderCount);
+		assertEquals(1, bindings.getPendingCount());
+
+		bindings.entrySet();
+		assertEquals(2, renderCount);
+		assertEquals("<b>", bindings.get("unused"));
+	}
+
+	private T2Reference reference(final String name) {
+		return (T2Reference) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { T2Reference.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("toString")) {
+							return name;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+}
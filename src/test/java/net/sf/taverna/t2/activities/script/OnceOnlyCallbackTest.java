@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+import net.sf.taverna.t2.workflowmodel.processor.dispatch.events.DispatchErrorType;
+
+import org.junit.Test;
+
+/**
+ * OnceOnlyCallback tests
+ *
+ */
+public class OnceOnlyCallbackTest {
+
+	private final List<String> calls = new CopyOnWriteArrayList<String>();
+
+	private OnceOnlyCallback callback() {
+		return new OnceOnlyCallback((AsynchronousActivityCallback) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { AsynchronousActivityCallback.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						calls.add(method.getName() + args.length);
+						return null;
+					}
+				}));
+	}
+
+	@Test
+	public void onlyTheFirstOutcomeIsPassedOn() {
+		OnceOnlyCallback callback = callback();
+		callback.fail("timeout", new Exception(), DispatchErrorType.INVOCATION);
+		callback.receiveResult(Collections.<String, T2Reference> emptyMap(), new int[0]);
+		callback.receiveCompletion(new int[0]);
+		callback.fail("late", new Exception());
+		callback.fail("late");
+		assertEquals(Collections.singletonList("fail3"), calls);
+	}
+
+	@Test
+	public void completionEndsTheInvocation() {
+		OnceOnlyCallback callback = callback();
+		callback.receiveCompletion(new int[0]);
+		callback.fail("late");
+		assertEquals(Collections.singletonList("receiveCompletion1"), calls);
+	}
+}
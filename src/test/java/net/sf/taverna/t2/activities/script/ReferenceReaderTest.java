@@ -0,0 +1,121 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import net.sf.taverna.t2.reference.ExternalReferenceSPI;
+import net.sf.taverna.t2.reference.ReferenceContext;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.ReferenceSet;
+import net.sf.taverna.t2.reference.ReferenceSetService;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.reference.T2ReferenceType;
+
+import org.junit.Test;
+
+/**
+ * ReferenceReader tests
+ *
+ */
+public class ReferenceReaderTest {
+
+	private int openCount;
+
+	@Test
+	public void readsTheCheapestExternalReference() throws Exception {
+		final ReferenceSet referenceSet = new ReferenceSet() {
+			public java.util.Set<ExternalReferenceSPI> getExternalReferences() {
+				return new HashSet<ExternalReferenceSPI>(Arrays.asList(
+						externalReference("remote\n", 100f), externalReference("line 1\nline 2\n", 1f)));
+			}
+
+			public T2Reference getId() {
+				return null;
+			}
+		};
+		ReferenceService referenceService = proxy(ReferenceService.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return new ReferenceSetService() {
+					public ReferenceSet getReferenceSet(T2Reference id) {
+						return referenceSet;
+					}
+				};
+			}
+		});
+
+		ReferenceReader reader = ReferenceReader.newReader(referenceService,
+				reference(T2ReferenceType.ReferenceSet), null);
+		assertEquals(0, openCount);
+		BufferedReader lines = new BufferedReader(reader);
+		assertEquals("line 1", lines.readLine());
+		assertEquals("line 2", lines.readLine());
+		assertNull(lines.readLine());
+		assertEquals(1, openCount);
+		lines.close();
+	}
+
+	@Test
+	public void listsAreNotStreamed() throws Exception {
+		assertNull(ReferenceReader.newReader(null, reference(T2ReferenceType.IdentifiedList), null));
+	}
+
+	private ExternalReferenceSPI externalReference(final String value, final float cost) {
+		return new ExternalReferenceSPI() {
+			public InputStream openStream(ReferenceContext context) {
+				openCount++;
+				return new ByteArrayInputStream(value.getBytes());
+			}
+
+			public String getCharset() {
+				return null;
+			}
+
+			public float getResolutionCost() {
+				return cost;
+			}
+		};
+	}
+
+	private T2Reference reference(final T2ReferenceType type) {
+		return proxy(T2Reference.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return type;
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { type }, handler);
+	}
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.ReferenceServiceException;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.OutputPort;
+import net.sf.taverna.t2.workflowmodel.Port;
+import net.sf.taverna.t2.workflowmodel.processor.activity.ActivityInputPort;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import org.junit.Test;
+
+/**
+ * Batch mode tests of ScriptActivity
+ *
+ */
+public class ScriptActivityBatchTest {
+
+	private static final String SEPARATOR = "\u001E";
+
+	@Test
+	public void outputIsSplitIntoRecords() throws Exception {
+		assertEquals(Arrays.asList("a", "b"), ScriptActivity.splitBatchOutput(new StringReader("a"
+				+ SEPARATOR + "b" + SEPARATOR), 2));
+		assertEquals(Arrays.asList("a", ""), ScriptActivity.splitBatchOutput(new StringReader("a"
+				+ SEPARATOR), 2));
+		assertEquals(Arrays.asList("", "", ""), ScriptActivity.splitBatchOutput(
+				new StringReader(""), 3));
+	}
+
+	@Test
+	public void outputWithTheWrongNumberOfRecordsIsRejected() throws Exception {
+		assertNull(ScriptActivity.splitBatchOutput(new StringReader("a" + SEPARATOR + "b"
+				+ SEPARATOR + "c"), 2));
+		assertNull(ScriptActivity.splitBatchOutput(new StringReader("a"), 2));
+	}
+
+	@Test
+	public void largeRecordsAreSpilled() throws Exception {
+		System.setProperty(SpillingWriter.THRESHOLD_PROPERTY, "2");
+		try {
+			List<Object> records = ScriptActivity.splitBatchOutput(new StringReader("abc"
+					+ SEPARATOR + "d"), 2);
+			SpillingWriter.SpilledOutput spilled = (SpillingWriter.SpilledOutput) records.get(0);
+			try {
+				assertEquals("abc", SpillingWriterTest.read(spilled));
+			} finally {
+				spilled.delete();
+			}
+			assertEquals("d", records.get(1));
+		} finally {
+			System.clearProperty(SpillingWriter.THRESHOLD_PROPERTY);
+		}
+	}
+
+	@Test
+	public void itemWhoseInputFailsIsLeftOutOfTheBatch() throws Exception {
+		ScriptActivityConfigurationBean bean = new ScriptActivityConfigurationBean();
+		bean.setBatchSize(3);
+		bean.setScript("#set($out = [])#foreach($x in $in)#set($ignore = $out.add(\"${x}!\"))"
+				+ "${x}${BATCH_SEPARATOR}#end");
+		final ScriptExecutionPlan plan = ScriptExecutionPlan.create(Collections
+				.singletonList(port(ActivityInputPort.class, "in")), Arrays.asList(port(
+				OutputPort.class, "out"), port(OutputPort.class, "STDOUT")), bean, "STDIN",
+				"STDOUT", "STDERR");
+		ScriptActivity activity = new ScriptActivity() {
+			@Override
+			public ScriptExecutionPlan getExecutionPlan() {
+				return plan;
+			}
+		};
+		activity.configurationBean = bean;
+
+		final ReferenceService referenceService = proxy(ReferenceService.class,
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("renderIdentifier")) {
+							if (args[0].toString().equals("bad")) {
+								throw new ReferenceServiceException("unreadable");
+							}
+							return args[0].toString();
+						}
+						return reference("ref:" + args[0]);
+					}
+				});
+		final CountDownLatch done = new CountDownLatch(3);
+		final Map<String, Object> results = new ConcurrentHashMap<String, Object>();
+		List<ScriptBatchCollector.BatchItem> batch = new ArrayList<ScriptBatchCollector.BatchItem>();
+		for (final String input : Arrays.asList("a", "bad", "c")) {
+			AsynchronousActivityCallback callback = proxy(AsynchronousActivityCallback.class,
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							if (method.getName().equals("getContext")) {
+								return proxy(InvocationContext.class, new InvocationHandler() {
+									public Object invoke(Object proxy, Method method, Object[] args) {
+										return referenceService;
+									}
+								});
+							} else if (method.getName().equals("receiveResult")) {
+								results.put(input, args[0]);
+								done.countDown();
+							} else if (method.getName().equals("fail")) {
+								results.put(input, args[0]);
+								done.countDown();
+							}
+							return null;
+						}
+					});
+			batch.add(new ScriptBatchCollector.BatchItem(Collections.singletonMap("in",
+					reference(input)), callback));
+		}
+		activity.runBatch(batch);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		assertEquals("Error accessing input/output data for " + activity, results.get("bad"));
+		Map<?, ?> a = (Map<?, ?>) results.get("a");
+		assertEquals("ref:a!", a.get("out").toString());
+		assertEquals("ref:a", a.get("STDOUT").toString());
+		Map<?, ?> c = (Map<?, ?>) results.get("c");
+		assertEquals("ref:c!", c.get("out").toString());
+		assertEquals("ref:c", c.get("STDOUT").toString());
+	}
+
+	private T2Reference reference(final String uri) {
+		return proxy(T2Reference.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("toString") ? uri : null;
+			}
+		});
+	}
+
+	private <T extends Port> T port(Class<T> type, final String name) {
+		return proxy(type, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getName")) {
+					return name;
+				} else if (method.getName().equals("getTranslatedElementClass")) {
+					return String.class;
+				}
+				return 0;
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type },
+				handler);
+	}
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import org.junit.Test;
+
+/**
+ * ScriptActivityExecutor tests
+ *
+ */
+public class ScriptActivityExecutorTest {
+
+	private final AtomicInteger failures = new AtomicInteger();
+
+	private final AsynchronousActivityCallback callback = (AsynchronousActivityCallback) Proxy
+			.newProxyInstance(getClass().getClassLoader(),
+					new Class<?>[] { AsynchronousActivityCallback.class }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							if (method.getName().equals("fail")) {
+								failures.incrementAndGet();
+							}
+							return null;
+						}
+					});
+
+	@Test
+	public void fullQueueFailsInvocations() throws Exception {
+		ScriptActivityExecutor executor = new ScriptActivityExecutor(1, 1, true);
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(2);
+		Runnable blocking = new Runnable() {
+			public void run() {
+				running.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			}
+		};
+		executor.execute(blocking, callback);
+		assertTrue(running.await(5, TimeUnit.SECONDS));
+		executor.execute(blocking, callback);
+		assertEquals(1, executor.getQueueLength());
+		executor.execute(blocking, callback);
+		assertEquals(1, failures.get());
+		assertEquals(1, executor.getRejectedCount());
+
+		release.countDown();
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(3, executor.getSubmittedCount());
+	}
+
+	@Test
+	public void fullQueueRunsInvocationsOnTheCaller() throws Exception {
+		ScriptActivityExecutor executor = new ScriptActivityExecutor(1, 1, false);
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable blocking = new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		executor.execute(blocking, callback);
+		executor.execute(blocking, callback);
+		final Thread caller = Thread.currentThread();
+		final boolean[] ranOnCaller = new boolean[1];
+		executor.execute(new Runnable() {
+			public void run() {
+				ranOnCaller[0] = Thread.currentThread() == caller;
+			}
+		}, callback);
+		release.countDown();
+		assertTrue(ranOnCaller[0]);
+		assertEquals(1, executor.getCallerRunsCount());
+		assertEquals(0, failures.get());
+	}
+
+	@Test
+	public void virtualInvocationsRunWithOrWithoutVirtualThreads() throws Exception {
+		ScriptActivityExecutor executor = new ScriptActivityExecutor(1, 1, true);
+		final CountDownLatch done = new CountDownLatch(1);
+		executor.executeVirtual(new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		}, callback);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, failures.get());
+	}
+}
@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.reference.Identified;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.OutputPort;
+import net.sf.taverna.t2.workflowmodel.processor.activity.ActivityInputPort;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import org.junit.Test;
+
+/**
+ * ScriptActivity tests
+ *
+ */
+public class ScriptActivityTest {
+
+	private final ScriptActivityConfigurationBean bean = new ScriptActivityConfigurationBean();
+
+	private List<ScriptExecutionPlan.OutputBinding> outputs(String... names) {
+		List<OutputPort> ports = new ArrayList<OutputPort>();
+		for (String name : names) {
+			ports.add(port(name));
+		}
+		return ScriptExecutionPlan.create(Collections.<ActivityInputPort> emptyList(), ports,
+				bean, "STDIN", "STDOUT", "STDERR").getOutputs();
+	}
+
+	private static List<String> names(List<ScriptExecutionPlan.OutputBinding> outputs) {
+		List<String> names = new ArrayList<String>();
+		for (ScriptExecutionPlan.OutputBinding output : outputs) {
+			names.add(output.getName());
+		}
+		return names;
+	}
+
+	@Test
+	public void unmappedStandardStreamsAreNotCaptured() {
+		List<ScriptExecutionPlan.OutputBinding> outputs = outputs("out", "STDOUT", "STDERR");
+		Map<String, String> mapping = new HashMap<String, String>();
+		mapping.put("STDERR", "STDERR");
+		assertEquals(Arrays.asList("out", "STDERR"), names(ScriptActivity.getCapturedOutputs(
+				outputs, mapping)));
+		mapping.clear();
+		mapping.put("out", "out");
+		assertEquals(Arrays.asList("out"), names(ScriptActivity.getCapturedOutputs(outputs,
+				mapping)));
+	}
+
+	@Test
+	public void everyOutputIsCapturedWithoutAMapping() {
+		List<ScriptExecutionPlan.OutputBinding> outputs = outputs("out", "STDOUT", "STDERR");
+		assertEquals(Arrays.asList("out", "STDOUT", "STDERR"), names(ScriptActivity
+				.getCapturedOutputs(outputs, null)));
+		assertEquals(Arrays.asList("out", "STDOUT", "STDERR"), names(ScriptActivity
+				.getCapturedOutputs(outputs, Collections.<String, String> emptyMap())));
+	}
+
+	@Test
+	public void uncapturedOutputIsNotReturned() throws Exception {
+		bean.setScript("#set($out = \"x\")written to STDOUT");
+		final ScriptExecutionPlan plan = ScriptExecutionPlan.create(Collections
+				.<ActivityInputPort> emptyList(), Collections.singletonList(port("out")), bean,
+				"STDIN", "STDOUT", "STDERR");
+		ScriptActivity activity = new ScriptActivity() {
+			@Override
+			public ScriptExecutionPlan getExecutionPlan() {
+				return plan;
+			}
+		};
+		activity.configurationBean = bean;
+
+		final ReferenceService referenceService = proxy(ReferenceService.class,
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						final String uri = "ref:" + args[0];
+						return proxy(T2Reference.class, new InvocationHandler() {
+							public Object invoke(Object proxy, Method method, Object[] args) {
+								return method.getName().equals("toString") ? uri : null;
+							}
+						});
+					}
+				});
+		final CountDownLatch done = new CountDownLatch(1);
+		final Map<String, Object> result = new HashMap<String, Object>();
+		activity.executeAsynch(Collections.<String, T2Reference> emptyMap(), proxy(
+				AsynchronousActivityCallback.class, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("getContext")) {
+							return proxy(InvocationContext.class, new InvocationHandler() {
+								public Object invoke(Object proxy, Method method, Object[] args) {
+									return referenceService;
+								}
+							});
+						} else if (method.getName().equals("requestRun")) {
+							((Runnable) args[0]).run();
+						} else if (method.getName().equals("receiveResult")) {
+							result.putAll(toStrings((Map<?, ?>) args[0]));
+							done.countDown();
+						} else if (method.getName().equals("fail")) {
+							result.put("failure", args[0]);
+							done.countDown();
+						}
+						return null;
+					}
+				}));
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(Collections.singletonMap("out", "ref:x"), result);
+	}
+
+	@Test
+	public void batchItemsAreAnsweredFromTheOutputCache() throws Exception {
+		bean.setDeterministic(true);
+		bean.setScript("#set($out = \"not cached\")");
+		final ScriptExecutionPlan plan = ScriptExecutionPlan.create(Collections
+				.<ActivityInputPort> emptyList(), Collections.singletonList(port("out")), bean,
+				"STDIN", "STDOUT", "STDERR");
+		final String key = "batch" + System.nanoTime();
+		ScriptActivity activity = new ScriptActivity() {
+			@Override
+			public ScriptExecutionPlan getExecutionPlan() {
+				return plan;
+			}
+
+			@Override
+			protected String getOutputCacheKey(Map<String, T2Reference> data) {
+				return key;
+			}
+		};
+		activity.configurationBean = bean;
+		final T2Reference cached = proxy(T2Reference.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("toString") ? "ref:cached" : null;
+			}
+		});
+		ScriptOutputCache.getInstance().put(key, Collections.singletonMap("out", cached));
+
+		final ReferenceService referenceService = proxy(ReferenceService.class,
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("referenceFromString")) {
+							return cached;
+						} else if (method.getName().equals("resolveIdentifier")) {
+							// every cached reference still resolves
+							return proxy(Identified.class, new InvocationHandler() {
+								public Object invoke(Object proxy, Method method, Object[] args) {
+									return null;
+								}
+							});
+						}
+						return null;
+					}
+				});
+		final Map<String, Object> result = new HashMap<String, Object>();
+		AsynchronousActivityCallback callback = proxy(AsynchronousActivityCallback.class,
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("getContext")) {
+							return proxy(InvocationContext.class, new InvocationHandler() {
+								public Object invoke(Object proxy, Method method, Object[] args) {
+									return referenceService;
+								}
+							});
+						} else if (method.getName().equals("receiveResult")) {
+							result.putAll(toStrings((Map<?, ?>) args[0]));
+						} else if (method.getName().equals("fail")) {
+							result.put("failure", args[0]);
+						}
+						return null;
+					}
+				});
+		activity.runBatch(Collections.singletonList(new ScriptBatchCollector.BatchItem(Collections
+				.<String, T2Reference> emptyMap(), callback)));
+		assertEquals(Collections.singletonMap("out", "ref:cached"), result);
+	}
+
+	private static Map<String, String> toStrings(Map<?, ?> references) {
+		Map<String, String> strings = new HashMap<String, String>();
+		for (Map.Entry<?, ?> entry : references.entrySet()) {
+			strings.put((String) entry.getKey(), entry.getValue().toString());
+		}
+		return strings;
+	}
+
+	private OutputPort port(final String name) {
+		return proxy(OutputPort.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("getName") ? name : 0;
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type },
+				handler);
+	}
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import org.junit.Test;
+
+/**
+ * ScriptBatchCollector tests
+ *
+ */
+public class ScriptBatchCollectorTest {
+
+	/**
+	 * Holds on to dispatched batches until the test runs them.
+	 */
+	private final List<Runnable> dispatched = new CopyOnWriteArrayList<Runnable>();
+
+	private final List<List<ScriptBatchCollector.BatchItem>> batches = new CopyOnWriteArrayList<List<ScriptBatchCollector.BatchItem>>();
+
+	private final List<String> failures = new CopyOnWriteArrayList<String>();
+
+	private boolean reject;
+
+	private final ScriptActivity activity = new ScriptActivity() {
+		@Override
+		void dispatch(Runnable invocation, AsynchronousActivityCallback callback) {
+			if (reject) {
+				callback.fail("rejected");
+			} else {
+				dispatched.add(invocation);
+			}
+		}
+
+		@Override
+		void runBatch(List<ScriptBatchCollector.BatchItem> batch) {
+			batches.add(batch);
+		}
+	};
+
+	private void add(ScriptBatchCollector collector) {
+		collector.add(Collections.<String, T2Reference> emptyMap(),
+				(AsynchronousActivityCallback) Proxy.newProxyInstance(getClass()
+						.getClassLoader(), new Class<?>[] { AsynchronousActivityCallback.class },
+						new InvocationHandler() {
+							public Object invoke(Object proxy, Method method, Object[] args) {
+								if (method.getName().equals("fail")) {
+									failures.add((String) args[0]);
+								}
+								return null;
+							}
+						}));
+	}
+
+	private void runDispatched(int index) {
+		dispatched.get(index).run();
+	}
+
+	@Test
+	public void itemRunsAtOnceWhenNoBatchIsRunning() {
+		ScriptBatchCollector collector = new ScriptBatchCollector(activity, 10, 60000);
+		add(collector);
+		assertEquals(1, dispatched.size());
+		assertEquals(0, collector.getPendingCount());
+		runDispatched(0);
+		assertEquals(1, batches.get(0).size());
+		assertEquals(0, collector.getRunningCount());
+	}
+
+	@Test
+	public void itemsArrivingWhileABatchRunsAreRunTogether() {
+		ScriptBatchCollector collector = new ScriptBatchCollector(activity, 10, 60000);
+		add(collector);
+		add(collector);
+		add(collector);
+		assertEquals(1, dispatched.size());
+		assertEquals(2, collector.getPendingCount());
+		runDispatched(0);
+		assertEquals(2, dispatched.size());
+		runDispatched(1);
+		assertEquals(1, batches.get(0).size());
+		assertEquals(2, batches.get(1).size());
+		assertEquals(0, collector.getRunningCount());
+	}
+
+	@Test
+	public void fullBatchIsSplitOff() {
+		ScriptBatchCollector collector = new ScriptBatchCollector(activity, 2, 60000);
+		for (int i = 0; i < 5; i++) {
+			add(collector);
+		}
+		// one item at once, then two full batches
+		assertEquals(3, dispatched.size());
+		assertEquals(0, collector.getPendingCount());
+		for (int i = 0; i < 3; i++) {
+			runDispatched(i);
+		}
+		assertEquals(1, batches.get(0).size());
+		assertEquals(2, batches.get(1).size());
+		assertEquals(2, batches.get(2).size());
+	}
+
+	@Test
+	public void partialBatchIsRunAfterTheTimeout() throws Exception {
+		ScriptBatchCollector collector = new ScriptBatchCollector(activity, 10, 50);
+		add(collector);
+		add(collector);
+		assertEquals(1, collector.getPendingCount());
+		long end = System.currentTimeMillis() + 10000;
+		while (dispatched.size() < 2 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, dispatched.size());
+		assertEquals(0, collector.getPendingCount());
+		assertEquals(2, collector.getRunningCount());
+	}
+
+	@Test
+	public void rejectedBatchFailsEveryItem() {
+		ScriptBatchCollector collector = new ScriptBatchCollector(activity, 2, 60000);
+		add(collector);
+		reject = true;
+		add(collector);
+		add(collector);
+		assertEquals(2, failures.size());
+		assertTrue(batches.isEmpty());
+		assertEquals(1, collector.getRunningCount());
+	}
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * ScriptCacheStore tests
+ *
+ */
+public class ScriptCacheStoreTest {
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws Exception {
+		directory = File.createTempFile("script-cache", "");
+		directory.delete();
+		directory.mkdir();
+	}
+
+	@After
+	public void deleteDirectory() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void writtenArtefactIsRead() {
+		ScriptCacheStore store = new ScriptCacheStore(directory, 1024 * 1024);
+		byte[] payload = "cached".getBytes();
+		store.write("abc", payload);
+		assertArrayEquals(payload, store.read("abc"));
+		assertNull(store.read("def"));
+	}
+
+	@Test
+	public void truncatedFileIsDiscarded() throws Exception {
+		ScriptCacheStore store = new ScriptCacheStore(directory, 1024 * 1024);
+		store.write("abc", new byte[100]);
+		File file = new File(directory, "abc.cache");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 10);
+		raf.close();
+		assertNull(store.read("abc"));
+		assertFalse("The truncated file should have been deleted", file.exists());
+	}
+
+	@Test
+	public void corruptLengthIsDiscarded() throws Exception {
+		File file = new File(directory, "abc.cache");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		out.writeInt(0x54534331);
+		out.writeInt(32);
+		out.write(new byte[32]);
+		out.writeInt(Integer.MAX_VALUE);
+		out.close();
+		ScriptCacheStore store = new ScriptCacheStore(directory, 1024 * 1024);
+		assertNull(store.read("abc"));
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void pruneRemovesAbandonedTemporaryFilesAndOldArtefacts() throws Exception {
+		File tempFile = new File(directory, "abc123.tmp");
+		FileOutputStream out = new FileOutputStream(tempFile);
+		out.write(new byte[2000]);
+		out.close();
+		tempFile.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000);
+
+		ScriptCacheStore store = new ScriptCacheStore(directory, 800);
+		store.write("old", new byte[400]);
+		new File(directory, "old.cache").setLastModified(System.currentTimeMillis() - 60000);
+		store.write("new", new byte[400]);
+
+		assertFalse("The abandoned temporary file should have been deleted", tempFile.exists());
+		assertNull("The least recently used artefact should have been pruned", store.read("old"));
+		assertTrue(store.read("new") != null);
+	}
+
+	@Test
+	public void directoryIsOnlyPrunedAfterATenthOfTheCapIsWritten() {
+		final AtomicInteger pruned = new AtomicInteger();
+		ScriptCacheStore store = new ScriptCacheStore(directory, 1000) {
+			@Override
+			protected void prune() {
+				pruned.incrementAndGet();
+			}
+		};
+		for (int i = 0; i < 10; i++) {
+			store.write("abc" + i, new byte[10]);
+		}
+		assertEquals("Only the first write should prune", 1, pruned.get());
+		store.write("def", new byte[100]);
+		assertEquals(2, pruned.get());
+	}
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import org.apache.velocity.script.VelocityScriptEngine;
+import org.apache.velocity.script.VelocityScriptEngineFactory;
+import org.apache.velocity.script.util.DiscardingWriter;
+import org.junit.Test;
+
+/**
+ * ScriptDeadline tests
+ *
+ */
+public class ScriptDeadlineTest {
+
+	private static final List<AsynchronousActivityCallback> NO_CALLBACKS = Collections.emptyList();
+
+	@Test
+	public void runawayLoopIsInterrupted() throws Exception {
+		ScriptEngine engine = new VelocityScriptEngine(new VelocityScriptEngineFactory());
+		ScriptContext context = new ScriptInvocationContext(engine);
+		context.setWriter(new DiscardingWriter());
+		ScriptDeadline deadline = ScriptDeadline.start(100, NO_CALLBACKS);
+		try {
+			engine.eval("#foreach($i in [1..100000])#foreach($j in [1..100000])$j#end#end", context);
+			fail("Loop was not interrupted");
+		} catch (ScriptException e) {
+			assertTrue(deadline.isExpired());
+		} finally {
+			assertTrue(deadline.finish());
+		}
+		assertFalse(Thread.currentThread().isInterrupted());
+	}
+
+	@Test
+	public void noDeadlineWithoutTimeout() {
+		assertNull(ScriptDeadline.start(0, NO_CALLBACKS));
+	}
+
+	@Test
+	public void finishedScriptIsNotInterrupted() throws Exception {
+		ScriptDeadline deadline = ScriptDeadline.start(10, NO_CALLBACKS);
+		assertFalse(deadline.finish());
+		Thread.sleep(50);
+		assertFalse(deadline.isExpired());
+		assertFalse(Thread.currentThread().isInterrupted());
+	}
+
+	@Test
+	public void uninterruptibleScriptIsFailedByTheWatchdog() throws Exception {
+		final List<Object> calls = new CopyOnWriteArrayList<Object>();
+		OnceOnlyCallback callback = new OnceOnlyCallback((AsynchronousActivityCallback) Proxy
+				.newProxyInstance(getClass().getClassLoader(),
+						new Class<?>[] { AsynchronousActivityCallback.class },
+						new InvocationHandler() {
+							public Object invoke(Object proxy, Method method, Object[] args) {
+								calls.add(args.length > 1 ? args[1] : args[0]);
+								return null;
+							}
+						}));
+		ScriptDeadline deadline = ScriptDeadline.start(50,
+				Collections.singletonList(callback));
+		try {
+			// a loop that never checks for interruption
+			long end = System.currentTimeMillis() + 10000;
+			while (!callback.isDone() && System.currentTimeMillis() < end) {
+			}
+			assertTrue(callback.isDone());
+		} finally {
+			assertTrue(deadline.finish());
+		}
+		// the script's own result comes too late
+		callback.receiveResult(Collections.<String, T2Reference> emptyMap(), new int[0]);
+		callback.fail("interrupted");
+		assertEquals(1, calls.size());
+		assertTrue(calls.get(0) instanceof TimeoutException);
+		assertFalse(Thread.currentThread().isInterrupted());
+	}
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+
+import org.apache.velocity.script.VelocityScriptEngine;
+import org.apache.velocity.script.VelocityScriptEngineFactory;
+import org.junit.Test;
+
+/**
+ * ScriptEnginePool tests
+ *
+ */
+public class ScriptEnginePoolTest {
+
+	private static class TestPool extends ScriptEnginePool {
+
+		TestPool(int maxSize, long idleTimeout) {
+			super("velocity", null, maxSize, idleTimeout);
+		}
+
+		@Override
+		protected ScriptEngine createEngine() {
+			return new VelocityScriptEngine(new VelocityScriptEngineFactory());
+		}
+	}
+
+	@Test
+	public void returnedEngineIsReused() throws Exception {
+		TestPool pool = new TestPool(2, 60000);
+		ScriptEngine engine = pool.borrowEngine();
+		assertEquals("There should be 1 active engine", 1, pool.getActiveCount());
+		engine.put("stale", "value");
+		Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+		pool.returnEngine(engine);
+		assertEquals("There should be 1 idle engine", 1, pool.getIdleCount());
+
+		ScriptEngine reused = pool.borrowEngine();
+		assertSame("The idle engine should be reused", engine, reused);
+		assertNull("Bindings should not survive a return to the pool",
+				reused.getBindings(ScriptContext.ENGINE_SCOPE).get("stale"));
+		assertSame("The bindings should be cleared rather than replaced", bindings,
+				reused.getBindings(ScriptContext.ENGINE_SCOPE));
+		assertEquals("Only 1 engine should have been created", 1, pool.getCreatedCount());
+		assertEquals("There should have been 2 checkouts", 2, pool.getBorrowCount());
+	}
+
+	@Test
+	public void idleEnginesAreEvicted() throws Exception {
+		TestPool pool = new TestPool(2, 0);
+		pool.returnEngine(pool.borrowEngine());
+		Thread.sleep(5);
+		pool.evictIdleEngines();
+		assertEquals("The idle engine should have been evicted", 0, pool.getIdleCount());
+		assertEquals(1, pool.getDestroyedCount());
+	}
+
+	@Test
+	public void invalidatedEngineIsNotReused() throws Exception {
+		TestPool pool = new TestPool(1, 60000);
+		ScriptEngine engine = pool.borrowEngine();
+		pool.invalidateEngine(engine);
+		assertEquals(0, pool.getActiveCount());
+		assertEquals(0, pool.getIdleCount());
+		ScriptEngine next = pool.borrowEngine();
+		assertEquals("A new engine should have been created", 2, pool.getCreatedCount());
+		pool.returnEngine(next);
+	}
+
+	@Test
+	public void abandonedEngineHoldsItsPlaceUntilInvalidated() throws Exception {
+		final TestPool pool = new TestPool(1, 60000);
+		ScriptEngine engine = pool.borrowEngine();
+		pool.abandonEngine(engine);
+		assertEquals(1, pool.getAbandonedCount());
+		final CountDownLatch borrowed = new CountDownLatch(1);
+		Thread borrower = new Thread() {
+			public void run() {
+				try {
+					pool.returnEngine(pool.borrowEngine());
+					borrowed.countDown();
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		borrower.start();
+		assertFalse("The abandoned script is still running",
+				borrowed.await(100, TimeUnit.MILLISECONDS));
+		assertEquals(1, pool.getActiveCount());
+
+		pool.invalidateEngine(engine);
+		assertTrue(borrowed.await(10, TimeUnit.SECONDS));
+		assertEquals(0, pool.getAbandonedCount());
+	}
+}
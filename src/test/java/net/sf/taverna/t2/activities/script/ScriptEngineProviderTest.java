@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import javax.script.ScriptEngine;
+
+import org.junit.Test;
+
+/**
+ * ScriptEngineProvider tests
+ *
+ */
+public class ScriptEngineProviderTest {
+
+	private static final String VELOCITY = "velocity";
+
+	private static ScriptEngineRegistry newRegistry() {
+		return new ScriptEngineRegistry(new File(System.getProperty("java.io.tmpdir"),
+				"no-such-script-lib"));
+	}
+
+	@Test
+	public void providersOfReplacedRegistriesAreEvicted() {
+		ScriptEngineRegistry oldRegistry = newRegistry();
+		ScriptEngineProvider oldProvider = ScriptEngineProvider.getProvider(VELOCITY,
+				oldRegistry, ScriptEngineSharing.POOLED);
+		assertSame(oldProvider, ScriptEngineProvider.getProvider(VELOCITY, oldRegistry,
+				ScriptEngineSharing.POOLED));
+
+		ScriptEngineRegistry newRegistry = newRegistry();
+		ScriptEngineProvider newProvider = ScriptEngineProvider.getProvider(VELOCITY,
+				newRegistry, ScriptEngineSharing.POOLED);
+		assertTrue(ScriptEngineProvider.evictProviders(newRegistry.getClassLoader()) > 0);
+		assertSame(newProvider, ScriptEngineProvider.getProvider(VELOCITY, newRegistry,
+				ScriptEngineSharing.POOLED));
+		assertNotSame(oldProvider, ScriptEngineProvider.getProvider(VELOCITY, oldRegistry,
+				ScriptEngineSharing.POOLED));
+	}
+
+	@Test
+	public void sharedEngineSurvivesInvalidation() throws Exception {
+		ScriptEngineProvider provider = new ScriptEngineProvider.Shared(VELOCITY, newRegistry());
+		ScriptEngine engine = provider.acquireEngine();
+		assertNotNull(engine);
+		ScriptEngine other = provider.acquireEngine();
+		provider.invalidateEngine(engine);
+		assertSame("Invocations still using the engine should not lose it", engine,
+				provider.acquireEngine());
+		provider.releaseEngine(other);
+		assertEquals(1, provider.getCreatedCount());
+	}
+
+	@Test
+	public void sharingFollowsTheThreadingParameter() {
+		assertEquals(ScriptEngineSharing.SHARED, ScriptEngineSharing.forThreading("MULTITHREADED"));
+		assertEquals(ScriptEngineSharing.SHARED, ScriptEngineSharing.forThreading("STATELESS"));
+		assertEquals("Engines that are not thread safe are kept per thread",
+				ScriptEngineSharing.THREAD_AFFINE, ScriptEngineSharing.forThreading(null));
+		assertEquals(ScriptEngineSharing.POOLED, ScriptEngineSharing.forThreading("UNKNOWN"));
+	}
+}
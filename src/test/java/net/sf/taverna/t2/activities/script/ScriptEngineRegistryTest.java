@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * ScriptEngineRegistry tests
+ *
+ */
+public class ScriptEngineRegistryTest {
+
+	private File libDir;
+
+	@Before
+	public void createLibDir() throws Exception {
+		libDir = File.createTempFile("script-lib", "");
+		libDir.delete();
+		libDir.mkdir();
+	}
+
+	@After
+	public void deleteLibDir() {
+		File[] files = libDir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		libDir.delete();
+	}
+
+	@Test
+	public void enginesOnTheClassPathAreIndexed() {
+		ScriptEngineRegistry registry = new ScriptEngineRegistry(libDir);
+		ScriptEngineDescriptor descriptor = registry.getByEngineName("velocity");
+		assertNotNull(descriptor);
+		assertTrue(registry.getEngineNames().contains("velocity"));
+		assertNull(registry.getByEngineName("no such language"));
+		assertNotNull(registry.createEngine("velocity"));
+		assertNull(registry.createEngine("no such language"));
+	}
+
+	@Test
+	public void addingAJarIsDetected() throws Exception {
+		ScriptEngineRegistry registry = new ScriptEngineRegistry(libDir);
+		assertFalse(registry.isChanged());
+
+		File jar = new File(libDir, "engine.jar");
+		FileOutputStream out = new FileOutputStream(jar);
+		out.write(new byte[] { 'P', 'K' });
+		out.close();
+		assertTrue("A new jar should be noticed", registry.isChanged());
+
+		ScriptEngineRegistry rebuilt = new ScriptEngineRegistry(libDir);
+		assertFalse(rebuilt.isChanged());
+		assertEquals(registry.getEngineNames(), rebuilt.getEngineNames());
+
+		jar.delete();
+		assertTrue("A removed jar should be noticed", rebuilt.isChanged());
+	}
+}
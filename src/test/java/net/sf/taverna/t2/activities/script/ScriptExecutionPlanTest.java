@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.taverna.t2.workflowmodel.OutputPort;
+import net.sf.taverna.t2.workflowmodel.processor.activity.ActivityInputPort;
+
+import org.junit.Test;
+
+/**
+ * ScriptExecutionPlan tests
+ *
+ */
+public class ScriptExecutionPlanTest {
+
+	@Test
+	public void sanitiseName() {
+		assertEquals("xmltext", ScriptExecutionPlan.sanitiseName("xml-text"));
+		assertEquals("in_1", ScriptExecutionPlan.sanitiseName("in_1"));
+		assertEquals("", ScriptExecutionPlan.sanitiseName("-"));
+	}
+
+	@Test
+	public void portsAreBoundByName() {
+		ScriptActivityConfigurationBean bean = new ScriptActivityConfigurationBean();
+		Map<String, ScriptEscapingType> escaping = new HashMap<String, ScriptEscapingType>();
+		escaping.put("xmltext", ScriptEscapingType.XML);
+		bean.setInputEscaping(escaping);
+
+		ScriptExecutionPlan plan = ScriptExecutionPlan.create(Arrays.asList(
+				port(ActivityInputPort.class, "xml-text"), port(ActivityInputPort.class, "STDIN")),
+				Collections.singletonList(port(OutputPort.class, "STDOUT")), bean, "STDIN",
+				"STDOUT", "STDERR");
+
+		ScriptExecutionPlan.InputBinding input = plan.getInput("xml-text");
+		assertEquals("xmltext", input.getVariableName());
+		assertSame(ScriptEscapingType.XML, input.getEscaping());
+		assertTrue(plan.getInput("STDIN").isStdIn());
+		assertNull(plan.getInput("xmltext"));
+		assertSame(ScriptExecutionPlan.OutputSource.STDOUT, plan.getOutputs().get(0).getSource());
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T port(Class<T> type, final String name) {
+		return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if (method.getName().equals("getName")) {
+							return name;
+						}
+						if (method.getName().equals("toString")) {
+							return name;
+						}
+						return 0;
+					}
+				});
+	}
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringWriter;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+
+import org.apache.velocity.script.VelocityScriptEngine;
+import org.apache.velocity.script.VelocityScriptEngineFactory;
+import org.junit.Test;
+
+/**
+ * ScriptInvocationContext tests
+ *
+ */
+public class ScriptInvocationContextTest {
+
+	private ScriptEngine engine = new VelocityScriptEngine(new VelocityScriptEngineFactory());
+
+	@Test
+	public void invocationsDoNotShareEngineScope() throws Exception {
+		ScriptContext first = new ScriptInvocationContext(engine);
+		first.setAttribute("name", "first", ScriptContext.ENGINE_SCOPE);
+		ScriptContext second = new ScriptInvocationContext(engine);
+		assertNotSame(first.getBindings(ScriptContext.ENGINE_SCOPE), second.getBindings(ScriptContext.ENGINE_SCOPE));
+		assertNull(second.getAttribute("name"));
+
+		StringWriter writer = new StringWriter();
+		first.setWriter(writer);
+		engine.eval("#set($result = \"Hello $name\")$result", first);
+		assertEquals("Hello first", writer.toString());
+		assertEquals("Hello first", first.getAttribute("result"));
+		assertNull(engine.getContext().getAttribute("result"));
+	}
+
+	@Test
+	public void globalScopeIsSharedAndReadOnly() {
+		Bindings globalScope = engine.createBindings();
+		globalScope.put("shared", "global");
+		engine.setBindings(globalScope, ScriptContext.GLOBAL_SCOPE);
+		ScriptContext context = new ScriptInvocationContext(engine);
+		assertEquals("global", context.getAttribute("shared"));
+		assertEquals(ScriptContext.GLOBAL_SCOPE, context.getAttributesScope("shared"));
+		context.setAttribute("shared", "engine", ScriptContext.ENGINE_SCOPE);
+		assertEquals("engine", context.getAttribute("shared"));
+		try {
+			context.setAttribute("shared", "changed", ScriptContext.GLOBAL_SCOPE);
+		} catch (UnsupportedOperationException e) {
+			assertEquals("global", engine.getBindings(ScriptContext.GLOBAL_SCOPE).get("shared"));
+			return;
+		}
+		throw new AssertionError("The global scope should be read-only");
+	}
+}
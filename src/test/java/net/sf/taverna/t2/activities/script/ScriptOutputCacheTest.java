@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import net.sf.taverna.t2.reference.Identified;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.ReferenceServiceException;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.OutputPort;
+import net.sf.taverna.t2.workflowmodel.processor.activity.ActivityInputPort;
+
+import org.junit.Test;
+
+/**
+ * ScriptOutputCache tests
+ *
+ */
+public class ScriptOutputCacheTest {
+
+	/**
+	 * References the reference service no longer knows
+	 */
+	private final Set<String> lost = new CopyOnWriteArraySet<String>();
+
+	private ReferenceService referenceService = proxy(ReferenceService.class,
+			new InvocationHandler() {
+				public Object invoke(Object proxy, Method method, Object[] args) {
+					if (method.getName().equals("resolveIdentifier")) {
+						if (lost.contains(args[0].toString())) {
+							throw new ReferenceServiceException("not found");
+						}
+						return proxy(Identified.class, new InvocationHandler() {
+							public Object invoke(Object proxy, Method method, Object[] args) {
+								return null;
+							}
+						});
+					}
+					return reference((String) args[0]);
+				}
+			});
+
+	private ScriptExecutionPlan plan = ScriptExecutionPlan.create(Collections
+			.singletonList(port(ActivityInputPort.class, "in")), Collections.singletonList(port(
+			OutputPort.class, "out")), new ScriptActivityConfigurationBean(), "STDIN", "STDOUT",
+			"STDERR");
+
+	@Test
+	public void keysDependOnScriptAndInputs() {
+		String key = key("script", "t2:ref//a");
+		assertEquals(key, key("script", "t2:ref//a"));
+		assertFalse(key.equals(key("script", "t2:ref//b")));
+		assertFalse(key.equals(key("other", "t2:ref//a")));
+		assertNull(ScriptOutputCache.key("script", null, plan, plan.getOutputs(), Collections
+				.singletonMap("unknown", reference("t2:ref//a"))));
+	}
+
+	@Test
+	public void outputsSurviveARestartWhenPersistent() throws Exception {
+		File directory = File.createTempFile("outputs", "");
+		directory.delete();
+		ScriptCacheStore store = new ScriptCacheStore(directory, 1024 * 1024);
+		try {
+			String key = key("script", "t2:ref//a");
+			ScriptOutputCache cache = new ScriptOutputCache(10, store);
+			assertNull(cache.get(key, referenceService, null));
+			cache.put(key, Collections.singletonMap("out", reference("t2:ref//out")));
+			assertEquals("t2:ref//out", cache.get(key, referenceService, null).get("out").toString());
+			assertEquals(0.5, cache.getHitRate(), 0.001);
+
+			ScriptOutputCache restarted = new ScriptOutputCache(10, store);
+			assertEquals("t2:ref//out", restarted.get(key, referenceService, null).get("out").toString());
+			assertEquals(1, restarted.getHitCount());
+			assertEquals(0, restarted.getMissCount());
+		} finally {
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void outputsThatNoLongerResolveAreDropped() {
+		String key = key("script", "t2:ref//a");
+		ScriptOutputCache cache = new ScriptOutputCache(10, null);
+		cache.put(key, Collections.singletonMap("out", reference("t2:ref//out")));
+		lost.add("t2:ref//out");
+		assertNull(cache.get(key, referenceService, null));
+		assertEquals(0, cache.size());
+		assertEquals(1, cache.getStaleCount());
+		assertEquals(0, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void templatesLoadingOtherFilesAreRecognised() {
+		assertTrue(ScriptOutputCache.loadsOtherFiles("#parse(\"header.vm\")"));
+		assertTrue(ScriptOutputCache.loadsOtherFiles("a #{include}(\"b.txt\")"));
+		assertFalse(ScriptOutputCache.loadsOtherFiles("#set($x = 1)$x"));
+		assertFalse(ScriptOutputCache.loadsOtherFiles("#parser"));
+	}
+
+	private String key(String scriptFingerprint, String input) {
+		Map<String, T2Reference> data = new HashMap<String, T2Reference>();
+		data.put("in", reference(input));
+		return ScriptOutputCache.key(scriptFingerprint, null, plan, plan.getOutputs(), data);
+	}
+
+	private T2Reference reference(final String uri) {
+		return proxy(T2Reference.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("toString") ? uri : null;
+			}
+		});
+	}
+
+	private <T> T port(Class<T> type, final String name) {
+		return proxy(type, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("getName") ? name : 0;
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type },
+				handler);
+	}
+}
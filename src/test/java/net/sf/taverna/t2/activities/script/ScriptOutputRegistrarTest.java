@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.taverna.t2.invocation.InvocationContext;
+import net.sf.taverna.t2.reference.ErrorDocument;
+import net.sf.taverna.t2.reference.ErrorDocumentService;
+import net.sf.taverna.t2.reference.ReferenceService;
+import net.sf.taverna.t2.reference.T2Reference;
+import net.sf.taverna.t2.workflowmodel.OutputPort;
+import net.sf.taverna.t2.workflowmodel.processor.activity.ActivityInputPort;
+import net.sf.taverna.t2.workflowmodel.processor.activity.AsynchronousActivityCallback;
+
+import org.junit.Test;
+
+/**
+ * ScriptOutputRegistrar tests
+ *
+ */
+public class ScriptOutputRegistrarTest {
+
+	private final List<ScriptExecutionPlan.OutputBinding> outputs = ScriptExecutionPlan.create(
+			Collections.<ActivityInputPort> emptyList(),
+			Arrays.asList(port("a"), port("b")), new ScriptActivityConfigurationBean(), "STDIN",
+			"STDOUT", "STDERR").getOutputs();
+
+	/**
+	 * Records what is returned through the callback.
+	 */
+	private class Callback implements InvocationHandler {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private final ReferenceService referenceService;
+
+		private volatile Map<?, ?> result;
+
+		private volatile Throwable failure;
+
+		private Callback(ReferenceService referenceService) {
+			this.referenceService = referenceService;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (method.getName().equals("getContext")) {
+				return proxy(InvocationContext.class, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return method.getName().equals("getReferenceService") ? referenceService
+								: null;
+					}
+				});
+			} else if (method.getName().equals("receiveResult")) {
+				result = (Map<?, ?>) args[0];
+				done.countDown();
+			} else if (method.getName().equals("fail")) {
+				failure = args.length > 1 ? (Throwable) args[1] : new Exception((String) args[0]);
+				done.countDown();
+			}
+			return null;
+		}
+
+		private void await() throws InterruptedException {
+			assertTrue("The callback should have been called", done.await(10, TimeUnit.SECONDS));
+		}
+	}
+
+	private void register(ScriptOutputRegistrar registrar, Callback callback, Object... values) {
+		registrar.register(Collections.singletonList(new ScriptOutputRegistrar.PendingResult(proxy(
+				AsynchronousActivityCallback.class, callback), outputs, values, "test")));
+	}
+
+	@Test
+	public void outputsOfAnInvocationAreStoredConcurrently() throws Exception {
+		final CountDownLatch inFlight = new CountDownLatch(2);
+		ReferenceService referenceService = proxy(ReferenceService.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+				inFlight.countDown();
+				// only returns once both outputs are being stored at the same time
+				assertTrue(inFlight.await(10, TimeUnit.SECONDS));
+				return reference("t2:ref//" + args[0]);
+			}
+		});
+		Callback callback = new Callback(referenceService);
+		ScriptOutputRegistrar registrar = new ScriptOutputRegistrar(2, 10);
+		register(registrar, callback, "x", "y");
+		callback.await();
+		assertNull(callback.failure);
+		assertEquals("t2:ref//x", callback.result.get("a").toString());
+		assertEquals("t2:ref//y", callback.result.get("b").toString());
+		assertEquals(1, registrar.getRegisteredCount());
+	}
+
+	@Test
+	public void missingValueIsReturnedAsAnErrorDocument() throws Exception {
+		final T2Reference errorReference = reference("t2:error//missing");
+		final ErrorDocumentService errorDocumentService = proxy(ErrorDocumentService.class,
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return proxy(ErrorDocument.class, new InvocationHandler() {
+							public Object invoke(Object proxy, Method method, Object[] args) {
+								return errorReference;
+							}
+						});
+					}
+				});
+		ReferenceService referenceService = proxy(ReferenceService.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getErrorDocumentService")) {
+					return errorDocumentService;
+				}
+				return reference("t2:ref//" + args[0]);
+			}
+		});
+		Callback callback = new Callback(referenceService);
+		register(new ScriptOutputRegistrar(0, 0), callback, "x", null);
+		callback.await();
+		assertEquals("t2:ref//x", callback.result.get("a").toString());
+		assertEquals("t2:error//missing", callback.result.get("b").toString());
+	}
+
+	@Test
+	public void unexpectedExceptionFailsTheInvocation() throws Exception {
+		ReferenceService referenceService = proxy(ReferenceService.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				throw new IllegalStateException("store closed");
+			}
+		});
+		Callback callback = new Callback(referenceService);
+		register(new ScriptOutputRegistrar(2, 10), callback, "x", "y");
+		callback.await();
+		assertNull(callback.result);
+		assertTrue(callback.failure instanceof IllegalStateException);
+	}
+
+	@Test
+	public void spilledOutputIsRegisteredAsAFile() throws Exception {
+		final File retainedDirectory = new File(System.getProperty("java.io.tmpdir"), "retained-"
+				+ System.nanoTime());
+		System.setProperty(SpillingWriter.RETAINED_DIRECTORY_PROPERTY, retainedDirectory.getPath());
+		try {
+			final List<Object> registered = new ArrayList<Object>();
+			ReferenceService referenceService = proxy(ReferenceService.class,
+					new InvocationHandler() {
+						public Object invoke(Object proxy, Method method, Object[] args) {
+							synchronized (registered) {
+								registered.add(args[0]);
+							}
+							return reference("t2:ref//" + args[0]);
+						}
+					});
+			SpillingWriter writer = new SpillingWriter(0);
+			writer.write("spilled");
+			SpillingWriter.SpilledOutput spilled = (SpillingWriter.SpilledOutput) writer.getValue();
+			File spillFile = spilled.getFile();
+			Callback callback = new Callback(referenceService);
+			register(new ScriptOutputRegistrar(0, 0), callback, spilled, "y");
+			callback.await();
+			File retained = new File(retainedDirectory, spillFile.getName());
+			assertEquals(Arrays.asList(retained, "y"), registered);
+			assertEquals("t2:ref//" + retained, callback.result.get("a").toString());
+			assertFalse(spillFile.exists());
+			assertTrue("The file belongs to the reference", retained.exists());
+			assertEquals("spilled", SpillingWriterTest.read(spilled));
+			retained.delete();
+		} finally {
+			System.clearProperty(SpillingWriter.RETAINED_DIRECTORY_PROPERTY);
+			retainedDirectory.delete();
+		}
+	}
+
+	@Test
+	public void failureOnlyDeletesSpilledFiles() throws Exception {
+		ReferenceService referenceService = proxy(ReferenceService.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				throw new IllegalStateException("store closed");
+			}
+		});
+		File scriptFile = File.createTempFile("script", ".txt");
+		try {
+			SpillingWriter writer = new SpillingWriter(0);
+			writer.write("spilled");
+			SpillingWriter.SpilledOutput spilled = (SpillingWriter.SpilledOutput) writer.getValue();
+			Callback callback = new Callback(referenceService);
+			register(new ScriptOutputRegistrar(2, 10), callback, scriptFile, spilled);
+			callback.await();
+			assertNull(callback.result);
+			assertTrue("A file returned by the script must be kept", scriptFile.exists());
+			assertFalse(spilled.getFile().exists());
+		} finally {
+			scriptFile.delete();
+		}
+	}
+
+	@Test
+	public void sharedOutputIsStoredOnce() throws Exception {
+		final AtomicInteger stored = new AtomicInteger();
+		ReferenceService referenceService = proxy(ReferenceService.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return reference("t2:ref//" + args[0] + stored.incrementAndGet());
+			}
+		});
+		ScriptOutputRegistrar.SharedOutput errors = new ScriptOutputRegistrar.SharedOutput("e", 2);
+		Callback first = new Callback(referenceService);
+		Callback second = new Callback(referenceService);
+		new ScriptOutputRegistrar(2, 10).register(Arrays.asList(
+				new ScriptOutputRegistrar.PendingResult(proxy(AsynchronousActivityCallback.class,
+						first), outputs, new Object[] { "x", errors }, "test"),
+				new ScriptOutputRegistrar.PendingResult(proxy(AsynchronousActivityCallback.class,
+						second), outputs, new Object[] { "y", errors }, "test")));
+		first.await();
+		second.await();
+		assertEquals(3, stored.get());
+		assertEquals(first.result.get("b").toString(), second.result.get("b").toString());
+	}
+
+	private T2Reference reference(final String uri) {
+		return proxy(T2Reference.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("toString") ? uri : null;
+			}
+		});
+	}
+
+	private OutputPort port(final String name) {
+		return proxy(OutputPort.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return method.getName().equals("getName") ? name : 0;
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type },
+				handler);
+	}
+}
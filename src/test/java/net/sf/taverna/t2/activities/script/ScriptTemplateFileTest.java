@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * ScriptTemplateFile tests
+ *
+ */
+public class ScriptTemplateFileTest {
+
+	private File file;
+
+	@Before
+	public void createFile() throws IOException {
+		file = File.createTempFile("template", ".txt");
+	}
+
+	@After
+	public void deleteFile() {
+		file.delete();
+	}
+
+	private void write(String contents, long lastModified) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		file.setLastModified(lastModified);
+	}
+
+	@Test
+	public void modifiedFileIsReadAgain() throws Exception {
+		write("caf\u00e9", 100000);
+		ScriptTemplateFile template = new ScriptTemplateFile(file.getPath(), 0);
+		assertEquals("The file should be read as UTF-8", "caf\u00e9", template.getScript());
+
+		write("first", 200000);
+		assertEquals("first", template.getScript());
+		write("again", 200000);
+		assertEquals("An unchanged modification time and length should not be read again",
+				"first", template.getScript());
+		write("second!", 300000);
+		assertEquals("second!", template.getScript());
+	}
+
+	@Test
+	public void fileIsNotCheckedWithinTheInterval() throws Exception {
+		write("first", 100000);
+		ScriptTemplateFile template = new ScriptTemplateFile(file.getPath(), 60000);
+		assertEquals("first", template.getScript());
+		write("second", 200000);
+		assertEquals("first", template.getScript());
+	}
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright (C) 2007 The University of Manchester   
+ * 
+ *  Modifications to the initial code base are copyright of their
+ *  respective authors, or their employers as appropriate.
+ * 
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2.1 of
+ *  the License, or (at your option) any later version.
+ *    
+ *  This program is distributed in the hope that it will be useful, but
+ *  WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *    
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ ******************************************************************************/
+package net.sf.taverna.t2.activities.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+/**
+ * SpillingWriter tests
+ *
+ */
+public class SpillingWriterTest {
+
+	@Test
+	public void smallOutputStaysInMemory() throws Exception {
+		SpillingWriter writer = new SpillingWriter(10);
+		writer.write("0123456789");
+		assertFalse(writer.isSpilled());
+		assertEquals("0123456789", writer.getValue());
+	}
+
+	@Test
+	public void largeOutputIsSpilledToAFile() throws Exception {
+		SpillingWriter writer = new SpillingWriter(10);
+		writer.write("01234");
+		writer.write("56789\u00e9");
+		assertTrue(writer.isSpilled());
+		File file = ((SpillingWriter.SpilledOutput) writer.getValue()).getFile();
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(file), "UTF-8"));
+			assertEquals("0123456789\u00e9", reader.readLine());
+			reader.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void discardDeletesTheFile() throws Exception {
+		SpillingWriter writer = new SpillingWriter(0);
+		writer.write("x");
+		writer.discard();
+		assertFalse(((SpillingWriter.SpilledOutput) writer.getValue()).getFile().exists());
+	}
+
+	@Test
+	public void reportedExceptionsAreMergedIntoSpilledOutput() throws Exception {
+		SpillingWriter writer = new SpillingWriter(10);
+		writer.write("before\n");
+		writer.addException(new IllegalStateException("reported"));
+		writer.write("after, long enough to spill\n");
+		assertTrue(writer.isSpilled());
+		SpillingWriter.SpilledOutput spilled = (SpillingWriter.SpilledOutput) writer.getValue();
+		try {
+			String contents = read(spilled);
+			assertTrue(contents.startsWith("before\njava.lang.IllegalStateException: reported\n\tat "));
+			assertTrue(contents.endsWith("\nafter, long enough to spill\n"));
+		} finally {
+			spilled.delete();
+		}
+	}
+
+	@Test
+	public void reportedExceptionsAreMergedIntoMemoryOutput() throws Exception {
+		SpillingWriter writer = new SpillingWriter(1000);
+		writer.write("before\n");
+		writer.addException(new IllegalStateException("reported"));
+		writer.write("after\n");
+		String contents = (String) writer.getValue();
+		assertTrue(contents.startsWith("before\njava.lang.IllegalStateException: reported\n\tat "));
+		assertTrue(contents.endsWith("\nafter\n"));
+		assertEquals(contents, writer.getValue());
+	}
+
+	static String read(SpillingWriter.SpilledOutput spilled) throws Exception {
+		Reader reader = spilled.newReader();
+		try {
+			StringWriter contents = new StringWriter();
+			char[] buffer = new char[1024];
+			int read;
+			while ((read = reader.read(buffer)) >= 0) {
+				contents.write(buffer, 0, read);
+			}
+			return contents.toString();
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,304 @@
+package org.apache.velocity.script;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.apache.velocity.script.util.VelocityEngineRegistry;
+
+import org.junit.Test;
+
+/**
+ * VelocityScriptEngine tests
+ */
+public class VelocityScriptEngineTest {
+
+    private VelocityScriptEngine engine = new VelocityScriptEngine(new VelocityScriptEngineFactory());
+
+    private String eval(CompiledScript script, String name, Object value) throws ScriptException {
+        ScriptContext context = new VelocityScriptContext();
+        context.setAttribute(name, value, ScriptContext.ENGINE_SCOPE);
+        StringWriter writer = new StringWriter();
+        context.setWriter(writer);
+        script.eval(context);
+        return writer.toString();
+    }
+
+    @Test
+    public void compiledScriptIsReusable() throws Exception {
+        CompiledScript script = engine.compile("#set($greeting = \"Hello\")$greeting $name!");
+        assertEquals("Hello World!", eval(script, "name", "World"));
+        assertEquals("Hello Velocity!", eval(script, "name", "Velocity"));
+    }
+
+    @Test
+    public void compiledScriptMatchesEval() throws Exception {
+        String template = "#foreach($i in [1..3])$i#if($velocityCount < 3),#end#end $!missing";
+        ScriptContext context = new VelocityScriptContext();
+        StringWriter writer = new StringWriter();
+        context.setWriter(writer);
+        engine.eval(template, context);
+        assertEquals(writer.toString(), eval(engine.compile(template), "unused", "value"));
+    }
+
+    public interface Greeter {
+        String greet(String name);
+    }
+
+    @Test
+    public void macrosAreInvocable() throws Exception {
+        engine.compile("#macro(greet $name)Hello $name!#end");
+        assertEquals("Hello World!", engine.invokeFunction("greet", "World"));
+        assertEquals("Hello Velocity!", engine.invokeFunction("greet", "Velocity"));
+        assertEquals("Hello Proxy!", engine.getInterface(Greeter.class).greet("Proxy"));
+    }
+
+    @Test(expected = NoSuchMethodException.class)
+    public void missingMacroIsNotInvocable() throws Exception {
+        engine.invokeFunction("noSuchMacro");
+    }
+
+    private String eval(ScriptEngine scriptEngine, String script) throws ScriptException {
+        ScriptContext context = new VelocityScriptContext();
+        StringWriter writer = new StringWriter();
+        context.setWriter(writer);
+        scriptEngine.eval(script, context);
+        return writer.toString();
+    }
+
+    @Test
+    public void enginesKeepTheirOwnMacros() throws Exception {
+        VelocityScriptEngine other = new VelocityScriptEngine(new VelocityScriptEngineFactory());
+        assertSame("The engines should share a core engine", engine.getRuntimeInstance(),
+                other.getRuntimeInstance());
+        assertEquals("A:x", eval(engine, "#macro(row $v)A:$v#end#row(\"x\")"));
+        assertEquals("B:x", eval(other, "#macro(row $v)B:$v#end#row(\"x\")"));
+        assertEquals("A:x", eval(engine, "#macro(row $v)A:$v#end#row(\"x\")"));
+        assertEquals("A:y", engine.invokeFunction("row", "y"));
+        assertEquals("B:y", other.invokeFunction("row", "y"));
+    }
+
+    @Test
+    public void scriptsOfASharedEngineKeepTheirOwnMacros() throws Exception {
+        assertEquals("A:x", eval(engine, "#macro(cell $v)A:$v#end#cell(\"x\")"));
+        assertEquals("B:x", eval(engine, "#macro(cell $v)B:$v#end#cell(\"x\")"));
+        assertEquals("A:x", eval(engine.compile("#macro(cell $v)A:$v#end#cell(\"x\")"), "unused", "value"));
+        assertEquals("The most recent script's macro should be invoked", "A:y",
+                engine.invokeFunction("cell", "y"));
+    }
+
+    @Test(expected = NoSuchMethodException.class)
+    public void otherEnginesMacrosAreNotInvocable() throws Exception {
+        VelocityScriptEngine other = new VelocityScriptEngine(new VelocityScriptEngineFactory());
+        eval(other, "#macro(onlyInOther)other#end");
+        engine.invokeFunction("onlyInOther");
+    }
+
+    @Test
+    public void engineEvaluatesFromSeveralThreadsAtOnce() throws Exception {
+        final CompiledScript script = engine.compile("#foreach($i in [1..50])$name#end");
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final String name = "thread" + t;
+            threads[t] = new Thread() {
+                public void run() {
+                    StringBuilder expected = new StringBuilder();
+                    for (int i = 0; i < 50; i++) {
+                        expected.append(name);
+                    }
+                    try {
+                        for (int i = 0; i < 100; i++) {
+                            ScriptContext context = new VelocityScriptContext();
+                            context.setAttribute("name", name, ScriptContext.ENGINE_SCOPE);
+                            StringWriter writer = new StringWriter();
+                            context.setWriter(writer);
+                            engine.eval("$name", context);
+                            String inline = writer.toString();
+                            String compiled = eval(script, "name", name);
+                            if (!inline.equals(name) || !compiled.equals(expected.toString())) {
+                                failures.add(name + ": " + inline + " " + compiled);
+                            }
+                        }
+                    } catch (ScriptException e) {
+                        failures.add(name + ": " + e);
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.<String> emptyList(), failures);
+    }
+
+    @Test
+    public void fileTemplateIsMergedOnEveryEval() throws Exception {
+        File file = File.createTempFile("template", ".vm");
+        try {
+            FileWriter fileWriter = new FileWriter(file);
+            fileWriter.write("From file: $name");
+            fileWriter.close();
+            for (String name : new String[]{"first", "second"}) {
+                ScriptContext context = new VelocityScriptContext();
+                context.setAttribute(ScriptEngine.FILENAME, file.getAbsolutePath(), ScriptContext.ENGINE_SCOPE);
+                context.setAttribute("name", name, ScriptContext.ENGINE_SCOPE);
+                StringWriter writer = new StringWriter();
+                context.setWriter(writer);
+                engine.eval("inline script is ignored", context);
+                assertEquals("From file: " + name, writer.toString());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private String evalFile(File directory, String fileName, String contents) throws Exception {
+        File file = new File(directory, fileName);
+        FileWriter fileWriter = new FileWriter(file);
+        fileWriter.write(contents);
+        fileWriter.close();
+        ScriptContext context = new VelocityScriptContext();
+        StringWriter writer = new StringWriter();
+        context.setWriter(writer);
+        engine.evalFile(file.getAbsolutePath(), 0, context);
+        return writer.toString();
+    }
+
+    @Test
+    public void fileTemplatesInDifferentDirectoriesShareAnEngine() throws Exception {
+        File first = File.createTempFile("templates", "");
+        File second = File.createTempFile("templates", "");
+        try {
+            first.delete();
+            first.mkdir();
+            second.delete();
+            second.mkdir();
+            assertEquals("first", evalFile(first, "template.vm", "first"));
+            int engines = VelocityEngineRegistry.getEngineCount();
+            assertEquals("second", evalFile(second, "template.vm", "second"));
+            assertEquals(engines, VelocityEngineRegistry.getEngineCount());
+
+            evalFile(second, "part.vm", "part");
+            assertEquals("whole part", evalFile(second, "whole.vm", "whole #parse(\"part.vm\")"));
+        } finally {
+            for (File directory : new File[]{first, second}) {
+                for (File file : directory.listFiles()) {
+                    file.delete();
+                }
+                directory.delete();
+            }
+        }
+    }
+
+    @Test
+    public void evalFileDoesNotBindTheFileName() throws Exception {
+        File file = File.createTempFile("template", ".vm");
+        try {
+            FileWriter fileWriter = new FileWriter(file);
+            fileWriter.write("$name $!{javax.script.filename}");
+            fileWriter.close();
+            ScriptContext context = new VelocityScriptContext();
+            context.setAttribute("name", "file", ScriptContext.ENGINE_SCOPE);
+            StringWriter writer = new StringWriter();
+            context.setWriter(writer);
+            engine.evalFile(file.getAbsolutePath(), 0, context);
+            assertEquals("file ", writer.toString());
+            assertEquals(1, context.getBindings(ScriptContext.ENGINE_SCOPE).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void bindingsContextIsReusedForTheSameTemplate() {
+        ScriptContext context = new VelocityScriptContext();
+        context.setAttribute("name", "engine", ScriptContext.ENGINE_SCOPE);
+        Object template = new Object();
+        VelocityBindingsContext first = VelocityBindingsContext.acquire(context, template);
+        VelocityBindingsContext nested = VelocityBindingsContext.acquire(context, template);
+        assertNotSame(first, nested);
+        assertEquals("engine", nested.get("name"));
+        nested.release();
+        first.release();
+        VelocityBindingsContext second = VelocityBindingsContext.acquire(context, template);
+        assertSame(first, second);
+        second.release();
+        assertNotSame(first, VelocityBindingsContext.acquire(context, new Object()));
+    }
+
+    @Test
+    public void releasedContextDoesNotKeepItsTemplate() throws Exception {
+        ScriptContext context = new VelocityScriptContext();
+        Object template = new Object();
+        VelocityBindingsContext.acquire(context, template).release();
+        WeakReference<Object> reference = new WeakReference<Object>(template);
+        template = null;
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("The thread's context should not keep the template reachable", reference.get());
+    }
+
+    @Test
+    public void inlineScriptSeesEachContextsBindings() throws Exception {
+        String script = "#set($greeting = \"Hello $name\")$greeting";
+        for (String name : new String[]{"first", "second"}) {
+            ScriptContext context = new VelocityScriptContext();
+            context.setAttribute("name", name, ScriptContext.ENGINE_SCOPE);
+            StringWriter writer = new StringWriter();
+            context.setWriter(writer);
+            engine.eval(script, context);
+            assertEquals("Hello " + name, writer.toString());
+            assertEquals("Hello " + name, context.getAttribute("greeting", ScriptContext.ENGINE_SCOPE));
+        }
+    }
+
+    @Test
+    public void invalidScriptDoesNotCompile() {
+        try {
+            engine.compile("#if(");
+            fail("Script should not be valid");
+        } catch (ScriptException e) {
+            // expected
+        }
+    }
+}
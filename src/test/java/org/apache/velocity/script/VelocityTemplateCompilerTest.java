@@ -0,0 +1,121 @@
+package org.apache.velocity.script;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Conformance tests checking that compiled templates render exactly the same output as interpreted ones.
+ */
+public class VelocityTemplateCompilerTest {
+
+    private static final String[] TEMPLATES = {
+            "",
+            "plain text only\n",
+            "Hello $name!",
+            "Hello ${name}!",
+            "$name$name${name}text$name",
+            "missing: $missing ${missing} $!missing $!{missing}.",
+            "escaped: \\$name \\${name} \\$missing \\\\$name",
+            "methods: $name.length() $name.toUpperCase() $map.key $map.get('key') $list.size()",
+            "index: $list[0] $list[2]",
+            "null: $nothing $!nothing",
+            "numbers: $number ${number}0",
+            "#set($local = \"set locally\")$local and $name",
+            "#foreach($item in $list)[$item]#end",
+            "#foreach($item in $list)$velocityCount: $item#if($velocityHasNext), #end#end",
+            "#foreach($a in $list)#foreach($b in $list)$a$b #end\n#end",
+            "#if($name)has name: $name#elseif($missing)never#else no name#end",
+            "#if($missing)$missing#else$name#end",
+            "#macro(twice $x)$x$x#end#twice($name) #twice('lit')",
+            "## a comment\nafter comment $name\n#* block\ncomment *#$name",
+            "#[[unparsed $name]]# $name",
+            "$ alone, $1 and #notadirective $name",
+            "#foreach($item in $list)#if($item == 'b')#break#end$item#end",
+            "#define($block)defined $name#end$block $block",
+            "#set($map.key = 'changed')$map.key",
+    };
+
+    private VelocityScriptEngine interpreted;
+
+    private VelocityScriptEngine compiled;
+
+    @Before
+    public void setUp() {
+        interpreted = new VelocityScriptEngine(new VelocityScriptEngineFactory());
+        compiled = new VelocityScriptEngine(new VelocityScriptEngineFactory());
+        Properties properties = new Properties();
+        properties.setProperty(VelocityScriptEngine.RENDER_MODE, VelocityScriptEngine.RENDER_MODE_COMPILED);
+        compiled.getContext().setAttribute(VelocityScriptEngine.VELOCITY_PROPERTIES, properties,
+                ScriptContext.ENGINE_SCOPE);
+    }
+
+    private String eval(CompiledScript script) throws ScriptException {
+        ScriptContext context = new VelocityScriptContext();
+        context.setAttribute("name", "World", ScriptContext.ENGINE_SCOPE);
+        context.setAttribute("number", 42, ScriptContext.ENGINE_SCOPE);
+        context.setAttribute("list", Arrays.asList("a", "b", "c"), ScriptContext.ENGINE_SCOPE);
+        Map<String, String> map = new HashMap<String, String>();
+        map.put("key", "value");
+        context.setAttribute("map", map, ScriptContext.ENGINE_SCOPE);
+        StringWriter writer = new StringWriter();
+        context.setWriter(writer);
+        script.eval(context);
+        return writer.toString();
+    }
+
+    @Test
+    public void templatesAreCompiled() throws Exception {
+        VelocityCompiledScript script = (VelocityCompiledScript) compiled.compile("Hello $name!");
+        assertTrue(script.getTemplate().getData() instanceof VelocityCompiledNode);
+    }
+
+    @Test
+    public void plainReferencesAreCompiled() throws Exception {
+        VelocityCompiledScript script = (VelocityCompiledScript) compiled.compile("$name");
+        VelocityCompiledNode node = (VelocityCompiledNode) script.getTemplate().getData();
+        assertEquals("name", node.getReference(0));
+        assertEquals("World", eval(script));
+    }
+
+    @Test
+    public void compiledOutputMatchesInterpreter() throws Exception {
+        for (String template : TEMPLATES) {
+            String expected = eval(interpreted.compile(template));
+            CompiledScript script = compiled.compile(template);
+            assertEquals(template, expected, eval(script));
+            assertEquals(template, expected, eval(script));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.apache.velocity.script.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.ScriptContext;
+import javax.script.SimpleScriptContext;
+
+import org.junit.Test;
+
+/**
+ * DiagnosticsWriter and ScriptUtil tests
+ */
+public class DiagnosticsWriterTest {
+
+    @Test
+    public void exceptionsGoToTheCurrentInvocation() throws Exception {
+        DiagnosticsWriter invocationErrors = new DiagnosticsWriter();
+        ScriptContext context = new SimpleScriptContext();
+        context.setErrorWriter(invocationErrors);
+
+        ScriptUtil.addExceptionToErrorWriter(new IllegalStateException("outside"));
+        ScriptContext enclosing = ScriptUtil.enterContext(context);
+        try {
+            invocationErrors.write("before\n");
+            ScriptUtil.addExceptionToErrorWriter(new IllegalStateException("inside"));
+            invocationErrors.write("after\n");
+        } finally {
+            ScriptUtil.exitContext(enclosing);
+        }
+        ScriptUtil.addExceptionToErrorWriter(new IllegalStateException("outside"));
+
+        String errors = invocationErrors.toString();
+        assertTrue(errors.startsWith("before\njava.lang.IllegalStateException: inside\n\tat "));
+        assertTrue(errors.endsWith("after\n"));
+        assertFalse(errors.contains("outside"));
+        assertEquals(errors, invocationErrors.toString());
+    }
+
+    @Test
+    public void stackTracesAreCut() {
+        System.setProperty(ScriptUtil.STACK_DEPTH_PROPERTY, "1");
+        try {
+            String trace = ScriptUtil.formatException(new RuntimeException("outer", new Exception("inner")));
+            String[] lines = trace.split("\n");
+            assertEquals("java.lang.RuntimeException: outer", lines[0]);
+            assertTrue(lines[1].startsWith("\tat "));
+            assertTrue(lines[2].startsWith("\t... "));
+            assertEquals("Caused by: java.lang.Exception: inner", lines[3]);
+            assertEquals(6, lines.length);
+        } finally {
+            System.clearProperty(ScriptUtil.STACK_DEPTH_PROPERTY);
+        }
+    }
+
+    @Test
+    public void exceptionsReportedToADiscardingWriterAreNotFormatted() {
+        final AtomicInteger formatted = new AtomicInteger();
+        ScriptContext context = new SimpleScriptContext();
+        context.setErrorWriter(new DiscardingWriter());
+        ScriptContext enclosing = ScriptUtil.enterContext(context);
+        try {
+            ScriptUtil.addExceptionToErrorWriter(new IllegalStateException("ignored") {
+                @Override
+                public StackTraceElement[] getStackTrace() {
+                    formatted.incrementAndGet();
+                    return super.getStackTrace();
+                }
+            });
+        } finally {
+            ScriptUtil.exitContext(enclosing);
+        }
+        assertEquals(0, formatted.get());
+    }
+}
@@ -0,0 +1,104 @@
+package org.apache.velocity.script.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.junit.Test;
+
+/**
+ * ScriptResourceHolder tests
+ */
+public class ScriptResourceHolderTest {
+
+    @Test
+    public void leastRecentlyUsedTemplateIsEvicted() {
+        ScriptResourceHolder.TemplateCache cache = new ScriptResourceHolder.TemplateCache(2, 0, 0);
+        Template a = new Template();
+        Template b = new Template();
+        cache.put("a", a);
+        cache.put("b", b);
+        assertSame(a, cache.get("a"));
+        cache.put("c", new Template());
+        assertNull(cache.get("b"));
+        assertSame(a, cache.get("a"));
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void templatesAreCachedPerCoreEngine() {
+        ScriptResourceHolder.TemplateCache cache = new ScriptResourceHolder.TemplateCache(10, 0, 0);
+        RuntimeInstance first = new RuntimeInstance();
+        RuntimeInstance second = new RuntimeInstance();
+        Template template = new Template();
+        cache.put(first, "test.vm", template);
+        assertSame(template, cache.get(first, "test.vm", -1));
+        assertNull(cache.get(second, "test.vm", -1));
+        assertNull(cache.get("test.vm"));
+    }
+
+    @Test
+    public void modifiedTemplateIsInvalidated() throws IOException {
+        File directory = File.createTempFile("templates", "");
+        directory.delete();
+        directory.mkdir();
+        File file = new File(directory, "test.vm");
+        try {
+            write(file, "first");
+            Properties properties = new Properties();
+            properties.setProperty("file.resource.loader.path", directory.getPath());
+            RuntimeInstance runtimeInstance = VelocityEngineRegistry.getRuntimeInstance(properties);
+
+            ScriptResourceHolder.TemplateCache cache = new ScriptResourceHolder.TemplateCache(10, 0, 0);
+            Template template = runtimeInstance.getTemplate("test.vm");
+            cache.put("test.vm", template);
+            assertSame(template, cache.get("test.vm"));
+
+            write(file, "second");
+            file.setLastModified(template.getLastModified() + 2000);
+            assertNull(cache.get("test.vm"));
+            assertEquals(1, cache.getEvictionCount());
+        } finally {
+            file.delete();
+            directory.delete();
+        }
+    }
+
+    private void write(File file, String contents) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.apache.velocity.script.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Properties;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.directive.Directive;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.script.InterruptibleForeach;
+import org.junit.Test;
+
+/**
+ * VelocityEngineRegistry tests
+ */
+public class VelocityEngineRegistryTest {
+
+    @Test
+    public void equalPropertiesShareAnEngine() {
+        Properties first = new Properties();
+        first.setProperty("velocimacro.library", "");
+        Properties second = new Properties();
+        second.setProperty("velocimacro.library", "");
+        assertSame(VelocityEngineRegistry.getRuntimeInstance(first), VelocityEngineRegistry.getRuntimeInstance(second));
+
+        second.setProperty("runtime.references.strict", "true");
+        assertNotSame(VelocityEngineRegistry.getRuntimeInstance(first),
+                VelocityEngineRegistry.getRuntimeInstance(second));
+    }
+
+    @Test
+    public void numberOfEnginesIsBounded() {
+        for (int i = 0; i < 20; i++) {
+            Properties properties = new Properties();
+            properties.setProperty("bounded", Integer.toString(i));
+            VelocityEngineRegistry.getRuntimeInstance(properties);
+        }
+        assertTrue(VelocityEngineRegistry.getEngineCount() <= 16);
+    }
+
+    /**
+     * A user directive writing a fixed text
+     */
+    public static class Shout extends Directive {
+
+        @Override
+        public String getName() {
+            return "shout";
+        }
+
+        @Override
+        public int getType() {
+            return LINE;
+        }
+
+        @Override
+        public boolean render(InternalContextAdapter context, Writer writer, Node node) throws IOException {
+            writer.write("HEY");
+            return true;
+        }
+    }
+
+    @Test
+    public void userDirectivesAreKept() {
+        Properties properties = new Properties();
+        properties.setProperty("userdirective", Shout.class.getName());
+        RuntimeInstance engine = VelocityEngineRegistry.getRuntimeInstance(properties);
+        assertTrue(engine.getDirective("shout") instanceof Shout);
+        assertTrue(engine.getDirective("foreach") instanceof InterruptibleForeach);
+        StringWriter writer = new StringWriter();
+        engine.evaluate(new VelocityContext(), writer, "test", "#shout()#foreach($i in [1..2])$i#end");
+        assertEquals("HEY12", writer.toString());
+    }
+
+    @Test
+    public void propertiesFileIsReloadedWhenModified() throws IOException {
+        File file = File.createTempFile("velocity", ".properties");
+        try {
+            write(file, "key=first");
+            Properties properties = VelocityEngineRegistry.getProperties(file.getPath());
+            assertEquals("first", properties.getProperty("key"));
+            assertSame(properties, VelocityEngineRegistry.getProperties(file.getPath()));
+
+            write(file, "key=second");
+            file.setLastModified(file.lastModified() + 2000);
+            assertEquals("second", VelocityEngineRegistry.getProperties(file.getPath()).getProperty("key"));
+        } finally {
+            file.delete();
+        }
+        assertNull(VelocityEngineRegistry.getProperties(file.getPath()));
+    }
+
+    private void write(File file, String contents) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+}